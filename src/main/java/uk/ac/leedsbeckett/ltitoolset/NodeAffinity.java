@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Puts the ID of this server in front of the state IDs that appear in the
+ * URLs of tool pages and web sockets. A load balancer can then send each
+ * request to the server that holds the state, without cookies. Servers
+ * check the prefix before they look for the state, so a request that 
+ * arrives at the wrong server can be turned away cheaply.
+ * 
+ * The LTI library makes the state IDs, so the state store never sees the
+ * prefix. An ID in a URL looks like "node2~" followed by the state ID.
+ * 
+ * @author maber01
+ */
+public class NodeAffinity
+{
+  /**
+   * The character between the server ID and the state ID. It needs no
+   * escaping in URLs.
+   */
+  public static final char SEPARATOR = '~';
+  
+  private final String nodeId;
+  private final Map<String,String> nodeUrls;
+
+  /**
+   * Create an instance.
+   * 
+   * @param nodeId The ID of this server or null to not use prefixes.
+   * @param nodeUrls The base URLs of the servers, by server ID.
+   */
+  public NodeAffinity( String nodeId, Map<String,String> nodeUrls )
+  {
+    this.nodeId = ( nodeId == null || nodeId.isEmpty() ) ? null : nodeId;
+    this.nodeUrls = nodeUrls == null ? Collections.emptyMap() : Collections.unmodifiableMap( new HashMap<>( nodeUrls ) );
+    if ( this.nodeId != null && this.nodeId.indexOf( SEPARATOR ) >= 0 )
+      throw new IllegalArgumentException( "Node ID must not contain " + SEPARATOR );
+  }
+
+  /**
+   * Are prefixes in use?
+   * 
+   * @return True if this server has an ID.
+   */
+  public boolean isEnabled()
+  {
+    return nodeId != null;
+  }
+  
+  /**
+   * Get the ID of this server.
+   * 
+   * @return The ID or null.
+   */
+  public String getNodeId()
+  {
+    return nodeId;
+  }
+
+  /**
+   * Get the base URL of a server.
+   * 
+   * @param node The server ID.
+   * @return The URL or null if it is not configured.
+   */
+  public String getNodeUrl( String node )
+  {
+    return node == null ? null : nodeUrls.get( node );
+  }
+  
+  /**
+   * Make the ID to put in URLs.
+   * 
+   * @param stateId The state ID.
+   * @return The state ID with this server's prefix.
+   */
+  public String toExternalId( String stateId )
+  {
+    if ( nodeId == null || stateId == null )
+      return stateId;
+    return nodeId + SEPARATOR + stateId;
+  }
+  
+  /**
+   * Find which server an ID from a URL belongs to.
+   * 
+   * @param externalId The ID from a URL.
+   * @return The server ID or null if there is no prefix.
+   */
+  public static String nodeOf( String externalId )
+  {
+    if ( externalId == null )
+      return null;
+    int i = externalId.indexOf( SEPARATOR );
+    return i < 0 ? null : externalId.substring( 0, i );
+  }
+
+  /**
+   * Remove the server prefix from an ID from a URL.
+   * 
+   * @param externalId The ID from a URL.
+   * @return The state ID.
+   */
+  public static String toStateId( String externalId )
+  {
+    if ( externalId == null )
+      return null;
+    int i = externalId.indexOf( SEPARATOR );
+    return i < 0 ? externalId : externalId.substring( i + 1 );
+  }
+  
+  /**
+   * Find the state ID parameter in a query string. Only the query string 
+   * is looked at, so unlike ServletRequest.getParameter() this never reads 
+   * the body of a form post.
+   * 
+   * @param query The query string, which may be null.
+   * @return The decoded state ID or null if there isn't one.
+   */
+  public static String stateIdFromQuery( String query )
+  {
+    if ( query == null )
+      return null;
+    for ( int start = 0; start < query.length(); )
+    {
+      int end = query.indexOf( '&', start );
+      if ( end < 0 )
+        end = query.length();
+      if ( query.startsWith( "state_id=", start ) )
+      {
+        try
+        {
+          return URLDecoder.decode( query.substring( start + 9, end ), StandardCharsets.UTF_8 );
+        }
+        catch ( IllegalArgumentException ex )
+        {
+          return null;
+        }
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+  
+  /**
+   * Work out from its query string whether a request reached the wrong 
+   * server.
+   * 
+   * @param query The query string, which may be null.
+   * @return Null if the request belongs on this server, otherwise the ID
+   * of the server it belongs on.
+   */
+  public String misroutedTo( String query )
+  {
+    if ( nodeId == null )
+      return null;
+    String externalId = stateIdFromQuery( query );
+    return isLocal( externalId ) ? null : nodeOf( externalId );
+  }
+  
+  /**
+   * Does an ID from a URL belong on this server? IDs without a prefix are
+   * accepted by every server.
+   * 
+   * @param externalId The ID from a URL.
+   * @return True if this server should hold the state.
+   */
+  public boolean isLocal( String externalId )
+  {
+    String node = nodeOf( externalId );
+    return node == null || nodeId == null || Objects.equals( node, nodeId );
+  }
+}
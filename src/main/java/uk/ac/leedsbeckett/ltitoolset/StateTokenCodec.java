@@ -0,0 +1,203 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns LTI state into a token that can travel in URLs so that any server
+ * holding the same key can use the state without looking it up. The
+ * serialized state is deflated then encrypted with AES-GCM, which also 
+ * makes the token tamper proof. Tokens expire a fixed time after they were
+ * made.
+ * 
+ * The layout of a token before base 64 encoding is a version byte, a 12
+ * byte IV and the encrypted expiry time followed by the deflated state.
+ * 
+ * @author maber01
+ */
+public class StateTokenCodec
+{
+  static final Logger logger = Logger.getLogger( StateTokenCodec.class.getName() );
+  
+  static final int VERSION = 1;
+  static final int IV_LENGTH = 12;
+  static final int TAG_BITS = 128;
+  static final int MAX_STATE_BYTES = 1024*1024;
+  
+  private final SecretKey key;
+  private final long lifetimeMillis;
+  private final int maxLength;
+  private final SecureRandom random = new SecureRandom();
+  
+  /**
+   * Create a codec.
+   * 
+   * @param key An AES key.
+   * @param lifetimeMillis How long tokens last.
+   * @param maxLength The longest token to make. States that need more go 
+   * in the state store only.
+   */
+  public StateTokenCodec( SecretKey key, long lifetimeMillis, int maxLength )
+  {
+    this.key = Objects.requireNonNull( key );
+    this.lifetimeMillis = lifetimeMillis;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Make an AES key from any secret material by hashing it. Servers that
+   * configure the same secret get the same key.
+   * 
+   * @param secret The secret.
+   * @return A 256 bit key.
+   */
+  public static SecretKey deriveKey( byte[] secret )
+  {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+      digest.update( "ltitoolset state token".getBytes( StandardCharsets.US_ASCII ) );
+      return new SecretKeySpec( digest.digest( secret ), "AES" );
+    }
+    catch ( GeneralSecurityException ex )
+    {
+      throw new IllegalStateException( "SHA-256 is not available.", ex );
+    }
+  }
+
+  /**
+   * Make a token for a state.
+   * 
+   * @param state The state.
+   * @return The token or null if the state is too big or can't be encoded.
+   */
+  public String encode( ToolSetLtiState state )
+  {
+    try
+    {
+      ByteArrayOutputStream plain = new ByteArrayOutputStream( 512 );
+      DataOutputStream dout = new DataOutputStream( plain );
+      dout.writeLong( System.currentTimeMillis() + lifetimeMillis );
+      dout.flush();
+      Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+      try ( ObjectOutputStream out = new ObjectOutputStream( new DeflaterOutputStream( plain, deflater ) ) )
+      {
+        out.writeObject( state );
+      }
+      finally
+      {
+        deflater.end();
+      }
+      
+      byte[] iv = new byte[IV_LENGTH];
+      random.nextBytes( iv );
+      Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+      cipher.init( Cipher.ENCRYPT_MODE, key, new GCMParameterSpec( TAG_BITS, iv ) );
+      cipher.updateAAD( new byte[] { VERSION } );
+      byte[] sealed = cipher.doFinal( plain.toByteArray() );
+      
+      byte[] raw = new byte[1 + IV_LENGTH + sealed.length];
+      raw[0] = VERSION;
+      System.arraycopy( iv, 0, raw, 1, IV_LENGTH );
+      System.arraycopy( sealed, 0, raw, 1 + IV_LENGTH, sealed.length );
+      String token = Base64.getUrlEncoder().withoutPadding().encodeToString( raw );
+      if ( token.length() > maxLength )
+      {
+        logger.log( Level.FINE, "State {0} is too big for a token.", state.getId() );
+        return null;
+      }
+      return token;
+    }
+    catch ( IOException | GeneralSecurityException ex )
+    {
+      logger.log( Level.WARNING, "Unable to make state token.", ex );
+      return null;
+    }
+  }
+
+  /**
+   * Recover a state from a token. The token must not have expired and the
+   * state in it must have the ID and nonce given.
+   * 
+   * @param token The token.
+   * @param stateId The claimed state ID.
+   * @param claimedNonce The claimed nonce.
+   * @return The state or null if the token is not valid.
+   */
+  public ToolSetLtiState decode( String token, String stateId, String claimedNonce )
+  {
+    if ( token == null || token.length() > maxLength )
+      return null;
+    try
+    {
+      byte[] raw = Base64.getUrlDecoder().decode( token );
+      if ( raw.length <= 1 + IV_LENGTH || raw[0] != VERSION )
+        return null;
+      Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+      cipher.init( Cipher.DECRYPT_MODE, key, new GCMParameterSpec( TAG_BITS, Arrays.copyOfRange( raw, 1, 1 + IV_LENGTH ) ) );
+      cipher.updateAAD( new byte[] { VERSION } );
+      byte[] plain = cipher.doFinal( raw, 1 + IV_LENGTH, raw.length - 1 - IV_LENGTH );
+      
+      ByteArrayInputStream bin = new ByteArrayInputStream( plain );
+      long expires = new DataInputStream( bin ).readLong();
+      if ( System.currentTimeMillis() > expires )
+      {
+        logger.log( Level.FINE, "State token for {0} has expired.", stateId );
+        return null;
+      }
+      ToolSetLtiState state;
+      try ( ObjectInputStream in = new ObjectInputStream( new InflaterInputStream( bin ) ) )
+      {
+        in.setObjectInputFilter( info -> info.streamBytes() > MAX_STATE_BYTES 
+                ? ObjectInputFilter.Status.REJECTED 
+                : ObjectInputFilter.Status.UNDECIDED );
+        state = (ToolSetLtiState)in.readObject();
+      }
+      if ( !Objects.equals( state.getId(), stateId ) || !Objects.equals( state.getNonce(), claimedNonce ) )
+        return null;
+      return state;
+    }
+    catch ( IllegalArgumentException | IOException | ClassNotFoundException | ClassCastException | GeneralSecurityException ex )
+    {
+      logger.log( Level.FINE, "Rejected state token.", ex );
+      return null;
+    }
+  }
+}
@@ -17,6 +17,8 @@ package uk.ac.leedsbeckett.ltitoolset;
 
 import uk.ac.leedsbeckett.ltitoolset.resources.PlatformResourceKey;
 import java.lang.annotation.Annotation;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
 import javax.websocket.server.ServerEndpoint;
@@ -108,6 +110,26 @@ public abstract class Tool
     }
   }
   
+  /**
+   * Initialises the ToolLaunchState without holding up a server thread.
+   * Tools that need to call the platform, for example through a 
+   * backchannel, while setting up the launch can override this and return
+   * a stage that completes when they have finished. The launch servlet then
+   * releases its thread until the stage completes. The default calls 
+   * initToolLaunchState() and returns a completed stage.
+   * 
+   * @param platformConfiguration The tool set configuration for the launching platform.
+   * @param toolstate The tool state that needs to be initialised.
+   * @param lticlaims Claims from the LTI launch process.
+   * @param state General LTI state.
+   * @return A stage that completes when the tool state is ready.
+   */
+  public CompletionStage<Void> initToolLaunchStateAsync( PlatformConfiguration platformConfiguration, ToolLaunchState toolstate, LtiClaims lticlaims, ToolSetLtiState state )
+  {
+    initToolLaunchState( platformConfiguration, toolstate, lticlaims, state );
+    return CompletableFuture.completedFuture( null );
+  }
+  
   public abstract boolean allowDeepLink( DeepLinkingLaunchState deepstate );
   
   public abstract Class<? extends ToolEndpoint> getEndpointClass();
@@ -20,9 +20,12 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import uk.ac.leedsbeckett.ltitoolset.websocket.ToolEndpointSessionRecordPredicate;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.PrivateKey;
@@ -36,15 +39,22 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.cache.Cache;
-import javax.cache.CacheManager;
-import javax.cache.Caching;
-import javax.cache.configuration.MutableConfiguration;
-import javax.cache.expiry.CreatedExpiryPolicy;
 import javax.cache.expiry.Duration;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.FilterRegistration;
 import javax.servlet.ServletContainerInitializer;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -62,6 +72,7 @@ import uk.ac.leedsbeckett.lti.registration.LtiToolConfiguration;
 import uk.ac.leedsbeckett.lti.registration.LtiToolConfigurationCustomParameters;
 import uk.ac.leedsbeckett.lti.registration.LtiToolConfigurationMessage;
 import uk.ac.leedsbeckett.lti.registration.LtiToolRegistration;
+import uk.ac.leedsbeckett.lti.LtiException;
 import uk.ac.leedsbeckett.lti.state.LtiStateStore;
 import uk.ac.leedsbeckett.ltitoolset.annotations.ToolFunctionality;
 import uk.ac.leedsbeckett.ltitoolset.annotations.ToolInformation;
@@ -80,19 +91,33 @@ import uk.ac.leedsbeckett.ltitoolset.backchannel.LtiBackchannelKey;
 import uk.ac.leedsbeckett.ltitoolset.backchannel.blackboard.BlackboardConfiguration;
 import uk.ac.leedsbeckett.ltitoolset.backchannel.blackboard.BlackboardBackchannel;
 import uk.ac.leedsbeckett.ltitoolset.backchannel.blackboard.BlackboardBackchannelKey;
+import uk.ac.leedsbeckett.ltitoolset.cache.CacheFactory;
+import uk.ac.leedsbeckett.ltitoolset.cache.TieredCache;
+import uk.ac.leedsbeckett.ltitoolset.cache.CacheSettings;
+import uk.ac.leedsbeckett.ltitoolset.config.LaunchDecisionTable;
 import uk.ac.leedsbeckett.ltitoolset.config.LtiConfigurationImpl;
 import uk.ac.leedsbeckett.ltitoolset.config.PlatformConfiguration;
+import uk.ac.leedsbeckett.ltitoolset.config.PlatformConfigurationKey;
 import uk.ac.leedsbeckett.ltitoolset.config.PlatformConfigurationStore;
 import uk.ac.leedsbeckett.ltitoolset.config.RegistrationConfiguration;
 import uk.ac.leedsbeckett.ltitoolset.config.RegistrationConfigurationStore;
 import uk.ac.leedsbeckett.ltitoolset.config.ToolConfiguration;
 import uk.ac.leedsbeckett.ltitoolset.deeplinking.DeepLinkingTool;
 import uk.ac.leedsbeckett.ltitoolset.jwks.JwksStore;
+import uk.ac.leedsbeckett.ltitoolset.resources.ToolResourceKey;
 import uk.ac.leedsbeckett.ltitoolset.resources.ToolResourceStore;
 import uk.ac.leedsbeckett.ltitoolset.servlet.AutoRegServlet;
+import uk.ac.leedsbeckett.ltitoolset.servlet.LaunchMetrics;
+import uk.ac.leedsbeckett.ltitoolset.servlet.NodeAffinityFilter;
 import uk.ac.leedsbeckett.ltitoolset.servlet.ToolJwksServlet;
 import uk.ac.leedsbeckett.ltitoolset.servlet.ToolLaunchServlet;
 import uk.ac.leedsbeckett.ltitoolset.servlet.ToolLoginServlet;
+import uk.ac.leedsbeckett.ltitoolset.store.LogStructuredBackend;
+import uk.ac.leedsbeckett.ltitoolset.store.MVStoreBackend;
+import uk.ac.leedsbeckett.ltitoolset.store.Store;
+import uk.ac.leedsbeckett.ltitoolset.store.StoreFormat;
+import uk.ac.leedsbeckett.ltitoolset.store.StoreExecutor;
+import uk.ac.leedsbeckett.ltitoolset.store.StoreWatcher;
 import uk.ac.leedsbeckett.ltitoolset.websocket.MultitonToolEndpoint;
 import uk.ac.leedsbeckett.ltitoolset.websocket.ToolEndpoint;
 import uk.ac.leedsbeckett.ltitoolset.websocket.ToolEndpointSessionRecord;
@@ -113,6 +138,7 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
 {
   static final Logger logger = Logger.getLogger( ToolCoordinator.class.getName() );
   static final String KEY = ToolCoordinator.class.getCanonicalName();
+  static final List<String> WATCHED_STORES = List.of( "registrations", "platforms", "jwks" );
   
   /**
    * A map that helps connect WebSocketContainers with ServletContexts
@@ -154,6 +180,15 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
   private LtiConfigurationImpl lticonfig;
   private final ToolConfiguration toolconfig = new ToolConfiguration();
   private LtiStateStore<ToolSetLtiState> ltistatestore;
+  private StateTokenCodec stateTokenCodec;
+  private NodeAffinity nodeAffinity = new NodeAffinity( null, null );
+  private LaunchMetrics launchMetrics;
+  private volatile LaunchDecisionTable launchDecisions;
+  private final Object launchDecisionLock = new Object();
+  private long launchDecisionGeneration = 0L;
+  private ScheduledExecutorService launchDecisionRecheck;
+  private final Set<String> recheckedRegistrations = new HashSet<>();
+  private final Set<PlatformConfigurationKey> recheckedPlatforms = new HashSet<>();
   private ToolSetMapping toolSetMapping = null;
 
   // Service call signing stuff:
@@ -181,6 +216,12 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
   private RegistrationConfigurationStore registrationConfigurationStore;
 
   private ToolResourceStore toolResourceStore;
+  private final ArrayList<Store<?,?>> stores = new ArrayList<>();
+  private StoreWatcher storeWatcher;
+  private StoreExecutor storeExecutor;
+  private ObjectName storeExecutorName;
+  private ObjectName ltiStateName;
+  private volatile boolean ready = true;
   private DeepLinkingTool deepLinkingTool = new DeepLinkingTool();
   
   
@@ -231,8 +272,14 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
     initJkwsStore( ctx );
     initToolResourceStore( ctx );
     initLtiConfiguration( ctx );
+    initStores();
+    warmUpStores();
+    initLaunchDecisions();
     initLtiStateStore();
     initServiceKeyPairs();
+    initStateTokens();
+    nodeAffinity = new NodeAffinity( toolconfig.getNodeId(), toolconfig.getNodeUrls() );
+    launchMetrics = new LaunchMetrics( contextPath );
     
     if ( usingBlackboardRest )
       initBlackboardRest( ctx );
@@ -341,7 +388,7 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
   private void initServlets( ServletContext ctx )
   {
     ServletRegistration loginReg  = ctx.addServlet( "ToolLoginServlet",   ToolLoginServlet.class );
-    ServletRegistration launchReg = ctx.addServlet( "ToolLaunchServlet",  ToolLaunchServlet.class );
+    ServletRegistration.Dynamic launchReg = ctx.addServlet( "ToolLaunchServlet",  ToolLaunchServlet.class );
     ServletRegistration jwksReg   = ctx.addServlet( "ToolJwksServlet",    ToolJwksServlet.class );
     ServletRegistration ariReg    = ctx.addServlet("AutoRegInitServlet", AutoRegServlet.class );
     
@@ -349,6 +396,12 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
     launchReg.addMapping( toolSetMapping.launchUrl()      );
     jwksReg.addMapping(   toolSetMapping.jwksUrl()        );
     ariReg.addMapping(    toolSetMapping.autoRegUrl() );
+    // Tools can finish setting up launches on other threads.
+    launchReg.setAsyncSupported( true );
+    
+    FilterRegistration.Dynamic affinityReg = ctx.addFilter( "NodeAffinityFilter", NodeAffinityFilter.class );
+    affinityReg.setAsyncSupported( true );
+    affinityReg.addMappingForUrlPatterns( null, false, "/*" );
   }
   
   /**
@@ -430,15 +483,57 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
    */
   public void initLtiStateStore()
   {
+    // Settings for the shared cache mean the state is meant to go there.
+    CacheSettings defaults = toolconfig.getDefaultCacheSettings();
+    boolean shared = toolconfig.getCacheSettings().containsKey( "appltistate" ) 
+            || ( !defaults.isBuiltIn() && defaults.getNearMaxEntries() > 0 );
+    String kind = toolconfig.getLtiStateCache();
+    if ( kind == null )
+      kind = shared ? "jcache" : "tiered";
+    else if ( shared && !"jcache".equals( kind ) )
+      logger.log( Level.WARNING, "ltiStateCache is {0} so the cache settings that would apply to appltistate are ignored.", kind );
+    logger.log( Level.INFO, "LTI states are kept in a {0} cache.", kind );
+    
     Cache<String, ToolSetLtiState> cache;
-    CacheManager manager = Caching.getCachingProvider().getCacheManager();
-    MutableConfiguration<String, ToolSetLtiState> cacheconfig = 
-            new MutableConfiguration<String, ToolSetLtiState>()
-                    .setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(Duration.ONE_HOUR));
-    cache = manager.createCache( "appltistate", cacheconfig );
+    if ( "jcache".equals( kind ) )
+      cache = CacheFactory.getDefault().createCache( "appltistate", Duration.ONE_HOUR );
+    else
+    {
+      // States from logins that never launch are dropped quickly and can't
+      // push out states that are in use.
+      TieredCache<String, ToolSetLtiState> tiered = new TieredCache<>( "appltistate", 
+              state -> state.getToolLaunchState() != null,
+              toolconfig.getLtiStatePendingMaxKilobytes(), toolconfig.getLtiStatePendingSeconds(),
+              toolconfig.getLtiStateMaxKilobytes(), toolconfig.getLtiStateIdleSeconds(), TimeUnit.SECONDS );
+      registerLtiStateMBean( tiered );
+      cache = tiered;
+    }
     ltistatestore = new LtiStateStore<>( cache, new ToolSetLtiStateSupplier() ); 
   }
   
+  /**
+   * Publish the sizes of the LTI state tiers with JMX.
+   * 
+   * @param cache The cache.
+   */
+  private void registerLtiStateMBean( TieredCache<String, ToolSetLtiState> cache )
+  {
+    try
+    {
+      ltiStateName = new ObjectName( "uk.ac.leedsbeckett.ltitoolset:type=LtiStateCache,context=" 
+              + ObjectName.quote( contextPath.isEmpty() ? "/" : contextPath ) );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if ( server.isRegistered( ltiStateName ) )
+        server.unregisterMBean( ltiStateName );
+      server.registerMBean( cache, ltiStateName );
+    }
+    catch ( JMException ex )
+    {
+      logger.log( Level.WARNING, "Unable to register LTI state MBean.", ex );
+      ltiStateName = null;
+    }
+  }
+  
   /**
    * Get the LTI state store.
    * @return The store.
@@ -448,6 +543,128 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
     return ltistatestore;
   }
   
+  /**
+   * Find the LTI state for a page or web socket. The state store is asked
+   * first, so a state it holds is the one used and is checked against its
+   * nonce. Only if the store doesn't have the state, for example because
+   * it was made on another server, does the state come from a valid state
+   * token, which is why tokens should be short lived. A state from a token
+   * is a copy so it is read only; changes to it are not saved anywhere.
+   * 
+   * @param stateid The state ID.
+   * @param claimedNonce The nonce that came with the ID.
+   * @param stateToken The state token, which may be null.
+   * @return The state or null if it was not found.
+   * @throws LtiException If the nonce is wrong.
+   */
+  public ToolSetLtiState getLtiState( String stateid, String claimedNonce, String stateToken ) throws LtiException
+  {
+    ToolSetLtiState state = ltistatestore.getState( stateid, claimedNonce );
+    if ( state != null || stateToken == null || stateTokenCodec == null )
+      return state;
+    state = stateTokenCodec.decode( stateToken, stateid, claimedNonce );
+    if ( state != null )
+      logger.log( Level.FINE, "State {0} is not in the store, using the read only copy from its token.", stateid );
+    return state;
+  }
+
+  /**
+   * Get the server prefixes for state IDs in URLs.
+   * 
+   * @return The node affinity, which is disabled if no node ID is configured.
+   */
+  public NodeAffinity getNodeAffinity()
+  {
+    return nodeAffinity;
+  }
+
+  /**
+   * Get the timings of LTI launches.
+   * 
+   * @return The launch metrics.
+   */
+  public LaunchMetrics getLaunchMetrics()
+  {
+    return launchMetrics;
+  }
+  
+  /**
+   * Should launches send a Server-Timing header?
+   * 
+   * @return True if they should.
+   */
+  public boolean isLaunchServerTiming()
+  {
+    return toolconfig.isLaunchServerTiming();
+  }
+
+  /**
+   * Should launches forward to the tool page rather than redirect?
+   * 
+   * @return True if they should.
+   */
+  public boolean isLaunchForward()
+  {
+    return toolconfig.isLaunchForward();
+  }
+
+  /**
+   * How long a tool may take to set up a launch asynchronously.
+   * 
+   * @return The number of seconds.
+   */
+  public long getLaunchTimeoutSeconds()
+  {
+    return toolconfig.getLaunchTimeoutSeconds();
+  }
+
+  /**
+   * The page to show when a tool takes too long to set up a launch.
+   * 
+   * @return The page, relative to the context, or null for a built in page.
+   */
+  public String getLaunchFallbackPage()
+  {
+    return toolconfig.getLaunchFallbackPage();
+  }
+
+  /**
+   * Get the codec for state tokens.
+   * 
+   * @return The codec or null if state tokens are not configured.
+   */
+  public StateTokenCodec getStateTokenCodec()
+  {
+    return stateTokenCodec;
+  }
+  
+  /**
+   * Set up state tokens if the configuration asks for them. Without a 
+   * shared secret the key comes from this server's private key, so tokens
+   * only work on this server.
+   */
+  private void initStateTokens()
+  {
+    if ( !toolconfig.isStateTokens() )
+      return;
+    byte[] secret;
+    if ( toolconfig.getStateTokenSecret() != null && !toolconfig.getStateTokenSecret().isEmpty() )
+      secret = toolconfig.getStateTokenSecret().getBytes( StandardCharsets.UTF_8 );
+    else if ( privateKey != null )
+    {
+      logger.log( Level.WARNING, "No stateTokenSecret is configured so state tokens will only work on this server." );
+      secret = privateKey.getEncoded();
+    }
+    else
+    {
+      logger.log( Level.SEVERE, "No key is available for state tokens." );
+      return;
+    }
+    stateTokenCodec = new StateTokenCodec( StateTokenCodec.deriveKey( secret ), 
+            TimeUnit.SECONDS.toMillis( toolconfig.getStateTokenSeconds() ), 
+            toolconfig.getStateTokenMaxLength() );
+  }
+  
   private void initRegAndPlatformConfig( ServletContext context )
   {
     registrationConfigurationStore = new RegistrationConfigurationStore( Paths.get( context.getRealPath( "/WEB-INF/registrations/" ) ) );
@@ -518,6 +735,20 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
   private boolean isPlatformAllowedLaunchOrDeepLink( LtiClaims lticlaims, ToolSetLtiState state, boolean deeplink )
           throws LaunchDisallowedException
   {
+    LaunchDecisionTable table = launchDecisions;
+    if ( table != null )
+    {
+      String platformurl = null;
+      String platformguid = null;
+      if ( lticlaims.getLtiToolPlatform() != null )
+      {
+        platformurl = lticlaims.getLtiToolPlatform().getUrl();
+        platformguid = lticlaims.getLtiToolPlatform().getGuid();
+      }
+      return table.check( lticlaims.getIssuer(), platformurl, platformguid, deeplink );
+    }
+    
+    // The table is being rebuilt so look the configuration up.
     if ( registrationConfigurationStore == null )
       throw new LaunchDisallowedException( "No registration store available" );
 
@@ -566,6 +797,152 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
     return true;
   }
   
+  /**
+   * Build the launch decision table and keep it up to date as the 
+   * registration and platform stores change.
+   */
+  private void initLaunchDecisions()
+  {
+    if ( registrationConfigurationStore == null || platformConfigurationStore == null )
+      return;
+    registrationConfigurationStore.addListener( ( store, key ) -> invalidateLaunchDecisions() );
+    platformConfigurationStore.addListener( ( store, key ) -> invalidateLaunchDecisions() );
+    compileLaunchDecisions( 0L );
+    scheduleLaunchDecisionRecheck();
+  }
+  
+  /**
+   * Without store watching nothing tells the stores when their files are
+   * edited by hand, so the table would never change. Instead the files are
+   * rechecked no less often than the cached configuration expires, so 
+   * edits take effect about as soon as they did before there was a table.
+   */
+  private void scheduleLaunchDecisionRecheck()
+  {
+    if ( toolconfig.isStoreWatch() )
+      return;
+    long seconds = Math.min( expirySeconds( registrationConfigurationStore.getName() ),
+                             expirySeconds( platformConfigurationStore.getName() ) );
+    if ( seconds <= 0L )
+    {
+      // The configuration is cached for ever so edits needed a restart
+      // before too.
+      logger.log( Level.INFO, "Registration and platform configuration never expires so launch decisions are only rebuilt on restart." );
+      return;
+    }
+    launchDecisionRecheck = Executors.newSingleThreadScheduledExecutor();
+    launchDecisionRecheck.scheduleWithFixedDelay( this::recheckLaunchDecisions, seconds, seconds, TimeUnit.SECONDS );
+    logger.log( Level.INFO, "Rechecking registration and platform configuration every {0}s.", seconds );
+  }
+  
+  /**
+   * How long the entries of a store's cache last.
+   * 
+   * @param name The name of the store.
+   * @return Seconds, or zero if entries don't expire.
+   */
+  private long expirySeconds( String name )
+  {
+    Long seconds = CacheFactory.getDefault().getSettings( name ).getExpirySeconds();
+    // Stores that aren't configured use a five minute cache.
+    return seconds == null ? 300L : seconds;
+  }
+  
+  /**
+   * Compare the registration and platform files with what the stores last 
+   * read. Stores invalidate the entries that changed, which rebuilds the 
+   * table through the store listeners.
+   */
+  private void recheckLaunchDecisions()
+  {
+    long before;
+    synchronized ( launchDecisionLock )
+    {
+      before = launchDecisionGeneration;
+    }
+    try
+    {
+      recheck( registrationConfigurationStore, recheckedRegistrations );
+      recheck( platformConfigurationStore, recheckedPlatforms );
+    }
+    catch ( IOException | RuntimeException ex )
+    {
+      logger.log( Level.WARNING, "Unable to recheck registration and platform configuration so launch decisions may be stale.", ex );
+      return;
+    }
+    long after;
+    synchronized ( launchDecisionLock )
+    {
+      after = launchDecisionGeneration;
+    }
+    if ( after != before )
+      logger.log( Level.WARNING, "Launch decision table was stale after {0} configuration change(s) and is being rebuilt. "
+              + "Turn on storeWatch to pick changes up straight away.", after - before );
+  }
+  
+  /**
+   * Invalidate a store's entries whose files changed, appeared or 
+   * disappeared since the last recheck.
+   * 
+   * @param <K> The key class of the store.
+   * @param store The store.
+   * @param known The keys found last time, updated to the keys found now.
+   * @throws IOException If the keys can't be listed.
+   */
+  private <K> void recheck( Store<K,?> store, Set<K> known ) throws IOException
+  {
+    List<K> keys = store.listKeys();
+    HashSet<K> all = new HashSet<>( known );
+    all.addAll( keys );
+    for ( K key : all )
+      store.invalidate( key );
+    known.clear();
+    known.addAll( keys );
+  }
+  
+  /**
+   * Stop using the launch decision table and build a new one in the 
+   * background. Launches are checked against the stores in the meantime.
+   */
+  private void invalidateLaunchDecisions()
+  {
+    long generation;
+    synchronized ( launchDecisionLock )
+    {
+      generation = ++launchDecisionGeneration;
+      launchDecisions = null;
+    }
+    Executor executor = storeExecutor;
+    if ( executor == null )
+      compileLaunchDecisions( generation );
+    else
+      executor.execute( () -> compileLaunchDecisions( generation ) );
+  }
+  
+  /**
+   * Build the launch decision table. It is only used if the stores have
+   * not changed again since this build started.
+   * 
+   * @param generation The number of changes the build is based on.
+   */
+  private void compileLaunchDecisions( long generation )
+  {
+    try
+    {
+      LaunchDecisionTable table = LaunchDecisionTable.compile( registrationConfigurationStore, platformConfigurationStore );
+      synchronized ( launchDecisionLock )
+      {
+        if ( generation == launchDecisionGeneration )
+          launchDecisions = table;
+      }
+      logger.log( Level.FINE, "Launch decision table built with {0} issuers.", table.size() );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Unable to build launch decision table.", ex );
+    }
+  }
+  
   /**
    * Load the LTI configuration file from a standard location.
    * 
@@ -586,6 +963,55 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
   private void initToolResourceStore( ServletContext context )
   {
     toolResourceStore = new ToolResourceStore( Paths.get( context.getRealPath( "/WEB-INF/resources/" ) ) );
+    if ( "mvstore".equals( toolconfig.getToolResourceStoreBackend() ) )
+    {
+      initToolResourceMVStore( context );
+      return;
+    }
+    if ( !"log".equals( toolconfig.getToolResourceStoreBackend() ) )
+      return;
+    
+    try
+    {
+      LogStructuredBackend<ToolResourceKey> log = toolResourceStore.useLogStructuredBackend( Paths.get( context.getRealPath( "/WEB-INF/resourcelog/" ) ) );
+      if ( log.size() == 0 )
+      {
+        int count = toolResourceStore.importInto( log );
+        if ( count > 0 )
+          logger.log( Level.INFO, "Imported {0} tool resources into the resource log.", count );
+      }
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to open tool resource log, using one file per resource.", ex );
+      toolResourceStore = new ToolResourceStore( Paths.get( context.getRealPath( "/WEB-INF/resources/" ) ) );
+    }
+  }
+  
+  /**
+   * Put the tool resource store in a B-tree file, importing existing 
+   * resource files the first time.
+   * 
+   * @param context The servlet context.
+   */
+  private void initToolResourceMVStore( ServletContext context )
+  {
+    try
+    {
+      MVStoreBackend<ToolResourceKey> mv = toolResourceStore.useMVStoreBackend( 
+              Paths.get( context.getRealPath( "/WEB-INF/resources.mv.db" ) ), toolconfig.getStoreCommitDelay() );
+      if ( mv.size() == 0 )
+      {
+        int count = toolResourceStore.importInto( mv );
+        if ( count > 0 )
+          logger.log( Level.INFO, "Imported {0} tool resources into the resource B-tree file.", count );
+      }
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to open tool resource B-tree file, using one file per resource.", ex );
+      toolResourceStore = new ToolResourceStore( Paths.get( context.getRealPath( "/WEB-INF/resources/" ) ) );
+    }
   }
   
   public ToolResourceStore getToolResourceStore()
@@ -593,6 +1019,17 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
     return toolResourceStore;
   }
   
+  /**
+   * Get the pool that runs the asynchronous methods of the stores. Tools
+   * can use it for other blocking work of their own.
+   * 
+   * @return The executor.
+   */
+  public StoreExecutor getStoreExecutor()
+  {
+    return storeExecutor;
+  }
+  
   public RegistrationConfigurationStore getRegistrationConfigurationStore()
   {
     return registrationConfigurationStore;
@@ -616,6 +1053,211 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
     }
   }  
   
+  /**
+   * Keep track of all the stores and apply configuration that is common to
+   * all of them.
+   */
+  private void initStores()
+  {
+    stores.clear();
+    stores.add( registrationConfigurationStore );
+    stores.add( platformConfigurationStore );
+    stores.add( jwksStore );
+    stores.add( toolResourceStore );
+    if ( lticonfig != null )
+      stores.add( lticonfig );
+    
+    if ( toolconfig.isStoreWatch() )
+    {
+      storeWatcher = new StoreWatcher( toolconfig.getStoreWatchPollSeconds(), toolconfig.isStoreWatchPolling() );
+      for ( Store<?,?> store : stores )
+        if ( WATCHED_STORES.contains( store.getName() ) && store.getBasePath() != null )
+          storeWatcher.watch( store, store.getBasePath() );
+    }
+    
+    storeExecutor = new StoreExecutor( "store-io", toolconfig.getStoreAsyncThreads(), toolconfig.getStoreAsyncQueueSize() );
+    registerStoreExecutorMBean();
+    
+    for ( Store<?,?> store : stores )
+    {
+      store.registerMBean( contextPath );
+      store.setAsyncExecutor( storeExecutor );
+      String format = toolconfig.getStoreFormat( store.getName() );
+      if ( format != null )
+      {
+        try
+        {
+          store.setFormat( StoreFormat.forName( format ) );
+        }
+        catch ( IllegalArgumentException ex )
+        {
+          logger.log( Level.SEVERE, "Unknown format {0} for store {1}.", new Object[]{format, store.getName()} );
+        }
+      }
+      store.setWriteBehind( toolconfig.getStoreWriteBehindDelay(), toolconfig.getStoreWriteBehindBatchSize() );
+      store.openIndexes();
+    }
+  }
+  
+  /**
+   * If configured, load every entry of the registration, platform, LTI
+   * client and JWKS stores into their caches. This runs in the background
+   * on a bounded pool so start up is not held up. If launches are to wait
+   * for it the coordinator is not ready until it finishes.
+   */
+  private void warmUpStores()
+  {
+    if ( !toolconfig.isStoreWarmUp() )
+      return;
+    ready = !toolconfig.isStoreWarmUpBlocksLaunch();
+    
+    long start = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, toolconfig.getStoreWarmUpThreads() ) );
+    ArrayList<CompletableFuture<Void>> all = new ArrayList<>();
+    for ( Store<?,?> store : stores )
+    {
+      if ( store == toolResourceStore )
+        continue;
+      all.add( warmUpStore( store, pool ) );
+    }
+    CompletableFuture.allOf( all.toArray( new CompletableFuture<?>[0] ) ).whenComplete( ( v, th ) ->
+    {
+      pool.shutdown();
+      ready = true;
+      logger.log( Level.INFO, "Store warm up took {0}ms.", System.currentTimeMillis() - start );
+    } );
+  }
+  
+  /**
+   * Load all the entries of one store in parallel.
+   * 
+   * @param <K> The key class.
+   * @param store The store.
+   * @param pool Where to run the loads.
+   * @return A future that completes when all the entries have been tried.
+   */
+  private <K> CompletableFuture<Void> warmUpStore( Store<K,?> store, ExecutorService pool )
+  {
+    List<K> keys;
+    try
+    {
+      keys = store.listKeys();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to list entries of store " + store.getName(), ex );
+      return CompletableFuture.completedFuture( null );
+    }
+    
+    AtomicInteger loaded = new AtomicInteger();
+    CompletableFuture<?>[] loads = new CompletableFuture<?>[keys.size()];
+    for ( int i=0; i<keys.size(); i++ )
+    {
+      K key = keys.get( i );
+      loads[i] = CompletableFuture.runAsync( () ->
+      {
+        if ( store.get( key, false ) != null )
+          loaded.incrementAndGet();
+      }, pool );
+    }
+    return CompletableFuture.allOf( loads ).handle( ( v, th ) ->
+    {
+      if ( th != null )
+        logger.log( Level.WARNING, "Some entries of store " + store.getName() + " failed to load.", th );
+      logger.log( Level.INFO, "Warmed up {0} of {1} entries in store {2}.", new Object[]{loaded.get(), keys.size(), store.getName()} );
+      return null;
+    } );
+  }
+  
+  /**
+   * Is the coordinator ready for logins and launches? It is unless store
+   * warm up is configured to block launches and hasn't finished yet.
+   * 
+   * @return True if ready.
+   */
+  public boolean isReady()
+  {
+    return ready;
+  }
+  
+  /**
+   * Shut down all the stores so that any writes they have queued are
+   * flushed to disk.
+   */
+  private void shutdownStores()
+  {
+    if ( storeWatcher != null )
+      storeWatcher.stop();
+    if ( launchDecisionRecheck != null )
+    {
+      launchDecisionRecheck.shutdownNow();
+      launchDecisionRecheck = null;
+    }
+    for ( Store<?,?> store : stores )
+    {
+      store.shutdown();
+      store.unregisterMBean();
+    }
+    if ( storeExecutor != null )
+    {
+      storeExecutor.shutdown();
+      try
+      {
+        if ( !storeExecutor.awaitTermination( 1000, TimeUnit.MILLISECONDS ) )
+          storeExecutor.shutdownNow();
+      }
+      catch ( InterruptedException e )
+      {
+        storeExecutor.shutdownNow();
+      }
+    }
+    if ( storeExecutorName != null )
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean( storeExecutorName );
+      }
+      catch ( JMException ex )
+      {
+        logger.log( Level.WARNING, "Unable to unregister store executor MBean.", ex );
+      }
+      storeExecutorName = null;
+    }
+    if ( ltiStateName != null )
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean( ltiStateName );
+      }
+      catch ( JMException ex )
+      {
+        logger.log( Level.WARNING, "Unable to unregister LTI state MBean.", ex );
+      }
+      ltiStateName = null;
+    }
+  }
+  
+  /**
+   * Publish the statistics of the store executor with JMX.
+   */
+  private void registerStoreExecutorMBean()
+  {
+    try
+    {
+      storeExecutorName = new ObjectName( "uk.ac.leedsbeckett.ltitoolset:type=StoreExecutor,context=" 
+              + ObjectName.quote( contextPath.isEmpty() ? "/" : contextPath ) );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if ( server.isRegistered( storeExecutorName ) )
+        server.unregisterMBean( storeExecutorName );
+      server.registerMBean( storeExecutor, storeExecutorName );
+    }
+    catch ( JMException ex )
+    {
+      logger.log( Level.WARNING, "Unable to register store executor MBean.", ex );
+      storeExecutorName = null;
+    }
+  }
+  
   /**
    * Load the LTI configuration file from a standard location.
    * 
@@ -630,8 +1272,34 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
       toolconfig.load( configpath );
       logger.log( Level.INFO, "Raw configuration: {0}", toolconfig.getRawConfiguration() );
     }
+    initCacheFactory();
   }  
   
+  /**
+   * Choose where caches come from and how they are set up before any 
+   * stores are created.
+   */
+  private void initCacheFactory()
+  {
+    HashMap<String,CacheSettings> named = new HashMap<>( toolconfig.getCacheSettings() );
+    if ( toolconfig.isStoreWatch() )
+    {
+      // Watched stores are told about changes so their entries needn't
+      // expire, unless the configuration says otherwise.
+      for ( String name : WATCHED_STORES )
+      {
+        CacheSettings settings = named.get( name );
+        if ( settings == null || settings.getExpirySeconds() == null )
+        {
+          settings = new CacheSettings( settings == null ? toolconfig.getDefaultCacheSettings() : settings );
+          settings.setExpirySeconds( 0L );
+          named.put( name, settings );
+        }
+      }
+    }
+    CacheFactory.setDefault( new CacheFactory( toolconfig.getDefaultCacheSettings(), named ) );
+  }
+  
   /**
    * Load the LTI configuration file from a standard location.
    * 
@@ -1047,6 +1715,9 @@ public class ToolCoordinator implements ServletContainerInitializer, Backchannel
       logger.fine( "Serlvet context is being destroyed." );
       jwksStore.stopRefreshing();
       wspinger.stopRefreshing();
+      shutdownStores();
+      if ( launchMetrics != null )
+        launchMetrics.unregister();
     }
   }
 }
@@ -17,31 +17,42 @@
 package uk.ac.leedsbeckett.ltitoolset;
 
 import uk.ac.leedsbeckett.ltitoolset.resources.PlatformResourceKey;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import uk.ac.leedsbeckett.ltitoolset.util.SerialFormat;
 
 /**
  * This contains data that a user of the platform-wide tool might need.
  * Implementations for different tools will vary. Objects of this type are
  * set in the LTI Launch State.
  * 
+ * The fields of this class are serialized by hand, because the state is
+ * copied on every access when the cache stores by value. Subclasses can
+ * rely on default serialization of their own fields.
+ * 
  * @author jon
  */
 public class ToolLaunchState implements Serializable
 {
+  private static final long serialVersionUID = 1L;
+  static final int SERIAL_VERSION = 1;
+  
   /**
    * Many users (many states) may reference the same resource. It is 
    * important that it doesn't hold a reference to the resource. So, it 
    * holds a unique key to the resource. The resources themselves are
    * put in a different cache.
    */
-  private PlatformResourceKey resourceKey;
+  private transient PlatformResourceKey resourceKey;
   
-  private String personId;
-  private String personName;
-  private String courseId;
-  private String courseTitle;
-  private String relativeWebSocketUri;
-  protected boolean allowedToConfigure = false;
+  private transient String personId;
+  private transient String personName;
+  private transient String courseId;
+  private transient String courseTitle;
+  private transient String relativeWebSocketUri;
+  protected transient boolean allowedToConfigure = false;
 
   public PlatformResourceKey getResourceKey()
   {
@@ -122,4 +133,33 @@ public class ToolLaunchState implements Serializable
   {
     this.allowedToConfigure = allowedToConfigure;
   }
+
+  private void writeObject( ObjectOutputStream out ) throws IOException
+  {
+    out.defaultWriteObject();
+    SerialFormat.writeVersion( out, SERIAL_VERSION );
+    SerialFormat.writeString( out, resourceKey == null ? null : resourceKey.getPlatformId() );
+    SerialFormat.writeString( out, resourceKey == null ? null : resourceKey.getResourceId() );
+    SerialFormat.writeString( out, personId );
+    SerialFormat.writeString( out, personName );
+    SerialFormat.writeString( out, courseId );
+    SerialFormat.writeString( out, courseTitle );
+    SerialFormat.writeString( out, relativeWebSocketUri );
+    out.writeBoolean( allowedToConfigure );
+  }
+
+  private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    SerialFormat.readVersion( in, ToolLaunchState.class );
+    String platformId = SerialFormat.readString( in );
+    String resourceId = SerialFormat.readString( in );
+    resourceKey = platformId == null ? null : new PlatformResourceKey( platformId, resourceId );
+    personId = SerialFormat.readString( in );
+    personName = SerialFormat.readString( in );
+    courseId = SerialFormat.readString( in );
+    courseTitle = SerialFormat.readString( in );
+    relativeWebSocketUri = SerialFormat.readString( in );
+    allowedToConfigure = in.readBoolean();
+  }
 }
@@ -16,9 +16,13 @@
 
 package uk.ac.leedsbeckett.ltitoolset;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import uk.ac.leedsbeckett.lti.config.ClientLtiConfigurationKey;
 import uk.ac.leedsbeckett.lti.state.LtiState;
+import uk.ac.leedsbeckett.ltitoolset.util.SerialFormat;
 
 /**
  * This demo's customised subclass of LtiState which can store additional
@@ -28,12 +32,15 @@ import uk.ac.leedsbeckett.lti.state.LtiState;
  */
 public class ToolSetLtiState extends LtiState implements Serializable
 {
+  private static final long serialVersionUID = 1L;
+  static final int SERIAL_VERSION = 1;
+  
   /**
    * Data that relates to the course-content servlet.
    */
-  ToolLaunchState   toolLaunchState = null;
+  transient ToolLaunchState   toolLaunchState = null;
   
-  ToolKey toolKey = null;
+  transient ToolKey toolKey = null;
   
   /**
    * Constructor of this state must make sure the superclass constructor
@@ -75,4 +82,30 @@ public class ToolSetLtiState extends LtiState implements Serializable
   {
     this.toolKey = toolKey;
   }
+
+  /**
+   * The fields of this class are written by hand. The tool key is written
+   * as two strings rather than as an object.
+   * 
+   * @param out The output.
+   * @throws IOException If writing failed.
+   */
+  private void writeObject( ObjectOutputStream out ) throws IOException
+  {
+    out.defaultWriteObject();
+    SerialFormat.writeVersion( out, SERIAL_VERSION );
+    SerialFormat.writeString( out, toolKey == null ? null : toolKey.getType() );
+    SerialFormat.writeString( out, toolKey == null ? null : toolKey.getId() );
+    out.writeObject( toolLaunchState );
+  }
+
+  private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    SerialFormat.readVersion( in, ToolSetLtiState.class );
+    String type = SerialFormat.readString( in );
+    String id = SerialFormat.readString( in );
+    toolKey = type == null ? null : new ToolKey( type, id );
+    toolLaunchState = (ToolLaunchState)in.readObject();
+  }
 }
@@ -21,7 +21,7 @@ package uk.ac.leedsbeckett.ltitoolset.backchannel;
  */
 public abstract class BackchannelKey
 {
-  protected String platform;
+  protected final String platform;
 
   public BackchannelKey( String platform )
   {
@@ -15,6 +15,7 @@
  */
 package uk.ac.leedsbeckett.ltitoolset.backchannel;
 
+import uk.ac.leedsbeckett.ltitoolset.util.KeyHash;
 
 /**
  *
@@ -22,12 +23,14 @@ package uk.ac.leedsbeckett.ltitoolset.backchannel;
  */
 public class LtiAutoRegistrationBackchannelKey extends BackchannelKey
 {
-  protected String url;
+  protected final String url;
+  private final int hash;
 
   public LtiAutoRegistrationBackchannelKey( String platform, String url )
   {
     super( platform );
     this.url = url;
+    this.hash = KeyHash.of( platform, url );
   }
   
   
@@ -35,7 +38,7 @@ public class LtiAutoRegistrationBackchannelKey extends BackchannelKey
   @Override
   public int hashCode()
   {
-    return platform.hashCode() | url.hashCode();
+    return hash;
   }
 
   @Override
@@ -55,7 +58,8 @@ public class LtiAutoRegistrationBackchannelKey extends BackchannelKey
     }
     
     final LtiAutoRegistrationBackchannelKey other = (LtiAutoRegistrationBackchannelKey) obj;
-    return this.platform.equals( other.platform )     && 
+    return this.hash == other.hash && 
+            this.platform.equals( other.platform )     && 
             this.url.equals(  other.url );
   }
   
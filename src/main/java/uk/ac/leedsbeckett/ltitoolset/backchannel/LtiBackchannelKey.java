@@ -16,6 +16,7 @@
 package uk.ac.leedsbeckett.ltitoolset.backchannel;
 
 import uk.ac.leedsbeckett.lti.services.LtiServiceScopeSet;
+import uk.ac.leedsbeckett.ltitoolset.util.KeyHash;
 
 /**
  *
@@ -26,6 +27,7 @@ public class LtiBackchannelKey extends BackchannelKey
   private final Class<? extends LtiBackchannel> type;
   private final String url;
   private final String scopespec;
+  private final int hash;
 
   public LtiBackchannelKey( String platform, Class<? extends LtiBackchannel> type, String url, LtiServiceScopeSet scopeSet )
   {
@@ -33,6 +35,7 @@ public class LtiBackchannelKey extends BackchannelKey
     this.type = type;
     this.url = url;
     this.scopespec = scopeSet.getScopeSpecification();
+    this.hash = KeyHash.of( platform, type, url, scopespec );
   }
 
   public Class<? extends LtiBackchannel> getType()
@@ -53,7 +56,7 @@ public class LtiBackchannelKey extends BackchannelKey
   @Override
   public int hashCode()
   {
-    return platform.hashCode() | type.hashCode() | url.hashCode() | scopespec.hashCode();
+    return hash;
   }
 
   @Override
@@ -73,7 +76,8 @@ public class LtiBackchannelKey extends BackchannelKey
     }
     
     final LtiBackchannelKey other = (LtiBackchannelKey) obj;
-    return this.platform.equals( other.platform )     && 
+    return this.hash == other.hash && 
+            this.platform.equals( other.platform )     && 
             this.type.equals(  other.type ) &&
             this.url.equals(  other.url ) &&
             this.scopespec.equals(  other.scopespec );
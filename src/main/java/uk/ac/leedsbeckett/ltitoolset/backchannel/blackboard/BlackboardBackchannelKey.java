@@ -16,6 +16,7 @@
 package uk.ac.leedsbeckett.ltitoolset.backchannel.blackboard;
 
 import uk.ac.leedsbeckett.ltitoolset.backchannel.BackchannelKey;
+import uk.ac.leedsbeckett.ltitoolset.util.KeyHash;
 
 /**
  *
@@ -24,16 +25,19 @@ import uk.ac.leedsbeckett.ltitoolset.backchannel.BackchannelKey;
 public class BlackboardBackchannelKey extends BackchannelKey
 {
 
+  private final int hash;
+  
   public BlackboardBackchannelKey( String platform )
   {
     super( platform );
+    this.hash = KeyHash.of( platform );
   }
 
   
   @Override
   public int hashCode()
   {
-    return platform.hashCode();
+    return hash;
   }
 
   @Override
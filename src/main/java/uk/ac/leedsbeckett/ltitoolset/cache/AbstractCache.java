@@ -0,0 +1,382 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.Configuration;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.integration.CompletionListener;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorException;
+import javax.cache.processor.EntryProcessorResult;
+import javax.cache.processor.MutableEntry;
+
+/**
+ * A base for caches that implement the JCache interface without being
+ * created by a JCache provider. Subclasses supply the basic operations and
+ * this class builds the rest of the interface from them. Caches built this
+ * way have no cache manager, no loader or writer and do not support
+ * entry listeners.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ * @param <V> The value class.
+ */
+public abstract class AbstractCache<K,V> implements Cache<K,V>
+{
+  final String name;
+  final MutableConfiguration<K,V> configuration;
+  volatile boolean closed = false;
+
+  /**
+   * Create a cache with a name and a configuration that describes it.
+   * 
+   * @param name The name of the cache.
+   * @param configuration The configuration reported by getConfiguration().
+   */
+  protected AbstractCache( String name, MutableConfiguration<K,V> configuration )
+  {
+    this.name = name;
+    this.configuration = configuration;
+  }
+
+  /**
+   * Put a value unless the key is already present.
+   * 
+   * @param key The key.
+   * @param value The value.
+   * @return The value that was already present or null if the value was put.
+   */
+  protected abstract V putIfAbsentAndGet( K key, V value );
+  
+  /**
+   * Put a value and return the value it replaced.
+   * 
+   * @param key The key.
+   * @param value The value.
+   * @return The previous value or null.
+   */
+  protected abstract V putAndGet( K key, V value );
+  
+  /**
+   * Remove a key and return the value it mapped to.
+   * 
+   * @param key The key.
+   * @return The previous value or null.
+   */
+  protected abstract V removeAndGet( K key );
+
+  @Override
+  public void put( K key, V value )
+  {
+    putAndGet( key, value );
+  }
+
+  @Override
+  public boolean putIfAbsent( K key, V value )
+  {
+    return putIfAbsentAndGet( key, value ) == null;
+  }
+
+  @Override
+  public V getAndPut( K key, V value )
+  {
+    return putAndGet( key, value );
+  }
+
+  @Override
+  public boolean remove( K key )
+  {
+    return removeAndGet( key ) != null;
+  }
+
+  @Override
+  public V getAndRemove( K key )
+  {
+    return removeAndGet( key );
+  }
+
+  @Override
+  public boolean containsKey( K key )
+  {
+    return get( key ) != null;
+  }
+
+  @Override
+  public Map<K, V> getAll( Set<? extends K> keys )
+  {
+    HashMap<K,V> map = new HashMap<>();
+    for ( K key : keys )
+    {
+      V value = get( key );
+      if ( value != null )
+        map.put( key, value );
+    }
+    return map;
+  }
+
+  @Override
+  public void putAll( Map<? extends K, ? extends V> map )
+  {
+    for ( Map.Entry<? extends K, ? extends V> e : map.entrySet() )
+      put( e.getKey(), e.getValue() );
+  }
+
+  @Override
+  public V getAndReplace( K key, V value )
+  {
+    V old = get( key );
+    if ( old != null && replace( key, old, value ) )
+      return old;
+    return null;
+  }
+
+  @Override
+  public void removeAll( Set<? extends K> keys )
+  {
+    for ( K key : keys )
+      remove( key );
+  }
+
+  @Override
+  public void removeAll()
+  {
+    HashSet<K> keys = new HashSet<>();
+    for ( Cache.Entry<K,V> e : this )
+      keys.add( e.getKey() );
+    removeAll( keys );
+  }
+
+  /**
+   * There is no loader so there is nothing to load. The listener is told
+   * that loading has completed.
+   * 
+   * @param keys Ignored.
+   * @param replaceExistingValues Ignored.
+   * @param completionListener Told that loading completed.
+   */
+  @Override
+  public void loadAll( Set<? extends K> keys, boolean replaceExistingValues, CompletionListener completionListener )
+  {
+    if ( completionListener != null )
+      completionListener.onCompletion();
+  }
+
+  /**
+   * Run an entry processor. Unlike a JCache provider this is not atomic
+   * with respect to other operations on the same key.
+   */
+  @Override
+  public <T> T invoke( K key, EntryProcessor<K, V, T> entryProcessor, Object... arguments ) throws EntryProcessorException
+  {
+    SimpleMutableEntry entry = new SimpleMutableEntry( key, get( key ) );
+    T result;
+    try
+    {
+      result = entryProcessor.process( entry, arguments );
+    }
+    catch ( Exception ex )
+    {
+      throw new EntryProcessorException( ex );
+    }
+    if ( entry.removed )
+      remove( key );
+    else if ( entry.updated )
+      put( key, entry.value );
+    return result;
+  }
+
+  @Override
+  public <T> Map<K, EntryProcessorResult<T>> invokeAll( Set<? extends K> keys, EntryProcessor<K, V, T> entryProcessor, Object... arguments )
+  {
+    HashMap<K,EntryProcessorResult<T>> results = new HashMap<>();
+    for ( K key : keys )
+    {
+      try
+      {
+        T result = invoke( key, entryProcessor, arguments );
+        if ( result != null )
+          results.put( key, () -> result );
+      }
+      catch ( EntryProcessorException ex )
+      {
+        results.put( key, () -> { throw ex; } );
+      }
+    }
+    return results;
+  }
+
+  @Override
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * This cache was not created by a cache manager.
+   * 
+   * @return Always null.
+   */
+  @Override
+  public CacheManager getCacheManager()
+  {
+    return null;
+  }
+
+  @Override
+  public void close()
+  {
+    closed = true;
+  }
+
+  @Override
+  public boolean isClosed()
+  {
+    return closed;
+  }
+
+  @Override
+  public <C extends Configuration<K, V>> C getConfiguration( Class<C> clazz )
+  {
+    if ( clazz.isInstance( configuration ) )
+      return clazz.cast( configuration );
+    throw new IllegalArgumentException( "Configuration is not a " + clazz.getName() );
+  }
+
+  @Override
+  public <T> T unwrap( Class<T> clazz )
+  {
+    if ( clazz.isInstance( this ) )
+      return clazz.cast( this );
+    throw new IllegalArgumentException( "Cache is not a " + clazz.getName() );
+  }
+
+  @Override
+  public void registerCacheEntryListener( CacheEntryListenerConfiguration<K, V> cacheEntryListenerConfiguration )
+  {
+    throw new UnsupportedOperationException( "Cache " + name + " does not support entry listeners." );
+  }
+
+  @Override
+  public void deregisterCacheEntryListener( CacheEntryListenerConfiguration<K, V> cacheEntryListenerConfiguration )
+  {
+    throw new UnsupportedOperationException( "Cache " + name + " does not support entry listeners." );
+  }
+  
+  /**
+   * A cache entry which is a snapshot of a key and value.
+   * 
+   * @param <K> The key class.
+   * @param <V> The value class.
+   */
+  public static class SimpleEntry<K,V> implements Cache.Entry<K,V>
+  {
+    final K key;
+    final V value;
+
+    public SimpleEntry( K key, V value )
+    {
+      this.key = key;
+      this.value = value;
+    }
+    
+    @Override
+    public K getKey()
+    {
+      return key;
+    }
+
+    @Override
+    public V getValue()
+    {
+      return value;
+    }
+
+    @Override
+    public <T> T unwrap( Class<T> clazz )
+    {
+      if ( clazz.isInstance( this ) )
+        return clazz.cast( this );
+      throw new IllegalArgumentException( "Entry is not a " + clazz.getName() );
+    }
+  }
+  
+  /**
+   * The entry given to entry processors which records what they did.
+   */
+  class SimpleMutableEntry implements MutableEntry<K,V>
+  {
+    final K key;
+    V value;
+    boolean updated = false;
+    boolean removed = false;
+
+    SimpleMutableEntry( K key, V value )
+    {
+      this.key = key;
+      this.value = value;
+    }
+    
+    @Override
+    public boolean exists()
+    {
+      return value != null;
+    }
+
+    @Override
+    public void remove()
+    {
+      removed = value != null;
+      updated = false;
+      value = null;
+    }
+
+    @Override
+    public void setValue( V value )
+    {
+      this.value = value;
+      updated = true;
+      removed = false;
+    }
+
+    @Override
+    public K getKey()
+    {
+      return key;
+    }
+
+    @Override
+    public V getValue()
+    {
+      return value;
+    }
+
+    @Override
+    public <T> T unwrap( Class<T> clazz )
+    {
+      if ( clazz.isInstance( this ) )
+        return clazz.cast( this );
+      throw new IllegalArgumentException( "Entry is not a " + clazz.getName() );
+    }
+  }
+}
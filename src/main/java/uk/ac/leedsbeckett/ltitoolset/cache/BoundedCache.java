@@ -0,0 +1,753 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntBiFunction;
+import javax.cache.Cache;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.AccessedExpiryPolicy;
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+
+/**
+ * An in-process cache with a maximum total weight which needs no JCache
+ * provider. Reads do not lock. Eviction uses the W-TinyLFU policy: new
+ * entries go into a small LRU window and when they leave it they are only
+ * admitted to the main area if a frequency sketch says they are used more
+ * often than the entry that would be evicted to make room. The main area is
+ * a segmented LRU so entries that have been used twice are protected from
+ * a scan of entries that are only used once. This suits access patterns
+ * where a few courses are much busier than the rest. Caches of entries 
+ * that are each used about as often as the others, where the newest are 
+ * the most likely to be wanted, can use plain LRU eviction instead.
+ * 
+ * Entries expire a fixed time after they were created or a fixed time
+ * after they were last read, depending on the expiry type.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ * @param <V> The value class.
+ */
+public class BoundedCache<K,V> extends AbstractCache<K,V>
+{
+  /**
+   * When entries expire.
+   */
+  public enum ExpiryType
+  {
+    /**
+     * A fixed time after the entry was put.
+     */
+    CREATED,
+    
+    /**
+     * A fixed time after the entry was last read or put.
+     */
+    ACCESSED
+  }
+  
+  /**
+   * How entries are chosen for eviction.
+   */
+  public enum Eviction
+  {
+    /**
+     * W-TinyLFU, where a new entry only displaces an older one that is 
+     * used less often.
+     */
+    TINY_LFU,
+    
+    /**
+     * The least recently used entry is evicted, with no admission test.
+     */
+    LRU
+  }
+  
+  static final int WINDOW = 1;
+  static final int PROBATION = 2;
+  static final int PROTECTED = 3;
+  
+  final ConcurrentHashMap<K,Node<K,V>> data = new ConcurrentHashMap<>();
+  final ReentrantLock lock = new ReentrantLock();
+  final FrequencySketch sketch;
+  final ToIntBiFunction<? super K,? super V> weigher;
+  final ExpiryType expiryType;
+  final long expiryNanos;
+  
+  final long maxWeight;
+  final long windowMaxWeight;
+  final long protectedMaxWeight;
+  long windowWeight = 0L;
+  long protectedWeight = 0L;
+  long totalWeight = 0L;
+  long nextSweep;
+  
+  final Deque<K,V> window = new Deque<>();
+  final Deque<K,V> probation = new Deque<>();
+  final Deque<K,V> protectedDeque = new Deque<>();
+  
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  final LongAdder expirations = new LongAdder();
+  
+  volatile BiConsumer<? super K,? super V> removalListener = null;
+
+  /**
+   * Create a cache where every entry has a weight of one, so the maximum 
+   * weight is the maximum number of entries.
+   * 
+   * @param name The name of the cache.
+   * @param maxEntries The maximum number of entries.
+   * @param expiryType When entries expire.
+   * @param expiry How long until entries expire. Zero or less means never.
+   * @param unit The unit of the expiry time.
+   */
+  public BoundedCache( String name, long maxEntries, ExpiryType expiryType, long expiry, TimeUnit unit )
+  {
+    this( name, maxEntries, null, expiryType, expiry, unit );
+  }
+  
+  /**
+   * Create a cache with a maximum total weight.
+   * 
+   * @param name The name of the cache.
+   * @param maxWeight The maximum total weight of all the entries.
+   * @param weigher Calculates the weight of an entry or null to give every
+   * entry a weight of one.
+   * @param expiryType When entries expire.
+   * @param expiry How long until entries expire. Zero or less means never.
+   * @param unit The unit of the expiry time.
+   */
+  public BoundedCache( String name, long maxWeight, ToIntBiFunction<? super K,? super V> weigher, ExpiryType expiryType, long expiry, TimeUnit unit )
+  {
+    this( name, maxWeight, weigher, Eviction.TINY_LFU, expiryType, expiry, unit );
+  }
+  
+  /**
+   * Create a cache with a maximum total weight and a choice of eviction
+   * policy.
+   * 
+   * @param name The name of the cache.
+   * @param maxWeight The maximum total weight of all the entries.
+   * @param weigher Calculates the weight of an entry or null to give every
+   * entry a weight of one.
+   * @param eviction How entries are chosen for eviction.
+   * @param expiryType When entries expire.
+   * @param expiry How long until entries expire. Zero or less means never.
+   * @param unit The unit of the expiry time.
+   */
+  public BoundedCache( String name, long maxWeight, ToIntBiFunction<? super K,? super V> weigher, Eviction eviction, ExpiryType expiryType, long expiry, TimeUnit unit )
+  {
+    super( name, describe( expiryType, expiry, unit ) );
+    if ( maxWeight < 1 )
+      throw new IllegalArgumentException( "Maximum weight must be at least one." );
+    this.maxWeight = maxWeight;
+    // With LRU everything lives in the window, which is an LRU queue, and 
+    // entries are evicted as they leave it.
+    this.windowMaxWeight = eviction == Eviction.LRU ? maxWeight : Math.max( 1L, maxWeight / 100L );
+    this.protectedMaxWeight = (maxWeight - windowMaxWeight) * 4L / 5L;
+    this.weigher = weigher;
+    this.expiryType = expiryType;
+    this.expiryNanos = expiry > 0 ? unit.toNanos( expiry ) : 0L;
+    this.sketch = eviction == Eviction.LRU ? null : new FrequencySketch( maxWeight );
+    this.nextSweep = System.nanoTime() + sweepInterval();
+  }
+  
+  static <K,V> MutableConfiguration<K,V> describe( ExpiryType expiryType, long expiry, TimeUnit unit )
+  {
+    MutableConfiguration<K,V> config = new MutableConfiguration<K,V>().setStoreByValue( false );
+    if ( expiry > 0 )
+    {
+      Duration d = new Duration( unit, expiry );
+      config.setExpiryPolicyFactory( expiryType == ExpiryType.ACCESSED 
+              ? AccessedExpiryPolicy.factoryOf( d ) 
+              : CreatedExpiryPolicy.factoryOf( d ) );
+    }
+    return config;
+  }
+  
+  private long sweepInterval()
+  {
+    return expiryNanos > 0 ? Math.max( TimeUnit.SECONDS.toNanos( 1 ), expiryNanos / 2 ) : Long.MAX_VALUE / 2;
+  }
+  
+  private boolean isExpired( Node<K,V> node, long now )
+  {
+    return expiryNanos > 0 && now - node.expiresAt >= 0;
+  }
+  
+  @Override
+  public V get( K key )
+  {
+    Node<K,V> node = data.get( key );
+    if ( node == null )
+    {
+      misses.increment();
+      return null;
+    }
+    long now = System.nanoTime();
+    if ( isExpired( node, now ) )
+    {
+      misses.increment();
+      lock.lock();
+      try
+      {
+        if ( data.remove( key, node ) )
+        {
+          unlink( node );
+          expirations.increment();
+          removed( node );
+        }
+      }
+      finally
+      {
+        lock.unlock();
+      }
+      return null;
+    }
+    hits.increment();
+    if ( expiryType == ExpiryType.ACCESSED && expiryNanos > 0 )
+      node.expiresAt = now + expiryNanos;
+    // Recording reads is best effort. If a writer holds the lock the read
+    // is left out of the sketch and the LRU order rather than waiting.
+    if ( lock.tryLock() )
+    {
+      try
+      {
+        onAccess( node );
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+    return node.value;
+  }
+
+  @Override
+  protected V putAndGet( K key, V value )
+  {
+    if ( key == null || value == null )
+      throw new NullPointerException();
+    lock.lock();
+    try
+    {
+      long now = System.nanoTime();
+      Node<K,V> node = newNode( key, value, now );
+      Node<K,V> old = data.put( key, node );
+      V previous = null;
+      if ( old != null )
+      {
+        unlink( old );
+        if ( !isExpired( old, now ) )
+          previous = old.value;
+      }
+      onAdd( node );
+      maintain( now );
+      return previous;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected V putIfAbsentAndGet( K key, V value )
+  {
+    if ( key == null || value == null )
+      throw new NullPointerException();
+    lock.lock();
+    try
+    {
+      long now = System.nanoTime();
+      Node<K,V> old = data.get( key );
+      if ( old != null && !isExpired( old, now ) )
+        return old.value;
+      Node<K,V> node = newNode( key, value, now );
+      data.put( key, node );
+      if ( old != null )
+        unlink( old );
+      onAdd( node );
+      maintain( now );
+      return null;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected V removeAndGet( K key )
+  {
+    lock.lock();
+    try
+    {
+      Node<K,V> old = data.remove( key );
+      if ( old == null )
+        return null;
+      unlink( old );
+      return isExpired( old, System.nanoTime() ) ? null : old.value;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove( K key, V oldValue )
+  {
+    lock.lock();
+    try
+    {
+      Node<K,V> old = data.get( key );
+      if ( old == null || isExpired( old, System.nanoTime() ) || !old.value.equals( oldValue ) )
+        return false;
+      data.remove( key );
+      unlink( old );
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean replace( K key, V oldValue, V newValue )
+  {
+    lock.lock();
+    try
+    {
+      Node<K,V> old = data.get( key );
+      if ( old == null || isExpired( old, System.nanoTime() ) || !old.value.equals( oldValue ) )
+        return false;
+      putAndGet( key, newValue );
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean replace( K key, V value )
+  {
+    lock.lock();
+    try
+    {
+      Node<K,V> old = data.get( key );
+      if ( old == null || isExpired( old, System.nanoTime() ) )
+        return false;
+      putAndGet( key, value );
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void clear()
+  {
+    lock.lock();
+    try
+    {
+      // Reset the nodes so a reader that still holds one leaves the
+      // queues alone.
+      for ( Node<K,V> node : data.values() )
+        node.queue = 0;
+      data.clear();
+      window.clear();
+      probation.clear();
+      protectedDeque.clear();
+      windowWeight = 0L;
+      protectedWeight = 0L;
+      totalWeight = 0L;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Iterator<Cache.Entry<K, V>> iterator()
+  {
+    Iterator<Node<K,V>> nodes = data.values().iterator();
+    return new Iterator<Cache.Entry<K, V>>()
+    {
+      Node<K,V> next = null;
+      Node<K,V> last = null;
+      
+      @Override
+      public boolean hasNext()
+      {
+        long now = System.nanoTime();
+        while ( next == null && nodes.hasNext() )
+        {
+          Node<K,V> n = nodes.next();
+          if ( !isExpired( n, now ) )
+            next = n;
+        }
+        return next != null;
+      }
+
+      @Override
+      public Cache.Entry<K, V> next()
+      {
+        if ( !hasNext() )
+          throw new NoSuchElementException();
+        last = next;
+        next = null;
+        return new SimpleEntry<>( last.key, last.value );
+      }
+
+      @Override
+      public void remove()
+      {
+        if ( last == null )
+          throw new IllegalStateException();
+        BoundedCache.this.remove( last.key, last.value );
+        last = null;
+      }
+    };
+  }
+  
+  /**
+   * The number of entries, including any that have expired but have not
+   * yet been removed.
+   * 
+   * @return The number of entries.
+   */
+  public int size()
+  {
+    return data.size();
+  }
+
+  /**
+   * The total weight of all the entries.
+   * 
+   * @return The weight.
+   */
+  public long getWeight()
+  {
+    lock.lock();
+    try
+    {
+      return totalWeight;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Set something to be told when the cache drops an entry by itself, 
+   * because it was evicted to make room or it expired. Entries that 
+   * callers remove or replace are not reported. The listener is called 
+   * with the cache's lock held, so it must be quick and must not use the
+   * cache.
+   * 
+   * @param listener Given the key and value of each dropped entry, or null
+   * for no listener.
+   */
+  public void setRemovalListener( BiConsumer<? super K,? super V> listener )
+  {
+    this.removalListener = listener;
+  }
+  
+  public long getMaxWeight()
+  {
+    return maxWeight;
+  }
+  
+  public long getHitCount()
+  {
+    return hits.sum();
+  }
+  
+  public long getMissCount()
+  {
+    return misses.sum();
+  }
+  
+  public long getEvictionCount()
+  {
+    return evictions.sum();
+  }
+  
+  public long getExpirationCount()
+  {
+    return expirations.sum();
+  }
+  
+  private Node<K,V> newNode( K key, V value, long now )
+  {
+    int weight = weigher == null ? 1 : Math.max( 0, weigher.applyAsInt( key, value ) );
+    return new Node<>( key, value, weight, now + expiryNanos );
+  }
+  
+  /**
+   * A new entry always starts in the window. Lock must be held.
+   */
+  private void onAdd( Node<K,V> node )
+  {
+    if ( sketch != null )
+      sketch.increment( node.key );
+    node.queue = WINDOW;
+    window.addLast( node );
+    windowWeight += node.weight;
+    totalWeight += node.weight;
+  }
+  
+  /**
+   * An entry that is read again moves to the back of its queue, unless it
+   * is on probation in which case it is promoted to protected. Lock must be
+   * held.
+   */
+  private void onAccess( Node<K,V> node )
+  {
+    if ( sketch != null )
+      sketch.increment( node.key );
+    switch ( node.queue )
+    {
+      case WINDOW:
+        window.moveToLast( node );
+        break;
+      case PROBATION:
+        probation.remove( node );
+        node.queue = PROTECTED;
+        protectedDeque.addLast( node );
+        protectedWeight += node.weight;
+        while ( protectedWeight > protectedMaxWeight && protectedDeque.first() != node )
+        {
+          Node<K,V> demoted = protectedDeque.first();
+          protectedDeque.remove( demoted );
+          protectedWeight -= demoted.weight;
+          demoted.queue = PROBATION;
+          probation.addLast( demoted );
+        }
+        break;
+      case PROTECTED:
+        protectedDeque.moveToLast( node );
+        break;
+      default:
+        // Already removed by another thread
+    }
+  }
+  
+  /**
+   * Take a node out of whichever queue it is in. Lock must be held.
+   */
+  private void unlink( Node<K,V> node )
+  {
+    switch ( node.queue )
+    {
+      case WINDOW:
+        window.remove( node );
+        windowWeight -= node.weight;
+        break;
+      case PROBATION:
+        probation.remove( node );
+        break;
+      case PROTECTED:
+        protectedDeque.remove( node );
+        protectedWeight -= node.weight;
+        break;
+      default:
+        return;
+    }
+    totalWeight -= node.weight;
+    node.queue = 0;
+  }
+  
+  private void evict( Node<K,V> node )
+  {
+    data.remove( node.key, node );
+    unlink( node );
+    evictions.increment();
+    removed( node );
+  }
+  
+  /**
+   * Tell the removal listener that the cache dropped an entry. Lock must 
+   * be held.
+   */
+  private void removed( Node<K,V> node )
+  {
+    BiConsumer<? super K,? super V> listener = removalListener;
+    if ( listener != null )
+      listener.accept( node.key, node.value );
+  }
+  
+  /**
+   * Remove expired entries from time to time then bring the weight back
+   * within bounds. Lock must be held.
+   */
+  private void maintain( long now )
+  {
+    if ( now - nextSweep >= 0 )
+    {
+      nextSweep = now + sweepInterval();
+      for ( Node<K,V> node : data.values() )
+      {
+        if ( isExpired( node, now ) && data.remove( node.key, node ) )
+        {
+          unlink( node );
+          expirations.increment();
+          removed( node );
+        }
+      }
+    }
+    
+    // Entries leaving the window join the back of probation and become 
+    // candidates for admission to the main area.
+    Node<K,V> candidate = null;
+    while ( windowWeight > windowMaxWeight && window.first() != null )
+    {
+      Node<K,V> node = window.first();
+      window.remove( node );
+      windowWeight -= node.weight;
+      node.queue = PROBATION;
+      probation.addLast( node );
+      if ( candidate == null )
+        candidate = node;
+    }
+    
+    while ( totalWeight > maxWeight )
+    {
+      Node<K,V> victim = probation.first();
+      if ( victim == null )
+      {
+        Node<K,V> node = protectedDeque.first() != null ? protectedDeque.first() : window.first();
+        if ( node == null )
+          break;
+        evict( node );
+        continue;
+      }
+      if ( sketch == null || candidate == null || candidate == victim || candidate.queue != PROBATION )
+      {
+        if ( candidate == victim )
+          candidate = probation.after( victim );
+        evict( victim );
+        continue;
+      }
+      // The candidate has to be used more often than the victim to get in.
+      if ( sketch.frequency( candidate.key ) > sketch.frequency( victim.key ) )
+        evict( victim );
+      else
+      {
+        Node<K,V> next = probation.after( candidate );
+        evict( candidate );
+        candidate = next;
+      }
+    }
+  }
+  
+  static final class Node<K,V>
+  {
+    final K key;
+    final V value;
+    final int weight;
+    volatile long expiresAt;
+    int queue = 0;
+    Node<K,V> prev;
+    Node<K,V> next;
+
+    Node( K key, V value, int weight, long expiresAt )
+    {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+      this.expiresAt = expiresAt;
+    }
+  }
+  
+  /**
+   * A doubly linked list of nodes in least recently used order. Lock must
+   * be held.
+   */
+  static final class Deque<K,V>
+  {
+    Node<K,V> head = null;
+    Node<K,V> tail = null;
+    
+    Node<K,V> first()
+    {
+      return head;
+    }
+    
+    Node<K,V> after( Node<K,V> node )
+    {
+      return node.next;
+    }
+    
+    void addLast( Node<K,V> node )
+    {
+      node.prev = tail;
+      node.next = null;
+      if ( tail == null )
+        head = node;
+      else
+        tail.next = node;
+      tail = node;
+    }
+    
+    void remove( Node<K,V> node )
+    {
+      if ( node.prev == null )
+        head = node.next;
+      else
+        node.prev.next = node.next;
+      if ( node.next == null )
+        tail = node.prev;
+      else
+        node.next.prev = node.prev;
+      node.prev = null;
+      node.next = null;
+    }
+    
+    void moveToLast( Node<K,V> node )
+    {
+      if ( node != tail )
+      {
+        remove( node );
+        addLast( node );
+      }
+    }
+    
+    void clear()
+    {
+      head = null;
+      tail = null;
+    }
+  }
+}
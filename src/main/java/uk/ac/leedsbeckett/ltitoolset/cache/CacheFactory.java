@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.AccessedExpiryPolicy;
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+
+/**
+ * Creates the caches used by stores and by the LTI state store. Either
+ * asks the JCache provider for a cache or creates a built in BoundedCache.
+ * The built in cache means a web application does not need to include a
+ * JCache provider and memory use is bounded. A provider's cache can have
+ * a near cache in front of it. Each named cache can have its own settings
+ * and caches without settings of their own use the defaults.
+ * 
+ * @author maber01
+ */
+public class CacheFactory
+{
+  static final Logger logger = Logger.getLogger( CacheFactory.class.getName() );
+  
+  private static volatile CacheFactory defaultFactory = new CacheFactory();
+  
+  final CacheSettings defaults;
+  final Map<String,CacheSettings> named;
+
+  /**
+   * A factory which uses the JCache provider with the default settings.
+   */
+  public CacheFactory()
+  {
+    this( new CacheSettings(), Collections.emptyMap() );
+  }
+
+  /**
+   * Create a factory.
+   * 
+   * @param defaults Settings for caches which are not named in the map.
+   * @param named Settings for specific caches, by name.
+   */
+  public CacheFactory( CacheSettings defaults, Map<String,CacheSettings> named )
+  {
+    this.defaults = defaults;
+    this.named = new HashMap<>( named );
+  }
+  
+  /**
+   * Get the factory used by stores that are not given a cache.
+   * 
+   * @return The factory.
+   */
+  public static CacheFactory getDefault()
+  {
+    return defaultFactory;
+  }
+
+  /**
+   * Set the factory used by stores that are not given a cache. This needs
+   * to be done before the stores are created.
+   * 
+   * @param factory The factory.
+   */
+  public static void setDefault( CacheFactory factory )
+  {
+    defaultFactory = factory;
+  }
+  
+  /**
+   * Get the settings that apply to a named cache.
+   * 
+   * @param name The name of the cache.
+   * @return The settings.
+   */
+  public CacheSettings getSettings( String name )
+  {
+    return named.getOrDefault( name, defaults );
+  }
+  
+  /**
+   * Create a cache.
+   * 
+   * @param <K> The key class.
+   * @param <V> The value class.
+   * @param name The name of the cache.
+   * @param expiry How long entries last unless the settings say otherwise.
+   * @return The new cache.
+   */
+  public <K,V> Cache<K,V> createCache( String name, Duration expiry )
+  {
+    CacheSettings settings = getSettings( name );
+    if ( settings.getExpirySeconds() != null )
+      expiry = settings.getExpirySeconds() > 0 
+              ? new Duration( TimeUnit.SECONDS, settings.getExpirySeconds() ) 
+              : Duration.ETERNAL;
+    logger.log( Level.INFO, "Creating cache {0} {1}", new Object[]{name, settings} );
+    
+    if ( settings.isBuiltIn() )
+    {
+      if ( settings.isStoreByValue() )
+        logger.log( Level.FINE, "Built in cache {0} always stores by reference.", name );
+      long time = expiry.isEternal() ? 0L : expiry.getDurationAmount();
+      TimeUnit unit = expiry.isEternal() ? TimeUnit.MILLISECONDS : expiry.getTimeUnit();
+      return new BoundedCache<>( name, settings.getMaxEntries(), settings.getExpiryType(), time, unit );
+    }
+    
+    logger.log( Level.FINE, "Caching provider class {0}", Caching.getCachingProvider().getClass().getName() );
+    logger.log( Level.FINE, "Cache {0} size is left to the JCache provider, maxEntries is only used by built in caches.", name );
+    CacheManager manager = Caching.getCachingProvider().getCacheManager();
+    MutableConfiguration<K,V> config = new MutableConfiguration<K,V>()
+        .setStoreByValue( settings.isStoreByValue() )
+        .setStatisticsEnabled( settings.isStatisticsEnabled() )
+        .setManagementEnabled( settings.isStatisticsEnabled() )
+        .setExpiryPolicyFactory( settings.getExpiryType() == BoundedCache.ExpiryType.ACCESSED 
+                ? AccessedExpiryPolicy.factoryOf( expiry )
+                : CreatedExpiryPolicy.factoryOf( expiry ) );
+    Cache<K,V> cache = manager.createCache( name, config );
+    if ( settings.getNearMaxEntries() > 0 )
+      return new NearCache<>( cache, settings.getNearMaxEntries(), settings.getNearExpirySeconds(), TimeUnit.SECONDS );
+    return cache;
+  }
+}
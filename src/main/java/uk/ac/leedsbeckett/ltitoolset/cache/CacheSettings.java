@@ -0,0 +1,196 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+/**
+ * How one named cache should be set up. Settings that are null are left
+ * for the code that creates the cache to decide.
+ * 
+ * @author maber01
+ */
+public class CacheSettings
+{
+  boolean builtIn = false;
+  boolean storeByValue = true;
+  BoundedCache.ExpiryType expiryType = BoundedCache.ExpiryType.CREATED;
+  Long expirySeconds = null;
+  boolean statisticsEnabled = false;
+  long maxEntries = 10000L;
+  long nearMaxEntries = 0L;
+  long nearExpirySeconds = 30L;
+
+  /**
+   * Settings with the library defaults. The JCache provider is used, 
+   * entries are stored by value, as JCache does by default, and expire a
+   * set time after creation.
+   */
+  public CacheSettings()
+  {
+  }
+  
+  /**
+   * Copy settings, so that named caches can start from the defaults.
+   * 
+   * @param other The settings to copy.
+   */
+  public CacheSettings( CacheSettings other )
+  {
+    this.builtIn = other.builtIn;
+    this.storeByValue = other.storeByValue;
+    this.expiryType = other.expiryType;
+    this.expirySeconds = other.expirySeconds;
+    this.statisticsEnabled = other.statisticsEnabled;
+    this.maxEntries = other.maxEntries;
+    this.nearMaxEntries = other.nearMaxEntries;
+    this.nearExpirySeconds = other.nearExpirySeconds;
+  }
+
+  public boolean isBuiltIn()
+  {
+    return builtIn;
+  }
+
+  /**
+   * Use the built in BoundedCache instead of asking the JCache provider.
+   * 
+   * @param builtIn True for the built in cache.
+   */
+  public void setBuiltIn( boolean builtIn )
+  {
+    this.builtIn = builtIn;
+  }
+
+  public boolean isStoreByValue()
+  {
+    return storeByValue;
+  }
+
+  /**
+   * Store by value means the provider copies entries, usually by 
+   * serializing them, on every get and put. Store by reference is much
+   * cheaper but callers then share the cached objects, so changes made to
+   * an entry are visible to other threads before update() is called. The
+   * built in cache always stores by reference.
+   * 
+   * @param storeByValue True to store by value.
+   */
+  public void setStoreByValue( boolean storeByValue )
+  {
+    this.storeByValue = storeByValue;
+  }
+
+  public BoundedCache.ExpiryType getExpiryType()
+  {
+    return expiryType;
+  }
+
+  public void setExpiryType( BoundedCache.ExpiryType expiryType )
+  {
+    this.expiryType = expiryType;
+  }
+
+  /**
+   * How long entries last in seconds. Zero means they never expire.
+   * 
+   * @return The number of seconds or null to use the default for the cache.
+   */
+  public Long getExpirySeconds()
+  {
+    return expirySeconds;
+  }
+
+  public void setExpirySeconds( Long expirySeconds )
+  {
+    this.expirySeconds = expirySeconds;
+  }
+
+  public boolean isStatisticsEnabled()
+  {
+    return statisticsEnabled;
+  }
+
+  /**
+   * Ask the JCache provider to keep statistics and publish them with JMX.
+   * The built in cache always keeps statistics.
+   * 
+   * @param statisticsEnabled True to keep statistics.
+   */
+  public void setStatisticsEnabled( boolean statisticsEnabled )
+  {
+    this.statisticsEnabled = statisticsEnabled;
+  }
+
+  public long getMaxEntries()
+  {
+    return maxEntries;
+  }
+
+  /**
+   * The maximum number of entries. Only the built in cache can enforce this
+   * because JCache has no standard setting for it.
+   * 
+   * @param maxEntries The maximum number of entries.
+   */
+  public void setMaxEntries( long maxEntries )
+  {
+    this.maxEntries = maxEntries;
+  }
+  
+  public long getNearMaxEntries()
+  {
+    return nearMaxEntries;
+  }
+
+  /**
+   * Put a near cache of this many entries in front of a JCache provider's
+   * cache, for providers that share caches between servers. Zero, the
+   * default, means no near cache. Ignored for built in caches.
+   * 
+   * @param nearMaxEntries The maximum number of entries kept locally.
+   */
+  public void setNearMaxEntries( long nearMaxEntries )
+  {
+    this.nearMaxEntries = nearMaxEntries;
+  }
+
+  public long getNearExpirySeconds()
+  {
+    return nearExpirySeconds;
+  }
+
+  /**
+   * How long the near cache keeps an entry, which limits how out of date
+   * it can get if an invalidation is missed.
+   * 
+   * @param nearExpirySeconds The number of seconds.
+   */
+  public void setNearExpirySeconds( long nearExpirySeconds )
+  {
+    this.nearExpirySeconds = nearExpirySeconds;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return (builtIn ? "builtin" : "jcache") 
+            + " storeByValue=" + (storeByValue && !builtIn)
+            + " expiry=" + expiryType + "/" + (expirySeconds == null ? "default" : expirySeconds + "s")
+            + " statistics=" + statisticsEnabled 
+            + " maxEntries=" + maxEntries
+            + ( nearMaxEntries > 0 && !builtIn ? " near=" + nearMaxEntries + "/" + nearExpirySeconds + "s" : "" );
+  }
+}
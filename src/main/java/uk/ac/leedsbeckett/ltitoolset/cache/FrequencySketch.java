@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+/**
+ * A count-min sketch which estimates how often keys have been seen
+ * recently, using four bit counters so it takes little memory. When enough
+ * increments have been recorded every counter is halved so that the
+ * sketch follows changes in popularity.
+ * 
+ * Not thread safe, callers must hold a lock.
+ * 
+ * @author maber01
+ */
+class FrequencySketch
+{
+  static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+  static final long RESET_MASK = 0x7777777777777777L;
+  static final long ONE_MASK = 0x1111111111111111L;
+  
+  final long[] table;
+  final int tableMask;
+  final int sampleSize;
+  int size = 0;
+
+  /**
+   * Create a sketch big enough for a given number of entries.
+   * 
+   * @param maximumSize The expected maximum number of entries in the cache.
+   */
+  FrequencySketch( long maximumSize )
+  {
+    int n = Integer.highestOneBit( (int)Math.max( 16L, Math.min( maximumSize, 1L << 24 ) ) - 1 ) << 1;
+    table = new long[n];
+    tableMask = n - 1;
+    sampleSize = 10 * n;
+  }
+  
+  /**
+   * Estimate how many times the key has been seen, up to 15.
+   * 
+   * @param key The key.
+   * @return The estimated frequency.
+   */
+  int frequency( Object key )
+  {
+    int hash = spread( key.hashCode() );
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for ( int i = 0; i < 4; i++ )
+    {
+      int index = indexOf( hash, i );
+      int count = (int)((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min( frequency, count );
+    }
+    return frequency;
+  }
+  
+  /**
+   * Record that the key has been seen.
+   * 
+   * @param key The key.
+   */
+  void increment( Object key )
+  {
+    int hash = spread( key.hashCode() );
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for ( int i = 0; i < 4; i++ )
+      added |= incrementAt( indexOf( hash, i ), start + i );
+    if ( added && ++size >= sampleSize )
+      reset();
+  }
+  
+  private boolean incrementAt( int i, int j )
+  {
+    int offset = j << 2;
+    long mask = 0xfL << offset;
+    if ( (table[i] & mask) == mask )
+      return false;
+    table[i] += 1L << offset;
+    return true;
+  }
+  
+  private int indexOf( int item, int i )
+  {
+    long hash = (item + SEED[i]) * SEED[i];
+    hash += hash >>> 32;
+    return ((int)hash) & tableMask;
+  }
+  
+  private void reset()
+  {
+    int count = 0;
+    for ( int i = 0; i < table.length; i++ )
+    {
+      count += Long.bitCount( table[i] & ONE_MASK );
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size = (size - (count >>> 2)) / 2;
+  }
+  
+  static int spread( int x )
+  {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.CacheEntryCreatedListener;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryListener;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.CacheEntryUpdatedListener;
+import uk.ac.leedsbeckett.ltitoolset.util.KeyHash;
+
+/**
+ * A small in-process cache in front of a JCache which may be shared
+ * between servers, for example by a clustered provider. Reads of hot keys
+ * are answered from local memory without a network round trip or 
+ * deserialization. Writes go through to the shared cache. A listener on 
+ * the shared cache drops local copies when any server changes an entry, 
+ * and local copies expire after a short time in case an event is lost.
+ * Events caused by this server's own writes are recognised and don't drop
+ * the copy that was just stored.
+ * 
+ * Like the built in cache, local copies are stored by reference so 
+ * callers of get() on the same server share objects.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ * @param <V> The value class.
+ */
+public class NearCache<K,V> extends AbstractCache<K,V>
+{
+  static final Logger logger = Logger.getLogger( NearCache.class.getName() );
+  static final int STRIPES = 1024;
+  
+  final Cache<K,V> remote;
+  final BoundedCache<K,V> local;
+  final CacheEntryListenerConfiguration<K,V> listenerConfiguration;
+  final long ownWriteMillis;
+  
+  /**
+   * Invalidation stamps, one for each stripe of keys. A value read from 
+   * the shared cache is not kept locally if its key's stripe was 
+   * invalidated during the read, so changes to other keys almost never 
+   * stop a key from being kept.
+   */
+  final AtomicLongArray stamps = new AtomicLongArray( STRIPES );
+  
+  /**
+   * Writes by this server whose events haven't arrived yet, by key. Forgotten
+   * after the local expiry time in case the shared cache doesn't send an 
+   * event.
+   */
+  final ConcurrentHashMap<K,OwnWrites> ownWrites = new ConcurrentHashMap<>();
+  
+  final LongAdder invalidations = new LongAdder();
+  final LongAdder remoteReads = new LongAdder();
+
+  /**
+   * Put a near cache in front of a cache.
+   * 
+   * @param remote The shared cache.
+   * @param maxEntries The most entries to keep locally.
+   * @param expiry How long local copies last.
+   * @param unit The unit of expiry.
+   */
+  public NearCache( Cache<K,V> remote, long maxEntries, long expiry, TimeUnit unit )
+  {
+    super( remote.getName(), new MutableConfiguration<>() );
+    this.remote = remote;
+    this.local = new BoundedCache<>( remote.getName() + "-near", maxEntries, BoundedCache.ExpiryType.CREATED, expiry, unit );
+    this.ownWriteMillis = Math.max( 1L, unit.toMillis( expiry ) );
+    this.listenerConfiguration = new MutableCacheEntryListenerConfiguration<>( 
+            new InvalidatorFactory<>( this ), null, false, false );
+    remote.registerCacheEntryListener( listenerConfiguration );
+  }
+
+  static int stripe( Object key )
+  {
+    return KeyHash.of( key ) & ( STRIPES - 1 );
+  }
+  
+  /**
+   * Drop the local copy of a key.
+   * 
+   * @param key The key.
+   */
+  void invalidate( K key )
+  {
+    invalidations.increment();
+    stamps.incrementAndGet( stripe( key ) );
+    local.remove( key );
+  }
+  
+  /**
+   * Drop the local copy of a key that was created or updated in the shared
+   * cache, unless the change was one of this server's own writes.
+   * 
+   * @param key The key.
+   */
+  void changed( K key )
+  {
+    if ( !isOwnWrite( key ) )
+      invalidate( key );
+  }
+  
+  /**
+   * Note that this server is about to write a key, so that the event it 
+   * causes can be recognised.
+   * 
+   * @param key The key.
+   */
+  private void expectOwnWrite( K key )
+  {
+    long now = System.currentTimeMillis();
+    ownWrites.compute( key, ( k, w ) -> 
+            new OwnWrites( w == null || w.expires < now ? 1 : w.count + 1, now + ownWriteMillis ) );
+  }
+  
+  /**
+   * Take back expectOwnWrite() after a write that didn't happen.
+   * 
+   * @param key The key.
+   */
+  private void cancelOwnWrite( K key )
+  {
+    ownWrites.computeIfPresent( key, ( k, w ) -> w.count <= 1 ? null : new OwnWrites( w.count - 1, w.expires ) );
+  }
+  
+  /**
+   * Was a change to a key made by this server? Each write is only 
+   * recognised once.
+   * 
+   * @param key The key.
+   * @return True if the change was expected.
+   */
+  private boolean isOwnWrite( K key )
+  {
+    long now = System.currentTimeMillis();
+    boolean[] own = new boolean[1];
+    ownWrites.computeIfPresent( key, ( k, w ) -> 
+    {
+      if ( w.expires < now )
+        return null;
+      own[0] = true;
+      return w.count <= 1 ? null : new OwnWrites( w.count - 1, w.expires );
+    } );
+    return own[0];
+  }
+  
+  /**
+   * Keep a value locally unless the key was invalidated since the given
+   * stamp was read, in which case the value may already be out of date.
+   * 
+   * @param key The key.
+   * @param value The value.
+   * @param seen The key's stamp before the shared cache was used.
+   */
+  private void keep( K key, V value, long seen )
+  {
+    if ( value == null )
+      return;
+    local.put( key, value );
+    if ( stamps.get( stripe( key ) ) != seen )
+      local.remove( key );
+  }
+
+  @Override
+  public V get( K key )
+  {
+    V value = local.get( key );
+    if ( value != null )
+      return value;
+    long seen = stamps.get( stripe( key ) );
+    remoteReads.increment();
+    value = remote.get( key );
+    keep( key, value, seen );
+    return value;
+  }
+
+  /**
+   * A plain put doesn't ask the shared cache for the previous value, which
+   * would cost a read and deserialization on every write.
+   */
+  @Override
+  public void put( K key, V value )
+  {
+    write( key, value, false );
+  }
+
+  @Override
+  protected V putAndGet( K key, V value )
+  {
+    return write( key, value, true );
+  }
+  
+  /**
+   * Write a value to the shared cache and keep it locally.
+   * 
+   * @param key The key.
+   * @param value The value.
+   * @param previous True to get the previous value from the shared cache.
+   * @return The previous value, or null if it wasn't asked for.
+   */
+  private V write( K key, V value, boolean previous )
+  {
+    long seen = stamps.get( stripe( key ) );
+    expectOwnWrite( key );
+    V old = null;
+    try
+    {
+      if ( previous )
+        old = remote.getAndPut( key, value );
+      else
+        remote.put( key, value );
+    }
+    catch ( RuntimeException ex )
+    {
+      cancelOwnWrite( key );
+      local.remove( key );
+      throw ex;
+    }
+    keep( key, value, seen );
+    return old;
+  }
+
+  @Override
+  protected V putIfAbsentAndGet( K key, V value )
+  {
+    long seen = stamps.get( stripe( key ) );
+    expectOwnWrite( key );
+    boolean put = false;
+    try
+    {
+      put = remote.putIfAbsent( key, value );
+    }
+    finally
+    {
+      if ( !put )
+        cancelOwnWrite( key );
+    }
+    if ( put )
+    {
+      keep( key, value, seen );
+      return null;
+    }
+    return get( key );
+  }
+
+  @Override
+  protected V removeAndGet( K key )
+  {
+    local.remove( key );
+    return remote.getAndRemove( key );
+  }
+
+  @Override
+  public boolean remove( K key )
+  {
+    local.remove( key );
+    return remote.remove( key );
+  }
+
+  @Override
+  public boolean remove( K key, V oldValue )
+  {
+    local.remove( key );
+    return remote.remove( key, oldValue );
+  }
+
+  @Override
+  public boolean replace( K key, V oldValue, V newValue )
+  {
+    local.remove( key );
+    return remote.replace( key, oldValue, newValue );
+  }
+
+  @Override
+  public boolean replace( K key, V value )
+  {
+    local.remove( key );
+    return remote.replace( key, value );
+  }
+
+  @Override
+  public void removeAll()
+  {
+    remote.removeAll();
+    local.clear();
+  }
+
+  @Override
+  public void clear()
+  {
+    remote.clear();
+    local.clear();
+  }
+
+  @Override
+  public Iterator<Cache.Entry<K, V>> iterator()
+  {
+    return remote.iterator();
+  }
+
+  @Override
+  public CacheManager getCacheManager()
+  {
+    return remote.getCacheManager();
+  }
+
+  @Override
+  public void registerCacheEntryListener( CacheEntryListenerConfiguration<K, V> cacheEntryListenerConfiguration )
+  {
+    remote.registerCacheEntryListener( cacheEntryListenerConfiguration );
+  }
+
+  @Override
+  public void deregisterCacheEntryListener( CacheEntryListenerConfiguration<K, V> cacheEntryListenerConfiguration )
+  {
+    remote.deregisterCacheEntryListener( cacheEntryListenerConfiguration );
+  }
+
+  /**
+   * Stop listening to the shared cache and drop local copies. The shared
+   * cache is left open because other servers may be using it.
+   */
+  @Override
+  public void close()
+  {
+    super.close();
+    try
+    {
+      remote.deregisterCacheEntryListener( listenerConfiguration );
+    }
+    catch ( RuntimeException ex )
+    {
+      logger.log( Level.FINE, "Unable to deregister near cache listener.", ex );
+    }
+    local.clear();
+  }
+
+  @Override
+  public <T> T unwrap( Class<T> clazz )
+  {
+    if ( clazz.isInstance( this ) )
+      return clazz.cast( this );
+    return remote.unwrap( clazz );
+  }
+  
+  /**
+   * Get the shared cache.
+   * 
+   * @return The cache behind this one.
+   */
+  public Cache<K,V> getRemote()
+  {
+    return remote;
+  }
+  
+  /**
+   * The number of entries held locally.
+   * 
+   * @return The count.
+   */
+  public int getLocalSize()
+  {
+    return local.size();
+  }
+
+  /**
+   * The number of reads answered locally.
+   * 
+   * @return The count.
+   */
+  public long getLocalHitCount()
+  {
+    return local.getHitCount();
+  }
+
+  /**
+   * The number of reads that went to the shared cache.
+   * 
+   * @return The count.
+   */
+  public long getRemoteReadCount()
+  {
+    return remoteReads.sum();
+  }
+
+  /**
+   * The number of times a local copy was dropped because the shared cache
+   * changed.
+   * 
+   * @return The count.
+   */
+  public long getInvalidationCount()
+  {
+    return invalidations.sum();
+  }
+  
+  /**
+   * Own writes to one key whose events are still to come.
+   */
+  static class OwnWrites
+  {
+    final int count;
+    final long expires;
+
+    OwnWrites( int count, long expires )
+    {
+      this.count = count;
+      this.expires = expires;
+    }
+  }
+  
+  /**
+   * Drops local copies when the shared cache reports a change.
+   * 
+   * @param <K> The key class.
+   * @param <V> The value class.
+   */
+  static class Invalidator<K,V> implements CacheEntryCreatedListener<K,V>, CacheEntryUpdatedListener<K,V>, 
+          CacheEntryRemovedListener<K,V>, CacheEntryExpiredListener<K,V>
+  {
+    final NearCache<K,V> near;
+
+    Invalidator( NearCache<K,V> near )
+    {
+      this.near = near;
+    }
+    
+    private void invalidate( Iterable<CacheEntryEvent<? extends K, ? extends V>> events )
+    {
+      for ( CacheEntryEvent<? extends K, ? extends V> e : events )
+        near.invalidate( e.getKey() );
+    }
+    
+    private void changed( Iterable<CacheEntryEvent<? extends K, ? extends V>> events )
+    {
+      for ( CacheEntryEvent<? extends K, ? extends V> e : events )
+        near.changed( e.getKey() );
+    }
+
+    @Override
+    public void onCreated( Iterable<CacheEntryEvent<? extends K, ? extends V>> events )
+    {
+      changed( events );
+    }
+
+    @Override
+    public void onUpdated( Iterable<CacheEntryEvent<? extends K, ? extends V>> events )
+    {
+      changed( events );
+    }
+
+    @Override
+    public void onRemoved( Iterable<CacheEntryEvent<? extends K, ? extends V>> events )
+    {
+      invalidate( events );
+    }
+
+    @Override
+    public void onExpired( Iterable<CacheEntryEvent<? extends K, ? extends V>> events )
+    {
+      invalidate( events );
+    }
+  }
+  
+  /**
+   * JCache wants a serializable factory for listeners. The near cache 
+   * itself can't be serialized, so this factory only works on the server
+   * that registered it, which is where the listener is needed.
+   * 
+   * @param <K> The key class.
+   * @param <V> The value class.
+   */
+  static class InvalidatorFactory<K,V> implements Factory<CacheEntryListener<? super K, ? super V>>
+  {
+    private static final long serialVersionUID = 1L;
+    final transient NearCache<K,V> near;
+
+    InvalidatorFactory( NearCache<K,V> near )
+    {
+      this.near = near;
+    }
+
+    @Override
+    public CacheEntryListener<? super K, ? super V> create()
+    {
+      if ( near == null )
+        throw new IllegalStateException( "Near cache listener can only be created where it was registered." );
+      return new Invalidator<>( near );
+    }
+  }
+}
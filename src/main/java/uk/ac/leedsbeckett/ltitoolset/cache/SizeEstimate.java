@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Weighs cache entries in kilobytes from their serialized size without
+ * serializing every entry. Entries are grouped by the class of the value
+ * and only one put in every SAMPLE_INTERVAL of each class is serialized.
+ * The others are given the average of the samples so far, rounded up.
+ * Suits caches whose values of one class are much the same size.
+ *
+ * @author maber01
+ */
+public class SizeEstimate implements ToIntBiFunction<Object,Object>
+{
+  static final int SAMPLE_INTERVAL = 256;
+
+  final ConcurrentHashMap<Class<?>,Samples> byClass = new ConcurrentHashMap<>();
+
+  @Override
+  public int applyAsInt( Object key, Object value )
+  {
+    if ( !(value instanceof Serializable) )
+      return 1;
+    Samples samples = byClass.computeIfAbsent( value.getClass(), c -> new Samples() );
+    return samples.next( key, value );
+  }
+
+  /**
+   * Serialize an entry to find its size.
+   *
+   * @param key The key.
+   * @param value The value.
+   * @return The size in bytes or -1 if it couldn't be serialized.
+   */
+  static long measure( Object key, Object value )
+  {
+    CountingOutputStream count = new CountingOutputStream();
+    try ( ObjectOutputStream out = new ObjectOutputStream( count ) )
+    {
+      out.writeObject( key );
+      out.writeObject( value );
+    }
+    catch ( IOException | RuntimeException ex )
+    {
+      return -1L;
+    }
+    return count.count;
+  }
+
+  /**
+   * The samples taken of one class of value.
+   */
+  static class Samples
+  {
+    long puts = 0L;
+    long sampled = 0L;
+    long totalBytes = 0L;
+    int kilobytes = 1;
+
+    int next( Object key, Object value )
+    {
+      synchronized ( this )
+      {
+        if ( puts++ % SAMPLE_INTERVAL != 0 )
+          return kilobytes;
+      }
+      // Serialize outside the lock so other puts of this class don't wait.
+      long bytes = measure( key, value );
+      synchronized ( this )
+      {
+        if ( bytes >= 0 )
+        {
+          sampled++;
+          totalBytes += bytes;
+          long average = totalBytes / sampled;
+          kilobytes = (int)Math.max( 1L, Math.min( Integer.MAX_VALUE, ( average + 1023L ) / 1024L ) );
+        }
+        return kilobytes;
+      }
+    }
+  }
+
+  /**
+   * Counts bytes and throws them away.
+   */
+  static class CountingOutputStream extends OutputStream
+  {
+    long count = 0L;
+
+    @Override
+    public void write( int b )
+    {
+      count++;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len )
+    {
+      count += len;
+    }
+  }
+}
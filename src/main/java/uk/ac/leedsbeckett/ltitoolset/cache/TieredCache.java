@@ -0,0 +1,270 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import javax.cache.Cache;
+import javax.cache.configuration.MutableConfiguration;
+
+/**
+ * A cache with two tiers for entries that are often abandoned soon after
+ * they are created, such as LTI states after an OIDC login that never
+ * launches. New entries go in the pending tier which has a short, fixed
+ * lifetime. When an entry is put that passes a test, for example the
+ * launch has completed, it moves to the promoted tier which has a 
+ * sliding lifetime. Each tier has its own limit on memory and evicts 
+ * entries when it is full, so abandoned entries can't push out ones in 
+ * use.
+ * 
+ * Both tiers evict the least recently used entry, with no frequency based
+ * admission. Entries are used about as often as each other and the newest
+ * are the most likely to be wanted, so in a flood of logins the oldest 
+ * pending entries go first.
+ * 
+ * Memory is estimated from the serialized size of a sample of the entries
+ * put in each tier, rounded up to whole kilobytes. Entries are stored by 
+ * reference.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ * @param <V> The value class.
+ */
+public class TieredCache<K,V> extends AbstractCache<K,V> implements TieredCacheMBean
+{
+  final Predicate<? super V> promote;
+  final BoundedCache<K,V> pending;
+  final BoundedCache<K,V> promoted;
+  final LongAdder promotions = new LongAdder();
+
+  /**
+   * Create a cache.
+   * 
+   * @param name The name of the cache.
+   * @param promote Entries that pass this test belong in the promoted tier.
+   * @param pendingMaxKilobytes The memory limit of the pending tier.
+   * @param pendingLifetime How long entries stay in the pending tier after
+   * they are put.
+   * @param promotedMaxKilobytes The memory limit of the promoted tier.
+   * @param promotedIdleTime How long entries stay in the promoted tier 
+   * after they were last used.
+   * @param unit The unit of the lifetimes.
+   */
+  public TieredCache( String name, Predicate<? super V> promote, 
+          long pendingMaxKilobytes, long pendingLifetime, 
+          long promotedMaxKilobytes, long promotedIdleTime, TimeUnit unit )
+  {
+    super( name, new MutableConfiguration<K,V>().setStoreByValue( false ) );
+    this.promote = promote;
+    this.pending = new BoundedCache<>( name + "-pending", pendingMaxKilobytes, new SizeEstimate(), 
+            BoundedCache.Eviction.LRU, BoundedCache.ExpiryType.CREATED, pendingLifetime, unit );
+    this.promoted = new BoundedCache<>( name + "-promoted", promotedMaxKilobytes, new SizeEstimate(), 
+            BoundedCache.Eviction.LRU, BoundedCache.ExpiryType.ACCESSED, promotedIdleTime, unit );
+  }
+
+  @Override
+  public V get( K key )
+  {
+    V value = promoted.get( key );
+    if ( value != null )
+      return value;
+    return pending.get( key );
+  }
+
+  @Override
+  protected V putAndGet( K key, V value )
+  {
+    if ( promote.test( value ) )
+    {
+      // Into promoted before out of pending, so that a get(), which looks
+      // in promoted first, always finds the entry in one tier or the other.
+      V previous = promoted.getAndPut( key, value );
+      V before = pending.getAndRemove( key );
+      if ( before != null )
+        promotions.increment();
+      return previous != null ? previous : before;
+    }
+    // Once promoted an entry stays promoted.
+    V previous = promoted.getAndReplace( key, value );
+    if ( previous != null )
+      return previous;
+    return pending.getAndPut( key, value );
+  }
+
+  @Override
+  protected V putIfAbsentAndGet( K key, V value )
+  {
+    V existing = get( key );
+    if ( existing != null )
+      return existing;
+    putAndGet( key, value );
+    return null;
+  }
+
+  @Override
+  protected V removeAndGet( K key )
+  {
+    V a = pending.getAndRemove( key );
+    V b = promoted.getAndRemove( key );
+    return b != null ? b : a;
+  }
+
+  @Override
+  public boolean remove( K key, V oldValue )
+  {
+    return promoted.remove( key, oldValue ) || pending.remove( key, oldValue );
+  }
+
+  @Override
+  public boolean replace( K key, V oldValue, V newValue )
+  {
+    V current = get( key );
+    if ( current == null || !Objects.equals( current, oldValue ) )
+      return false;
+    putAndGet( key, newValue );
+    return true;
+  }
+
+  @Override
+  public boolean replace( K key, V value )
+  {
+    if ( get( key ) == null )
+      return false;
+    putAndGet( key, value );
+    return true;
+  }
+
+  @Override
+  public void clear()
+  {
+    pending.clear();
+    promoted.clear();
+  }
+
+  @Override
+  public Iterator<Cache.Entry<K, V>> iterator()
+  {
+    Iterator<Cache.Entry<K, V>> a = promoted.iterator();
+    Iterator<Cache.Entry<K, V>> b = pending.iterator();
+    return new Iterator<Cache.Entry<K, V>>()
+    {
+      Iterator<Cache.Entry<K, V>> last = null;
+      
+      @Override
+      public boolean hasNext()
+      {
+        return a.hasNext() || b.hasNext();
+      }
+
+      @Override
+      public Cache.Entry<K, V> next()
+      {
+        if ( a.hasNext() )
+          last = a;
+        else if ( b.hasNext() )
+          last = b;
+        else
+          throw new NoSuchElementException();
+        return last.next();
+      }
+
+      @Override
+      public void remove()
+      {
+        if ( last == null )
+          throw new IllegalStateException();
+        last.remove();
+      }
+    };
+  }
+
+  @Override
+  public int getPendingCount()
+  {
+    return pending.size();
+  }
+
+  @Override
+  public long getPendingKilobytes()
+  {
+    return pending.getWeight();
+  }
+
+  @Override
+  public long getPendingMaxKilobytes()
+  {
+    return pending.getMaxWeight();
+  }
+
+  @Override
+  public int getPromotedCount()
+  {
+    return promoted.size();
+  }
+
+  @Override
+  public long getPromotedKilobytes()
+  {
+    return promoted.getWeight();
+  }
+
+  @Override
+  public long getPromotedMaxKilobytes()
+  {
+    return promoted.getMaxWeight();
+  }
+
+  @Override
+  public long getPromotions()
+  {
+    return promotions.sum();
+  }
+
+  @Override
+  public long getHits()
+  {
+    return pending.getHitCount() + promoted.getHitCount();
+  }
+
+  /**
+   * Lookups that found nothing. The pending tier is only asked when the 
+   * promoted tier misses, so its misses are the misses of the whole cache.
+   * 
+   * @return The count.
+   */
+  @Override
+  public long getMisses()
+  {
+    return pending.getMissCount();
+  }
+
+  @Override
+  public long getEvictions()
+  {
+    return pending.getEvictionCount() + promoted.getEvictionCount();
+  }
+
+  @Override
+  public long getExpirations()
+  {
+    return pending.getExpirationCount() + promoted.getExpirationCount();
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+/**
+ * The management interface of a TieredCache. Sizes are estimates based on
+ * the serialized size of entries.
+ * 
+ * @author maber01
+ */
+public interface TieredCacheMBean
+{
+  int getPendingCount();
+  long getPendingKilobytes();
+  long getPendingMaxKilobytes();
+  
+  int getPromotedCount();
+  long getPromotedKilobytes();
+  long getPromotedMaxKilobytes();
+  
+  long getPromotions();
+  long getHits();
+  long getMisses();
+  long getEvictions();
+  long getExpirations();
+  
+  /**
+   * Remove every entry from both tiers.
+   */
+  void clear();
+}
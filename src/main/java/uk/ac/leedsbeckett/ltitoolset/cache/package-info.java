@@ -0,0 +1,7 @@
+/**
+ * Cache implementations that need no JCache provider and a near cache
+ * to put in front of one that does.
+ * 
+ * @since 0.0.1
+ */
+package uk.ac.leedsbeckett.ltitoolset.cache;
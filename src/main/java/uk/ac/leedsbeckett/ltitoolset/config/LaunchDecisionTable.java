@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.config;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import uk.ac.leedsbeckett.ltitoolset.LaunchDisallowedException;
+
+/**
+ * Whether platforms may launch tools or deep link, worked out in advance 
+ * from every registration and platform configuration. Checking a launch 
+ * needs no I/O and allocates nothing unless the launch is refused. An
+ * instance never changes; when the configuration changes a new table is
+ * made.
+ * 
+ * @author maber01
+ */
+public class LaunchDecisionTable
+{
+  static final String URL_PREFIX = "url_";
+  static final String GUID_PREFIX = "guid_";
+  
+  private final Map<String,IssuerRule> rules;
+
+  private LaunchDecisionTable( Map<String,IssuerRule> rules )
+  {
+    this.rules = rules;
+  }
+  
+  /**
+   * Build a table from the entries in the stores.
+   * 
+   * @param registrations The registration configurations.
+   * @param platforms The platform configurations.
+   * @return The table.
+   * @throws IOException If the stores could not be listed.
+   */
+  public static LaunchDecisionTable compile( RegistrationConfigurationStore registrations, PlatformConfigurationStore platforms )
+          throws IOException
+  {
+    HashMap<String,HashMap<String,Boolean>> byUrl = new HashMap<>();
+    HashMap<String,HashMap<String,Boolean>> byGuid = new HashMap<>();
+    for ( PlatformConfigurationKey key : platforms.listKeys() )
+    {
+      PlatformConfigurationEntry entry = platforms.get( key, false );
+      if ( entry == null || entry.getPlatformConfiguration() == null )
+        continue;
+      boolean allowed = entry.getPlatformConfiguration().isLtiLaunchAllowed();
+      String id = key.getPlatformId();
+      if ( id.startsWith( URL_PREFIX ) )
+        byUrl.computeIfAbsent( key.getIssuer(), k -> new HashMap<>() ).put( id.substring( URL_PREFIX.length() ), allowed );
+      else if ( id.startsWith( GUID_PREFIX ) )
+        byGuid.computeIfAbsent( key.getIssuer(), k -> new HashMap<>() ).put( id.substring( GUID_PREFIX.length() ), allowed );
+    }
+    
+    HashMap<String,IssuerRule> rules = new HashMap<>();
+    for ( String issuer : registrations.listKeys() )
+    {
+      RegistrationConfiguration regconf = registrations.getRegistrationConfiguration( issuer );
+      if ( regconf != null )
+        rules.put( issuer, new IssuerRule( regconf, byUrl.get( issuer ), byGuid.get( issuer ) ) );
+    }
+    return new LaunchDecisionTable( rules );
+  }
+  
+  /**
+   * Decide whether a platform may launch or deep link. 
+   * 
+   * @param issuer The issuer from the launch.
+   * @param platformUrl The platform URL from the launch.
+   * @param platformGuid The platform GUID from the launch.
+   * @param deeplink True for a deep linking request.
+   * @return True
+   * @throws LaunchDisallowedException If it may not, with the reason.
+   */
+  public boolean check( String issuer, String platformUrl, String platformGuid, boolean deeplink )
+          throws LaunchDisallowedException
+  {
+    IssuerRule rule = issuer == null ? null : rules.get( issuer );
+    if ( rule == null )
+      throw new LaunchDisallowedException( "No registration configuration found." );
+    return rule.check( platformUrl, platformGuid, deeplink );
+  }
+  
+  /**
+   * How many issuers are in the table.
+   * 
+   * @return The number of issuers.
+   */
+  public int size()
+  {
+    return rules.size();
+  }
+  
+  /**
+   * The decisions for one issuer. The checks are made in the same order 
+   * as ToolCoordinator makes them without a table, so the reasons given 
+   * for refusal are the same.
+   */
+  static class IssuerRule
+  {
+    final boolean registrationAllowed;
+    final boolean deepLinkingAllowed;
+    final boolean anyPlatformAllowed;
+    final Map<String,Boolean> byUrl;
+    final Map<String,Boolean> byGuid;
+
+    IssuerRule( RegistrationConfiguration regconf, Map<String,Boolean> byUrl, Map<String,Boolean> byGuid )
+    {
+      this.registrationAllowed = regconf.isRegistrationAllowed();
+      this.deepLinkingAllowed = regconf.isDeepLinkingAllowed();
+      this.anyPlatformAllowed = regconf.isAnyPlatformAllowed();
+      this.byUrl = byUrl == null ? Collections.emptyMap() : byUrl;
+      this.byGuid = byGuid == null ? Collections.emptyMap() : byGuid;
+    }
+    
+    boolean check( String platformUrl, String platformGuid, boolean deeplink )
+            throws LaunchDisallowedException
+    {
+      if ( !registrationAllowed )
+        throw new LaunchDisallowedException( "Registration entry says registration not allowed." );
+      if ( deeplink && !deepLinkingAllowed )
+        throw new LaunchDisallowedException( "Deep linking not allowed for this registered authorisation server." );
+      if ( anyPlatformAllowed )
+        return true;
+      if ( platformUrl == null && platformGuid == null )
+        throw new LaunchDisallowedException( deeplink?
+                "No platform url or guid provided in deep linking request.":
+                "No platform url or guid provided in launch request." );
+      Boolean allowed = platformUrl == null ? null : byUrl.get( platformUrl );
+      if ( allowed == null && platformGuid != null )
+        allowed = byGuid.get( platformGuid );
+      if ( allowed == null )
+        throw new LaunchDisallowedException( "Specified platform not found in configuration store." );
+      if ( !allowed )
+        throw new LaunchDisallowedException( "Platform is not allowed to run launches or deep linking requests." );
+      return true;
+    }
+  }
+}
@@ -6,6 +6,7 @@ package uk.ac.leedsbeckett.ltitoolset.config;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import java.io.IOException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -96,6 +97,29 @@ public class LtiConfigurationImpl extends Store<ClientLtiConfigurationKey,Client
     return client;
   }
 
+  @Override
+  public Path getBasePath()
+  {
+    return basepath;
+  }
+
+  /**
+   * Files are in a directory for each issuer and named after the client.
+   * 
+   * @param path A file system path.
+   * @return The key or null if the file isn't at the right depth.
+   */
+  @Override
+  public ClientLtiConfigurationKey keyForPath( Path path )
+  {
+    Path issuer = path.getParent();
+    if ( issuer == null || !basepath.equals( issuer.getParent() ) )
+      return null;
+    return new ClientLtiConfigurationKey( 
+            URLDecoder.decode( issuer.getFileName().toString(), StandardCharsets.UTF_8 ), 
+            URLDecoder.decode( path.getFileName().toString(), StandardCharsets.UTF_8 ) );
+  }
+
   @Override
   public ClientLtiConfiguration getClientLtiConfiguration( ClientLtiConfigurationKey clientkey )
   {
@@ -15,6 +15,7 @@
  */
 package uk.ac.leedsbeckett.ltitoolset.config;
 
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
@@ -74,4 +75,27 @@ public class PlatformConfigurationStore extends Store<PlatformConfigurationKey,P
     return p;
   }
 
+  @Override
+  public Path getBasePath()
+  {
+    return basepath;
+  }
+
+  /**
+   * The file name is the issuer and platform ID separated by a space. The
+   * issuer is a URL so it cannot contain a space.
+   * 
+   * @param path A file system path.
+   * @return The key or null if the file name isn't a key.
+   */
+  @Override
+  public PlatformConfigurationKey keyForPath( Path path )
+  {
+    String name = URLDecoder.decode( path.getFileName().toString(), StandardCharsets.UTF_8 );
+    int space = name.indexOf( ' ' );
+    if ( space < 1 )
+      return null;
+    return new PlatformConfigurationKey( name.substring( 0, space ), name.substring( space + 1 ) );
+  }
+
 }
@@ -15,6 +15,7 @@
  */
 package uk.ac.leedsbeckett.ltitoolset.config;
 
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
@@ -61,4 +62,16 @@ public class RegistrationConfigurationStore extends Store<String,RegistrationCon
   {
     return basepath.resolve( URLEncoder.encode( key, StandardCharsets.UTF_8 ) );
   }
+
+  @Override
+  public Path getBasePath()
+  {
+    return basepath;
+  }
+
+  @Override
+  public String keyForPath( Path path )
+  {
+    return URLDecoder.decode( path.getFileName().toString(), StandardCharsets.UTF_8 );
+  }
 }
@@ -24,9 +24,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.FileUtils;
+import uk.ac.leedsbeckett.ltitoolset.cache.BoundedCache;
+import uk.ac.leedsbeckett.ltitoolset.cache.CacheSettings;
 
 
 /**
@@ -46,6 +51,38 @@ public class ToolConfiguration
     
   String backchannelProxy = null;
   boolean developmentTrustAllServersMode = false;
+  
+  long storeWriteBehindDelay = 0L;
+  int storeWriteBehindBatchSize = 100;
+  String toolResourceStoreBackend = "files";
+  long storeCommitDelay = 1000L;
+  final Map<String,String> storeFormats = new HashMap<>();
+  boolean storeWatch = false;
+  boolean storeWatchPolling = false;
+  long storeWatchPollSeconds = 10L;
+  boolean storeWarmUp = false;
+  int storeWarmUpThreads = 4;
+  boolean storeWarmUpBlocksLaunch = false;
+  int storeAsyncThreads = 8;
+  int storeAsyncQueueSize = 1000;
+  String ltiStateCache = null;
+  long ltiStatePendingSeconds = 300L;
+  long ltiStatePendingMaxKilobytes = 16L*1024L;
+  long ltiStateIdleSeconds = 3600L;
+  long ltiStateMaxKilobytes = 64L*1024L;
+  boolean stateTokens = false;
+  String stateTokenSecret = null;
+  long stateTokenSeconds = 300L;
+  int stateTokenMaxLength = 1500;
+  String nodeId = null;
+  final Map<String,String> nodeUrls = new HashMap<>();
+  boolean launchServerTiming = false;
+  boolean launchForward = false;
+  long launchTimeoutSeconds = 30L;
+  String launchFallbackPage = null;
+  
+  final CacheSettings defaultCacheSettings = new CacheSettings();
+  final Map<String,CacheSettings> cacheSettings = new HashMap<>();
 
   /**
    * The original JSON formatted text that was most recently loaded.
@@ -81,6 +118,347 @@ public class ToolConfiguration
   {
     return hostName;
   }
+
+  /**
+   * How often, in milliseconds, stores write queued entries to disk. Zero 
+   * means stores write synchronously.
+   * 
+   * @return The delay in milliseconds.
+   */
+  public long getStoreWriteBehindDelay()
+  {
+    return storeWriteBehindDelay;
+  }
+
+  /**
+   * The most queued entries a store writes before pausing.
+   * 
+   * @return The batch size.
+   */
+  public int getStoreWriteBehindBatchSize()
+  {
+    return storeWriteBehindBatchSize;
+  }
+
+  /**
+   * How the tool resource store keeps its data. "files" means one file per
+   * resource, "log" means a log structured set of segment files and 
+   * "mvstore" means a single B-tree file.
+   * 
+   * @return The name of the backend.
+   */
+  public String getToolResourceStoreBackend()
+  {
+    return toolResourceStoreBackend;
+  }
+
+  /**
+   * How often, in milliseconds, backends that commit writes in groups do 
+   * so. Zero or less commits every write.
+   * 
+   * @return The delay.
+   */
+  public long getStoreCommitDelay()
+  {
+    return storeCommitDelay;
+  }
+
+  /**
+   * The format a named store should write its entries in, e.g. "json",
+   * "compact-json", "smile" or "cbor".
+   * 
+   * @param storeName The name of the store.
+   * @return The name of the format or null if not configured.
+   */
+  public String getStoreFormat( String storeName )
+  {
+    return storeFormats.get( storeName );
+  }
+
+  /**
+   * Should the registration, platform and JWKS stores watch their 
+   * directories and pick up changes made to the files straight away?
+   * If not, registration and platform files are rechecked each time their
+   * cached entries would expire.
+   * 
+   * @return True to watch.
+   */
+  public boolean isStoreWatch()
+  {
+    return storeWatch;
+  }
+
+  /**
+   * Poll directories instead of using a WatchService, for file systems 
+   * that don't report changes.
+   * 
+   * @return True to poll.
+   */
+  public boolean isStoreWatchPolling()
+  {
+    return storeWatchPolling;
+  }
+
+  /**
+   * How often to poll directories that can't be watched.
+   * 
+   * @return The period in seconds.
+   */
+  public long getStoreWatchPollSeconds()
+  {
+    return storeWatchPollSeconds;
+  }
+
+  /**
+   * Should the registration, platform, LTI client and JWKS stores be loaded
+   * into their caches at start up?
+   * 
+   * @return True to warm up the stores.
+   */
+  public boolean isStoreWarmUp()
+  {
+    return storeWarmUp;
+  }
+
+  /**
+   * How many threads load entries during warm up.
+   * 
+   * @return The number of threads.
+   */
+  public int getStoreWarmUpThreads()
+  {
+    return storeWarmUpThreads;
+  }
+
+  /**
+   * Should logins and launches be turned away until warm up has finished?
+   * 
+   * @return True to turn them away.
+   */
+  public boolean isStoreWarmUpBlocksLaunch()
+  {
+    return storeWarmUpBlocksLaunch;
+  }
+
+  /**
+   * How many threads run the asynchronous store methods.
+   * 
+   * @return The number of threads.
+   */
+  public int getStoreAsyncThreads()
+  {
+    return storeAsyncThreads;
+  }
+
+  /**
+   * How many asynchronous store tasks can wait for a thread before callers
+   * have to run them themselves.
+   * 
+   * @return The queue size.
+   */
+  public int getStoreAsyncQueueSize()
+  {
+    return storeAsyncQueueSize;
+  }
+
+  /**
+   * What keeps LTI states. "tiered" means a built in cache with separate
+   * limits for states that have not launched yet and states that have. 
+   * "jcache" means a cache from CacheFactory, named "appltistate", which
+   * can be shared between servers. If this isn't configured "jcache" is 
+   * used when the caches section has settings for "appltistate" or puts a
+   * near cache in front of the provider by default, since those settings 
+   * only apply to a cache from CacheFactory, and otherwise "tiered".
+   * 
+   * @return The kind of cache or null if not configured.
+   */
+  public String getLtiStateCache()
+  {
+    return ltiStateCache;
+  }
+
+  /**
+   * How long a state created by a login lasts if there is no launch.
+   * 
+   * @return The number of seconds.
+   */
+  public long getLtiStatePendingSeconds()
+  {
+    return ltiStatePendingSeconds;
+  }
+
+  /**
+   * The most memory states that have not launched can use.
+   * 
+   * @return The number of kilobytes.
+   */
+  public long getLtiStatePendingMaxKilobytes()
+  {
+    return ltiStatePendingMaxKilobytes;
+  }
+
+  /**
+   * How long a launched state lasts after it was last used.
+   * 
+   * @return The number of seconds.
+   */
+  public long getLtiStateIdleSeconds()
+  {
+    return ltiStateIdleSeconds;
+  }
+
+  /**
+   * The most memory launched states can use.
+   * 
+   * @return The number of kilobytes.
+   */
+  public long getLtiStateMaxKilobytes()
+  {
+    return ltiStateMaxKilobytes;
+  }
+
+  /**
+   * Should launches put the LTI state in an encrypted token in the URL
+   * of the tool page? Any server that knows the token secret can then
+   * use the state without a shared state store. The state store is still
+   * asked first. A state that only comes from a token is a copy and is 
+   * read only: changes tool code makes to it are not saved or seen by 
+   * other requests.
+   * 
+   * @return True if tokens are used.
+   */
+  public boolean isStateTokens()
+  {
+    return stateTokens;
+  }
+
+  /**
+   * The secret that state tokens are encrypted with. All servers behind
+   * one address need the same secret. If it is not set tokens can only be
+   * read by the server that made them.
+   * 
+   * @return The secret or null.
+   */
+  public String getStateTokenSecret()
+  {
+    return stateTokenSecret;
+  }
+
+  /**
+   * How long a state token can be used for. Until then anyone holding the
+   * URL can use the token on a server that doesn't have the state in its
+   * store, so this should be no longer than it takes a tool page to load 
+   * and open its web socket.
+   * 
+   * @return The number of seconds.
+   */
+  public long getStateTokenSeconds()
+  {
+    return stateTokenSeconds;
+  }
+
+  /**
+   * The longest token to put in a URL. Bigger states are only kept in the
+   * state store.
+   * 
+   * @return The number of characters.
+   */
+  public int getStateTokenMaxLength()
+  {
+    return stateTokenMaxLength;
+  }
+
+  /**
+   * The ID of this server, which is put in front of state IDs in URLs so
+   * a load balancer can send requests to the server holding the state.
+   * 
+   * @return The ID or null if state IDs are not prefixed.
+   */
+  public String getNodeId()
+  {
+    return nodeId;
+  }
+
+  /**
+   * The base URLs of all the servers, by server ID, so requests that reach
+   * the wrong server can be redirected.
+   * 
+   * @return The map, which may be empty.
+   */
+  public Map<String,String> getNodeUrls()
+  {
+    return nodeUrls;
+  }
+
+  /**
+   * Should the launch servlet send a Server-Timing header that shows how
+   * long each stage of the launch took? This lets browser developer tools
+   * show the times, so it should only be used while investigating.
+   * 
+   * @return True if the header is sent.
+   */
+  public boolean isLaunchServerTiming()
+  {
+    return launchServerTiming;
+  }
+
+  /**
+   * Should the launch servlet run the tool page itself instead of 
+   * redirecting the browser to it? This saves a round trip but the tool
+   * pages must not use URLs relative to their own location. The page sees
+   * a GET with the usual parameters. Reloading would repeat the launch, 
+   * which fails, unless the page replaces the browser's address with 
+   * ToolPageSupport.getForwardedPageUrl().
+   * 
+   * @return True to forward.
+   */
+  public boolean isLaunchForward()
+  {
+    return launchForward;
+  }
+
+  /**
+   * How long a tool may take to set up a launch when it does so 
+   * asynchronously, before the user is shown the fallback page.
+   * 
+   * @return The number of seconds.
+   */
+  public long getLaunchTimeoutSeconds()
+  {
+    return launchTimeoutSeconds;
+  }
+
+  /**
+   * The page, relative to the context, that is shown when a launch takes
+   * too long. If it is not set a simple built in page asks the user to try
+   * again.
+   * 
+   * @return The page or null.
+   */
+  public String getLaunchFallbackPage()
+  {
+    return launchFallbackPage;
+  }
+
+  /**
+   * Settings for caches that are not named in the "caches" section.
+   * 
+   * @return The settings.
+   */
+  public CacheSettings getDefaultCacheSettings()
+  {
+    return defaultCacheSettings;
+  }
+
+  /**
+   * Settings for specific caches, keyed on cache name.
+   * 
+   * @return A map of cache name to settings.
+   */
+  public Map<String,CacheSettings> getCacheSettings()
+  {
+    return cacheSettings;
+  }
   
   
   /**
@@ -117,6 +495,166 @@ public class ToolConfiguration
           JsonNode n = node.get( "hostName" );
           this.hostName = n.asText( "localhost" );
         }
+        if ( node.has( "storeWriteBehindDelay" ) )
+        {
+          JsonNode n = node.get( "storeWriteBehindDelay" );
+          this.storeWriteBehindDelay = n.asLong( 0L );
+        }
+        if ( node.has( "storeWriteBehindBatchSize" ) )
+        {
+          JsonNode n = node.get( "storeWriteBehindBatchSize" );
+          this.storeWriteBehindBatchSize = n.asInt( 100 );
+        }
+        if ( node.has( "toolResourceStoreBackend" ) )
+        {
+          JsonNode n = node.get( "toolResourceStoreBackend" );
+          this.toolResourceStoreBackend = n.asText( "files" );
+        }
+        if ( node.has( "storeCommitDelay" ) )
+        {
+          JsonNode n = node.get( "storeCommitDelay" );
+          this.storeCommitDelay = n.asLong( 1000L );
+        }
+        if ( node.has( "storeFormats" ) )
+        {
+          JsonNode n = node.get( "storeFormats" );
+          for ( Iterator<Map.Entry<String,JsonNode>> it = n.fields(); it.hasNext(); )
+          {
+            Map.Entry<String,JsonNode> e = it.next();
+            storeFormats.put( e.getKey(), e.getValue().asText() );
+          }
+        }
+        if ( node.has( "storeWatch" ) )
+        {
+          JsonNode n = node.get( "storeWatch" );
+          this.storeWatch = n.asBoolean( false );
+        }
+        if ( node.has( "storeWatchPolling" ) )
+        {
+          JsonNode n = node.get( "storeWatchPolling" );
+          this.storeWatchPolling = n.asBoolean( false );
+        }
+        if ( node.has( "storeWatchPollSeconds" ) )
+        {
+          JsonNode n = node.get( "storeWatchPollSeconds" );
+          this.storeWatchPollSeconds = n.asLong( 10L );
+        }
+        if ( node.has( "storeWarmUp" ) )
+        {
+          JsonNode n = node.get( "storeWarmUp" );
+          this.storeWarmUp = n.asBoolean( false );
+        }
+        if ( node.has( "storeWarmUpThreads" ) )
+        {
+          JsonNode n = node.get( "storeWarmUpThreads" );
+          this.storeWarmUpThreads = n.asInt( 4 );
+        }
+        if ( node.has( "storeWarmUpBlocksLaunch" ) )
+        {
+          JsonNode n = node.get( "storeWarmUpBlocksLaunch" );
+          this.storeWarmUpBlocksLaunch = n.asBoolean( false );
+        }
+        if ( node.has( "storeAsyncThreads" ) )
+        {
+          JsonNode n = node.get( "storeAsyncThreads" );
+          this.storeAsyncThreads = n.asInt( 8 );
+        }
+        if ( node.has( "storeAsyncQueueSize" ) )
+        {
+          JsonNode n = node.get( "storeAsyncQueueSize" );
+          this.storeAsyncQueueSize = n.asInt( 1000 );
+        }
+        if ( node.has( "ltiStateCache" ) )
+        {
+          JsonNode n = node.get( "ltiStateCache" );
+          this.ltiStateCache = n.asText( null );
+        }
+        if ( node.has( "ltiStatePendingSeconds" ) )
+        {
+          JsonNode n = node.get( "ltiStatePendingSeconds" );
+          this.ltiStatePendingSeconds = n.asLong( 300L );
+        }
+        if ( node.has( "ltiStatePendingMaxKilobytes" ) )
+        {
+          JsonNode n = node.get( "ltiStatePendingMaxKilobytes" );
+          this.ltiStatePendingMaxKilobytes = n.asLong( 16L*1024L );
+        }
+        if ( node.has( "ltiStateIdleSeconds" ) )
+        {
+          JsonNode n = node.get( "ltiStateIdleSeconds" );
+          this.ltiStateIdleSeconds = n.asLong( 3600L );
+        }
+        if ( node.has( "ltiStateMaxKilobytes" ) )
+        {
+          JsonNode n = node.get( "ltiStateMaxKilobytes" );
+          this.ltiStateMaxKilobytes = n.asLong( 64L*1024L );
+        }
+        if ( node.has( "stateTokens" ) )
+        {
+          JsonNode n = node.get( "stateTokens" );
+          this.stateTokens = n.asBoolean( false );
+        }
+        if ( node.has( "stateTokenSecret" ) )
+        {
+          JsonNode n = node.get( "stateTokenSecret" );
+          this.stateTokenSecret = n.asText( null );
+        }
+        if ( node.has( "stateTokenSeconds" ) )
+        {
+          JsonNode n = node.get( "stateTokenSeconds" );
+          this.stateTokenSeconds = n.asLong( 300L );
+        }
+        if ( node.has( "stateTokenMaxLength" ) )
+        {
+          JsonNode n = node.get( "stateTokenMaxLength" );
+          this.stateTokenMaxLength = n.asInt( 1500 );
+        }
+        if ( node.has( "nodeId" ) )
+        {
+          JsonNode n = node.get( "nodeId" );
+          this.nodeId = n.asText( null );
+        }
+        if ( node.has( "nodeUrls" ) )
+        {
+          JsonNode n = node.get( "nodeUrls" );
+          for ( Iterator<Map.Entry<String,JsonNode>> it = n.fields(); it.hasNext(); )
+          {
+            Map.Entry<String,JsonNode> e = it.next();
+            nodeUrls.put( e.getKey(), e.getValue().asText() );
+          }
+        }
+        if ( node.has( "launchServerTiming" ) )
+        {
+          JsonNode n = node.get( "launchServerTiming" );
+          this.launchServerTiming = n.asBoolean( false );
+        }
+        if ( node.has( "launchForward" ) )
+        {
+          JsonNode n = node.get( "launchForward" );
+          this.launchForward = n.asBoolean( false );
+        }
+        if ( node.has( "launchTimeoutSeconds" ) )
+        {
+          JsonNode n = node.get( "launchTimeoutSeconds" );
+          this.launchTimeoutSeconds = n.asLong( 30L );
+        }
+        if ( node.has( "launchFallbackPage" ) )
+        {
+          JsonNode n = node.get( "launchFallbackPage" );
+          this.launchFallbackPage = n.asText( null );
+        }
+        loadCacheSettings( node, "cache", defaultCacheSettings );
+        if ( node.has( "caches" ) )
+        {
+          JsonNode n = node.get( "caches" );
+          for ( Iterator<Map.Entry<String,JsonNode>> it = n.fields(); it.hasNext(); )
+          {
+            Map.Entry<String,JsonNode> e = it.next();
+            CacheSettings settings = new CacheSettings( defaultCacheSettings );
+            loadCacheSettings( e.getValue(), "", settings );
+            cacheSettings.put( e.getKey(), settings );
+          }
+        }
       }
     }
     catch ( FileNotFoundException ex )
@@ -132,4 +670,41 @@ public class ToolConfiguration
       Logger.getLogger(ToolConfiguration.class.getName() ).log( Level.SEVERE, null, th );
     }
   }  
+  
+  /**
+   * Read cache settings from a JSON object. At the top level of the file 
+   * the names have a "cache" prefix, e.g. "cacheProvider", and set the
+   * defaults. Inside the "caches" section they don't, e.g. "provider".
+   * 
+   * @param node The JSON object.
+   * @param prefix The prefix for the names or an empty string.
+   * @param settings The settings to update.
+   */
+  void loadCacheSettings( JsonNode node, String prefix, CacheSettings settings )
+  {
+    JsonNode n;
+    if ( (n = node.get( settingName( prefix, "provider" ) )) != null )
+      settings.setBuiltIn( "builtin".equals( n.asText() ) );
+    if ( (n = node.get( settingName( prefix, "storeByValue" ) )) != null )
+      settings.setStoreByValue( n.asBoolean( true ) );
+    if ( (n = node.get( settingName( prefix, "expiryType" ) )) != null )
+      settings.setExpiryType( "accessed".equals( n.asText() ) ? BoundedCache.ExpiryType.ACCESSED : BoundedCache.ExpiryType.CREATED );
+    if ( (n = node.get( settingName( prefix, "expirySeconds" ) )) != null )
+      settings.setExpirySeconds( n.asLong() );
+    if ( (n = node.get( settingName( prefix, "statistics" ) )) != null )
+      settings.setStatisticsEnabled( n.asBoolean( false ) );
+    if ( (n = node.get( settingName( prefix, "maxEntries" ) )) != null )
+      settings.setMaxEntries( n.asLong( 10000L ) );
+    if ( (n = node.get( settingName( prefix, "nearMaxEntries" ) )) != null )
+      settings.setNearMaxEntries( n.asLong( 0L ) );
+    if ( (n = node.get( settingName( prefix, "nearExpirySeconds" ) )) != null )
+      settings.setNearExpirySeconds( n.asLong( 30L ) );
+  }
+  
+  static String settingName( String prefix, String name )
+  {
+    if ( prefix.isEmpty() )
+      return name;
+    return prefix + Character.toUpperCase( name.charAt( 0 ) ) + name.substring( 1 );
+  }
 }
@@ -15,10 +15,15 @@
  */
 package uk.ac.leedsbeckett.ltitoolset.deeplinking;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import uk.ac.leedsbeckett.lti.claims.LtiRoleClaims;
 import uk.ac.leedsbeckett.lti.messages.LtiMessageDeepLinkingResponse;
 import uk.ac.leedsbeckett.ltitoolset.ToolLaunchState;
+import uk.ac.leedsbeckett.ltitoolset.util.SerialFormat;
 
 /**
  *
@@ -26,6 +31,17 @@ import uk.ac.leedsbeckett.ltitoolset.ToolLaunchState;
  */
 public class DeepLinkingLaunchState extends ToolLaunchState implements Serializable
 {
+  private static final long serialVersionUID = 1L;
+  static final int SERIAL_VERSION = 1;
+  
+  /**
+   * The fields are written by hand in writeObject(). They are declared 
+   * here as having no default serial form rather than marked transient, 
+   * which would hide them from Jackson when launch states are logged or 
+   * written as JSON.
+   */
+  private static final ObjectStreamField[] serialPersistentFields = new ObjectStreamField[0];
+  
   public String courseid;
   public String deepLinkReturnUrl;
   
@@ -33,4 +49,28 @@ public class DeepLinkingLaunchState extends ToolLaunchState implements Serializa
   public Object deployment_id;
   public Object data;
   public LtiRoleClaims rc;
+  
+  private void writeObject( ObjectOutputStream out ) throws IOException
+  {
+    out.defaultWriteObject();
+    SerialFormat.writeVersion( out, SERIAL_VERSION );
+    SerialFormat.writeString( out, courseid );
+    SerialFormat.writeString( out, deepLinkReturnUrl );
+    SerialFormat.writeString( out, platform_issuer );
+    out.writeObject( deployment_id );
+    out.writeObject( data );
+    out.writeObject( rc );
+  }
+
+  private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    SerialFormat.readVersion( in, DeepLinkingLaunchState.class );
+    courseid = SerialFormat.readString( in );
+    deepLinkReturnUrl = SerialFormat.readString( in );
+    platform_issuer = SerialFormat.readString( in );
+    deployment_id = in.readObject();
+    data = in.readObject();
+    rc = (LtiRoleClaims)in.readObject();
+  }
 }
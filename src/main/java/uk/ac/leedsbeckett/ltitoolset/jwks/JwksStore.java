@@ -204,6 +204,18 @@ public class JwksStore extends Store<String,JwksEntry> implements Runnable, Jwks
     return basepath.resolve( URLEncoder.encode( key, StandardCharsets.UTF_8 ) );
   }  
 
+  @Override
+  public Path getBasePath()
+  {
+    return basepath;
+  }
+
+  @Override
+  public String keyForPath( Path path )
+  {
+    return URLDecoder.decode( path.getFileName().toString(), StandardCharsets.UTF_8 );
+  }
+
   @JsonIgnore
   public Jwk getJwk( String uri, String kid ) throws IOException
   {
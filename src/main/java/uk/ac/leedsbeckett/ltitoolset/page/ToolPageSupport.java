@@ -24,6 +24,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import uk.ac.leedsbeckett.lti.LtiException;
 import uk.ac.leedsbeckett.lti.state.LtiStateStore;
+import uk.ac.leedsbeckett.ltitoolset.NodeAffinity;
 import uk.ac.leedsbeckett.ltitoolset.ToolSetLtiState;
 import static uk.ac.leedsbeckett.ltitoolset.page.PageSupport.logger;
 
@@ -38,6 +39,18 @@ public abstract class ToolPageSupport<T extends DynamicPageData> extends PageSup
 {
   static final Logger logger = Logger.getLogger( ToolPageSupport.class.getName() );
 
+  /**
+   * The request attribute that holds the LTI state when the launch servlet
+   * forwards to the page instead of redirecting.
+   */
+  public static final String STATE_ATTRIBUTE = ToolPageSupport.class.getName() + ".state";
+
+  /**
+   * The request attribute that holds the page's own URL when the launch 
+   * servlet forwards to the page instead of redirecting.
+   */
+  public static final String PAGE_URL_ATTRIBUTE = ToolPageSupport.class.getName() + ".pageurl";
+
   protected T dynamicPageData=null;
   
   
@@ -45,6 +58,8 @@ public abstract class ToolPageSupport<T extends DynamicPageData> extends PageSup
   
   protected ToolSetLtiState state;
   
+  protected String forwardedPageUrl;
+  
 
   /**
    * The JSP will call this to initiate processing and then call the getter
@@ -62,6 +77,9 @@ public abstract class ToolPageSupport<T extends DynamicPageData> extends PageSup
     logger.log(Level.FINE, "stateid {0}", stateid );
     if ( stateid == null )
       throw new ServletException( "State ID missing." );
+    if ( !toolCoordinator.getNodeAffinity().isLocal( stateid ) )
+      throw new ServletException( "State " + stateid + " is held by another server." );
+    stateid = NodeAffinity.toStateId( stateid );
     String claimedNonce = request.getParameter( "nonce" );
     logger.log(Level.FINE, "claimedNonce {0}", claimedNonce );
     if ( claimedNonce == null )
@@ -71,13 +89,28 @@ public abstract class ToolPageSupport<T extends DynamicPageData> extends PageSup
       throw new ServletException( "State store missing." );
     logger.log(Level.FINE, "State store available." );
     
-    try
+    String stateToken = request.getParameter( "state_token" );
+    Object forwarded = request.getAttribute( STATE_ATTRIBUTE );
+    if ( forwarded instanceof ToolSetLtiState 
+            && stateid.equals( ((ToolSetLtiState)forwarded).getId() )
+            && claimedNonce.equals( ((ToolSetLtiState)forwarded).getNonce() ) )
     {
-      state = statestore.getState( stateid, claimedNonce );
+      // The launch servlet forwarded here with the state it just saved.
+      state = (ToolSetLtiState)forwarded;
+      Object url = request.getAttribute( PAGE_URL_ATTRIBUTE );
+      if ( url instanceof String )
+        forwardedPageUrl = (String)url;
     }
-    catch ( LtiException ex )
+    else
     {
-      throw new ServletException( "Invalid nonce.", ex );
+      try
+      {
+        state = toolCoordinator.getLtiState( stateid, claimedNonce, stateToken );
+      }
+      catch ( LtiException ex )
+      {
+        throw new ServletException( "Invalid nonce.", ex );
+      }
     }
     
     if ( state == null )
@@ -90,7 +123,8 @@ public abstract class ToolPageSupport<T extends DynamicPageData> extends PageSup
     String uri = state.getToolLaunchState().getRelativeWebSocketUri();
     // This uri lacks the new nonce parameter so add it
     if ( uri != null )
-      dynamicPageData.setWebSocketUri( getBaseUri() + uri + "&nonce=" + state.getNonce() );
+      dynamicPageData.setWebSocketUri( getBaseUri() + uri + "&nonce=" + state.getNonce()
+              + ( stateToken == null ? "" : "&state_token=" + stateToken ) );
     logger.log(Level.FINE, "Done setting up ToolPageSupport." );
   }
   
@@ -114,4 +148,18 @@ public abstract class ToolPageSupport<T extends DynamicPageData> extends PageSup
     return dynamicPageData;
   }  
 
+  /**
+   * When the launch was forwarded to this page the browser's address is 
+   * still the launch URL, and reloading would repeat a launch that can 
+   * only be used once. Pages should replace the address with this URL, 
+   * for example with history.replaceState( null, '', url ), so that a 
+   * reload or bookmark asks for the page itself.
+   * 
+   * @return The page's URL if the launch was forwarded here, otherwise null.
+   */
+  public String getForwardedPageUrl()
+  {
+    return forwardedPageUrl;
+  }
+
 }
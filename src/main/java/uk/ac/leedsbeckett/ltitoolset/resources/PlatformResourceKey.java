@@ -16,7 +16,12 @@
 package uk.ac.leedsbeckett.ltitoolset.resources;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import uk.ac.leedsbeckett.ltitoolset.util.SerialFormat;
 import uk.ac.leedsbeckett.ltitoolset.util.TwoStringKey;
 
 
@@ -60,5 +65,55 @@ public class PlatformResourceKey extends TwoStringKey implements Serializable
   {
     return getB();
   }
-}
+
+  /**
+   * Serialize as a small proxy with a hand written form instead of the 
+   * class hierarchy.
+   * 
+   * @return The proxy.
+   * @throws ObjectStreamException Never.
+   */
+  private Object writeReplace() throws ObjectStreamException
+  {
+    return new SerialProxy( getPlatformId(), getResourceId() );
+  }
   
+  /**
+   * The serialized form of a PlatformResourceKey.
+   */
+  private static class SerialProxy implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    static final int SERIAL_VERSION = 1;
+    
+    private transient String platformId;
+    private transient String resourceId;
+
+    SerialProxy( String platformId, String resourceId )
+    {
+      this.platformId = platformId;
+      this.resourceId = resourceId;
+    }
+
+    private void writeObject( ObjectOutputStream out ) throws IOException
+    {
+      out.defaultWriteObject();
+      SerialFormat.writeVersion( out, SERIAL_VERSION );
+      out.writeUTF( platformId );
+      out.writeUTF( resourceId );
+    }
+
+    private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException
+    {
+      in.defaultReadObject();
+      SerialFormat.readVersion( in, PlatformResourceKey.class );
+      platformId = in.readUTF();
+      resourceId = in.readUTF();
+    }
+    
+    private Object readResolve() throws ObjectStreamException
+    {
+      return new PlatformResourceKey( platformId, resourceId );
+    }
+  }
+}
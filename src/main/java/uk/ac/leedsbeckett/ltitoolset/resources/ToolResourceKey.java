@@ -17,7 +17,9 @@ package uk.ac.leedsbeckett.ltitoolset.resources;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.io.Serializable;
+import java.util.Objects;
 import java.util.UUID;
+import uk.ac.leedsbeckett.ltitoolset.util.KeyHash;
 
 
 /**
@@ -29,6 +31,8 @@ import java.util.UUID;
 public class ToolResourceKey implements Serializable
 {
   String resourceId;
+  private transient int hash;
+  
   /**
    * The standard constructor.
    * 
@@ -37,6 +41,7 @@ public class ToolResourceKey implements Serializable
   public ToolResourceKey( @JsonProperty("resourceId") String resourceId )
   {
     this.resourceId = resourceId;
+    this.hash = KeyHash.of( resourceId );
   }
 
   /**
@@ -49,6 +54,31 @@ public class ToolResourceKey implements Serializable
     return resourceId;
   }
   
+  @Override
+  public boolean equals( Object obj )
+  {
+    if ( this == obj )
+      return true;
+    if ( !( obj instanceof ToolResourceKey ) )
+      return false;
+    return Objects.equals( resourceId, ((ToolResourceKey)obj).resourceId );
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int h = hash;
+    if ( h == 0 )
+      hash = h = KeyHash.of( resourceId );
+    return h;
+  }
+
+  @Override
+  public String toString()
+  {
+    return resourceId;
+  }
+  
   /**
    * Generate a new key as a UUID in standard string format.
    * @return A string version of the key.
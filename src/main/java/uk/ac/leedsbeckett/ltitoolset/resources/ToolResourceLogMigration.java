@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.resources;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import uk.ac.leedsbeckett.ltitoolset.store.LogStructuredBackend;
+
+/**
+ * Command line tool which imports an existing WEB-INF/resources tree into
+ * a log structured store. The web application should be stopped while
+ * this runs. The original tree is not changed.
+ * 
+ * Usage: ToolResourceLogMigration &lt;resources directory&gt; &lt;log directory&gt;
+ * 
+ * @author maber01
+ */
+public class ToolResourceLogMigration
+{
+  public static void main( String[] args ) throws IOException
+  {
+    if ( args.length != 2 )
+    {
+      System.err.println( "Usage: ToolResourceLogMigration <resources directory> <log directory>" );
+      System.exit( 1 );
+    }
+    Path resources = Paths.get( args[0] );
+    Path logpath = Paths.get( args[1] );
+    
+    long start = System.currentTimeMillis();
+    LogStructuredBackend<ToolResourceKey> log = new LogStructuredBackend<>( logpath, ToolResourceKey::getResourceId );
+    int count = log.importFiles( resources, p -> p.getFileName().toString() );
+    log.close();
+    System.out.println( "Imported " + count + " resources in " + ( System.currentTimeMillis() - start ) + "ms." );
+  }
+}
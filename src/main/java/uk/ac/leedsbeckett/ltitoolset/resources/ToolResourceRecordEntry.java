@@ -4,6 +4,7 @@
  */
 package uk.ac.leedsbeckett.ltitoolset.resources;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.io.Serializable;
 import uk.ac.leedsbeckett.ltitoolset.store.Entry;
 
@@ -15,6 +16,7 @@ public class ToolResourceRecordEntry implements Entry<ToolResourceKey>, Serializ
 {
   ToolResourceKey key;
   ToolResourceRecord record;
+  long version;
 
   /**
    * Create empty record with key.
@@ -66,6 +68,28 @@ public class ToolResourceRecordEntry implements Entry<ToolResourceKey>, Serializ
     this.record = record;
   }
   
+  /**
+   * Get the version, which increases each time the entry is saved.
+   * @return The version.
+   */
+  @JsonIgnore(false)
+  @Override
+  public long getVersion()
+  {
+    return version;
+  }
+
+  /**
+   * Set by the store.
+   * @param version The version.
+   */
+  @JsonIgnore(false)
+  @Override
+  public void setVersion( long version )
+  {
+    this.version = version;
+  }
+  
   /**
    * Option to initialize here.
    */
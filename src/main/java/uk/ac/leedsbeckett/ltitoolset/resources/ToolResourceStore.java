@@ -4,8 +4,13 @@
  */
 package uk.ac.leedsbeckett.ltitoolset.resources;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
+import uk.ac.leedsbeckett.ltitoolset.store.LogStructuredBackend;
+import uk.ac.leedsbeckett.ltitoolset.store.MVStoreBackend;
 import uk.ac.leedsbeckett.ltitoolset.store.Store;
+import uk.ac.leedsbeckett.ltitoolset.store.StoreIndex;
 import uk.ac.leedsbeckett.ltitoolset.util.UUIDToPath;
 
 /**
@@ -19,6 +24,12 @@ public class ToolResourceStore extends Store<ToolResourceKey,ToolResourceRecordE
   
   final Path basepath;
   
+  /** Index of resources by the ID of the platform context they were launched in. */
+  final StoreIndex<ToolResourceKey,ToolResourceRecordEntry> contextIndex;
+  /** Index of resources by the ID of the platform resource link. */
+  final StoreIndex<ToolResourceKey,ToolResourceRecordEntry> resourceLinkIndex;
+  /** Index of resources by tool type. */
+  final StoreIndex<ToolResourceKey,ToolResourceRecordEntry> toolTypeIndex;
 
   /**
    * Creates a resource store in a given folder.
@@ -29,8 +40,138 @@ public class ToolResourceStore extends Store<ToolResourceKey,ToolResourceRecordE
   {
     super( "toolresourcestore" );
     this.basepath = basepath;
+    contextIndex = defineIndex( "context", e -> e.getRecord().getPlatformContext().getId() );
+    resourceLinkIndex = defineIndex( "resourcelink", e -> e.getRecord().getPlatformResource().getId() );
+    toolTypeIndex = defineIndex( "tooltype", e -> e.getRecord().getToolType() );
   }
   
+  /**
+   * Find all the resources that were launched in a platform context.
+   * 
+   * @param contextId The context ID from the LTI context claim.
+   * @return The resources, empty if there are none.
+   */
+  public Collection<ToolResourceRecordEntry> findByContextId( String contextId )
+  {
+    return findBy( contextIndex.getName(), contextId ).values();
+  }
+  
+  /**
+   * Find the resources that belong to a platform resource link.
+   * 
+   * @param resourceLinkId The ID from the LTI resource link claim.
+   * @return The resources, empty if there are none.
+   */
+  public Collection<ToolResourceRecordEntry> findByResourceLinkId( String resourceLinkId )
+  {
+    return findBy( resourceLinkIndex.getName(), resourceLinkId ).values();
+  }
+  
+  /**
+   * Find all the resources of a tool type.
+   * 
+   * @param toolType The tool type.
+   * @return The resources, empty if there are none.
+   */
+  public Collection<ToolResourceRecordEntry> findByToolType( String toolType )
+  {
+    return findBy( toolTypeIndex.getName(), toolType ).values();
+  }
+  
+  
+  /**
+   * Switch from one file per resource to a log structured backend in the
+   * given directory. Must be called before the store is used.
+   * 
+   * @param logpath The directory where the log segments are kept.
+   * @return The backend so that the caller can import existing data.
+   * @throws IOException If the log could not be opened.
+   */
+  public LogStructuredBackend<ToolResourceKey> useLogStructuredBackend( Path logpath ) throws IOException
+  {
+    LogStructuredBackend<ToolResourceKey> log = new LogStructuredBackend<>( logpath, ToolResourceKey::getResourceId );
+    log.startCompacting( 10 );
+    setBackend( log );
+    return log;
+  }
+  
+  /**
+   * Switch from one file per resource to a single B-tree file. Must be 
+   * called before the store is used.
+   * 
+   * @param file The file.
+   * @param commitDelayMillis How often writes are committed, zero or less
+   * to commit every write.
+   * @return The backend so that the caller can import existing data.
+   * @throws IOException If the file could not be opened.
+   */
+  public MVStoreBackend<ToolResourceKey> useMVStoreBackend( Path file, long commitDelayMillis ) throws IOException
+  {
+    MVStoreBackend<ToolResourceKey> mv = new MVStoreBackend<>( file, getName(), ToolResourceKey::getResourceId, commitDelayMillis );
+    setBackend( mv );
+    return mv;
+  }
+  
+  /**
+   * Copy all resources from the one file per resource layout into a 
+   * B-tree file.
+   * 
+   * @param mv The backend to import into.
+   * @return The number of resources imported.
+   * @throws IOException If there was a problem reading or writing.
+   */
+  public int importInto( MVStoreBackend<ToolResourceKey> mv ) throws IOException
+  {
+    return mv.importFiles( basepath, p -> p.getFileName().toString().startsWith( "." ) ? null : p.getFileName().toString() );
+  }
+  
+  /**
+   * Copy all resources from the one file per resource layout into a log.
+   * 
+   * @param log The log to import into.
+   * @return The number of resources imported.
+   * @throws IOException If there was a problem reading or writing.
+   */
+  public int importInto( LogStructuredBackend<ToolResourceKey> log ) throws IOException
+  {
+    // Hidden files are saved indexes, not resources.
+    return log.importFiles( basepath, p -> p.getFileName().toString().startsWith( "." ) ? null : p.getFileName().toString() );
+  }
+  
+  /**
+   * Get the folder where resource files are kept.
+   * 
+   * @return The base path.
+   */
+  @Override
+  public Path getBasePath()
+  {
+    return basepath;
+  }
+  
+  /**
+   * Resource keys are saved in indexes as the resource ID.
+   * 
+   * @param key The key.
+   * @return The resource ID.
+   */
+  @Override
+  public String keyToText( ToolResourceKey key )
+  {
+    return key.getResourceId();
+  }
+  
+  /**
+   * Make a key from a resource ID saved in an index.
+   * 
+   * @param text The resource ID.
+   * @return The key.
+   */
+  @Override
+  public ToolResourceKey keyFromText( String text )
+  {
+    return new ToolResourceKey( text );
+  }
   
   /**
    * There might be many resource records in this store so, to avoid large number of
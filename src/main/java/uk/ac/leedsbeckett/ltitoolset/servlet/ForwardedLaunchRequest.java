@@ -0,0 +1,80 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.servlet;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * The launch request as a tool page or the fallback page sees it when the
+ * launch servlet forwards to it. The launch is a POST but a page may only
+ * handle GET, so this says it is a GET. The parameters in the query string
+ * of the page URL are still looked up in the wrapped request, because
+ * containers merge them in underneath application wrappers (Tomcat) or
+ * into the base request (Jetty). Only the id_token and state that the
+ * platform posted are hidden.
+ *
+ * @author maber01
+ */
+class ForwardedLaunchRequest extends HttpServletRequestWrapper
+{
+  /**
+   * The launch parameters that pages don't see.
+   */
+  static final Set<String> HIDDEN_PARAMETERS = Set.of( "id_token", "state" );
+
+  ForwardedLaunchRequest( HttpServletRequest request )
+  {
+    super( request );
+  }
+
+  @Override
+  public String getMethod()
+  {
+    return "GET";
+  }
+
+  @Override
+  public String getParameter( String name )
+  {
+    return HIDDEN_PARAMETERS.contains( name ) ? null : super.getParameter( name );
+  }
+
+  @Override
+  public Map<String,String[]> getParameterMap()
+  {
+    Map<String,String[]> map = new LinkedHashMap<>( super.getParameterMap() );
+    map.keySet().removeAll( HIDDEN_PARAMETERS );
+    return Collections.unmodifiableMap( map );
+  }
+
+  @Override
+  public Enumeration<String> getParameterNames()
+  {
+    return Collections.enumeration( getParameterMap().keySet() );
+  }
+
+  @Override
+  public String[] getParameterValues( String name )
+  {
+    return HIDDEN_PARAMETERS.contains( name ) ? null : super.getParameterValues( name );
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.servlet;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps launch timings for all launches, for each tool and for each issuer
+ * and publishes them with JMX. Only so many tools and issuers get their 
+ * own timings so the number of MBeans stays bounded.
+ * 
+ * @author maber01
+ */
+public class LaunchMetrics
+{
+  static final Logger logger = Logger.getLogger( LaunchMetrics.class.getName() );
+  
+  static final int MAX_KEYS = 200;
+  
+  private final String context;
+  private final LaunchTimings all = new LaunchTimings();
+  private final ConcurrentHashMap<String,LaunchTimings> byTool = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String,LaunchTimings> byIssuer = new ConcurrentHashMap<>();
+  private final List<ObjectName> names = new ArrayList<>();
+
+  /**
+   * Create an instance and publish the timings of all launches.
+   * 
+   * @param contextPath The servlet context path, used in MBean names.
+   */
+  public LaunchMetrics( String contextPath )
+  {
+    this.context = ObjectName.quote( contextPath.isEmpty() ? "/" : contextPath );
+    register( "", all );
+  }
+
+  /**
+   * Get the timings of all launches.
+   * 
+   * @return The timings.
+   */
+  public LaunchTimings getAll()
+  {
+    return all;
+  }
+  
+  /**
+   * Get the timings of launches of a tool.
+   * 
+   * @param tool The tool name.
+   * @return The timings or null if too many tools have timings.
+   */
+  public LaunchTimings getToolTimings( String tool )
+  {
+    return find( byTool, "tool", tool );
+  }
+  
+  /**
+   * Get the timings of launches from an issuer.
+   * 
+   * @param issuer The issuer.
+   * @return The timings or null if too many issuers have timings.
+   */
+  public LaunchTimings getIssuerTimings( String issuer )
+  {
+    return find( byIssuer, "issuer", issuer );
+  }
+  
+  /**
+   * Record the times of one launch.
+   * 
+   * @param tool The tool name or null.
+   * @param issuer The issuer or null.
+   * @param nanos The time of each stage.
+   */
+  public void record( String tool, String issuer, long[] nanos )
+  {
+    all.record( nanos );
+    LaunchTimings t = getToolTimings( tool );
+    if ( t != null )
+      t.record( nanos );
+    t = getIssuerTimings( issuer );
+    if ( t != null )
+      t.record( nanos );
+  }
+  
+  private LaunchTimings find( ConcurrentHashMap<String,LaunchTimings> map, String kind, String key )
+  {
+    if ( key == null )
+      return null;
+    LaunchTimings t = map.get( key );
+    if ( t != null || map.size() >= MAX_KEYS )
+      return t;
+    return map.computeIfAbsent( key, k -> 
+    {
+      LaunchTimings created = new LaunchTimings();
+      register( "," + kind + "=" + ObjectName.quote( k ), created );
+      return created;
+    } );
+  }
+  
+  private void register( String keys, LaunchTimings timings )
+  {
+    try
+    {
+      ObjectName name = new ObjectName( "uk.ac.leedsbeckett.ltitoolset:type=LaunchTimings,context=" 
+              + context + keys );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if ( server.isRegistered( name ) )
+        server.unregisterMBean( name );
+      server.registerMBean( timings, name );
+      synchronized ( names )
+      {
+        names.add( name );
+      }
+    }
+    catch ( JMException ex )
+    {
+      logger.log( Level.WARNING, "Unable to register launch timings MBean.", ex );
+    }
+  }
+  
+  /**
+   * Remove all the MBeans.
+   */
+  public void unregister()
+  {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    synchronized ( names )
+    {
+      for ( ObjectName name : names )
+      {
+        try
+        {
+          server.unregisterMBean( name );
+        }
+        catch ( JMException ex )
+        {
+          logger.log( Level.WARNING, "Unable to unregister launch timings MBean.", ex );
+        }
+      }
+      names.clear();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.servlet;
+
+import java.util.Locale;
+import uk.ac.leedsbeckett.ltitoolset.servlet.LaunchTimings.Stage;
+
+/**
+ * Times the stages of one launch. Each mark ends a stage and starts the
+ * next, so the stages add up to the whole launch.
+ * 
+ * @author maber01
+ */
+class LaunchTimer
+{
+  static final String ATTRIBUTE = LaunchTimer.class.getName();
+  
+  final long[] nanos = new long[LaunchTimings.STAGES.length];
+  private long last;
+
+  LaunchTimer()
+  {
+    last = System.nanoTime();
+  }
+  
+  /**
+   * End a stage.
+   * 
+   * @param stage The stage that has just finished.
+   */
+  void mark( Stage stage )
+  {
+    long now = System.nanoTime();
+    nanos[stage.ordinal()] += now - last;
+    last = now;
+  }
+  
+  /**
+   * Format the stages so far as a Server-Timing header value.
+   * 
+   * @return The header value.
+   */
+  String toServerTiming()
+  {
+    StringBuilder sb = new StringBuilder();
+    for ( Stage stage : LaunchTimings.STAGES )
+    {
+      if ( stage == Stage.REDIRECT )
+        continue;
+      if ( sb.length() > 0 )
+        sb.append( ", " );
+      sb.append( stage.getHeaderName() )
+        .append( ";dur=" )
+        .append( String.format( Locale.ROOT, "%.3f", nanos[stage.ordinal()] / 1000000.0 ) );
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.servlet;
+
+import uk.ac.leedsbeckett.ltitoolset.util.LatencyHistogram;
+
+/**
+ * Histograms of how long each stage of an LTI launch took.
+ * 
+ * @author maber01
+ */
+public class LaunchTimings implements LaunchTimingsMBean
+{
+  /**
+   * The stages of a launch, in the order they happen. The names are used
+   * in the Server-Timing header.
+   */
+  public enum Stage
+  {
+    /** Everything the LTI library does first, mainly JWT verification. */
+    VERIFY( "verify" ),
+    /** Checking the platform is allowed to launch. */
+    PERMIT( "permit" ),
+    /** Finding the tool. */
+    TOOL( "tool" ),
+    /** Finding the platform configuration. */
+    PLATFORM( "platform" ),
+    /** The tool setting up its launch state. */
+    INIT( "init" ),
+    /** Saving the LTI state. */
+    STORE( "store" ),
+    /** Sending the redirect to the tool page. */
+    REDIRECT( "redirect" );
+    
+    private final String headerName;
+
+    Stage( String headerName )
+    {
+      this.headerName = headerName;
+    }
+
+    public String getHeaderName()
+    {
+      return headerName;
+    }
+  }
+  
+  static final Stage[] STAGES = Stage.values();
+  
+  private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length + 1];
+
+  public LaunchTimings()
+  {
+    for ( int i=0; i<histograms.length; i++ )
+      histograms[i] = new LatencyHistogram();
+  }
+  
+  /**
+   * Add the times of one launch.
+   * 
+   * @param nanos The time of each stage, in nanoseconds, indexed by ordinal.
+   */
+  public void record( long[] nanos )
+  {
+    long total = 0L;
+    for ( int i=0; i<STAGES.length; i++ )
+    {
+      histograms[i].record( nanos[i] );
+      total += nanos[i];
+    }
+    histograms[STAGES.length].record( total );
+  }
+
+  @Override
+  public String[] getStages()
+  {
+    String[] names = new String[STAGES.length + 1];
+    for ( int i=0; i<STAGES.length; i++ )
+      names[i] = STAGES[i].getHeaderName();
+    names[STAGES.length] = "total";
+    return names;
+  }
+
+  @Override
+  public long[] getCounts()
+  {
+    long[] values = new long[histograms.length];
+    for ( int i=0; i<histograms.length; i++ )
+      values[i] = histograms[i].getCount();
+    return values;
+  }
+
+  @Override
+  public long[] getMeanMicros()
+  {
+    long[] values = new long[histograms.length];
+    for ( int i=0; i<histograms.length; i++ )
+      values[i] = histograms[i].getMeanMicros();
+    return values;
+  }
+
+  @Override
+  public long[] get50thPercentileMicros()
+  {
+    return percentiles( 50.0 );
+  }
+
+  @Override
+  public long[] get99thPercentileMicros()
+  {
+    return percentiles( 99.0 );
+  }
+
+  @Override
+  public long[] getMaxMicros()
+  {
+    long[] values = new long[histograms.length];
+    for ( int i=0; i<histograms.length; i++ )
+      values[i] = histograms[i].getMaxMicros();
+    return values;
+  }
+  
+  private long[] percentiles( double percentile )
+  {
+    long[] values = new long[histograms.length];
+    for ( int i=0; i<histograms.length; i++ )
+      values[i] = histograms[i].getPercentileMicros( percentile );
+    return values;
+  }
+
+  @Override
+  public void resetStatistics()
+  {
+    for ( LatencyHistogram h : histograms )
+      h.reset();
+  }
+}
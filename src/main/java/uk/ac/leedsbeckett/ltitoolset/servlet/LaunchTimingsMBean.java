@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.servlet;
+
+/**
+ * The management interface of a set of launch timings, published with JMX
+ * for all launches and for each tool and each issuer. Each array has one 
+ * value for each stage named by getStages() then one for the whole launch.
+ * Times are in microseconds.
+ * 
+ * @author maber01
+ */
+public interface LaunchTimingsMBean
+{
+  String[] getStages();
+  
+  long[] getCounts();
+  long[] getMeanMicros();
+  long[] get50thPercentileMicros();
+  long[] get99thPercentileMicros();
+  long[] getMaxMicros();
+  
+  /**
+   * Set all the counters back to zero.
+   */
+  void resetStatistics();
+}
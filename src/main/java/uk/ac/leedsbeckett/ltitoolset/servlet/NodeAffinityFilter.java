@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.servlet;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import uk.ac.leedsbeckett.ltitoolset.NodeAffinity;
+import uk.ac.leedsbeckett.ltitoolset.ToolCoordinator;
+
+/**
+ * Turns away requests for tool pages whose state ID belongs to another 
+ * server. If the other server's URL is configured the browser is 
+ * redirected there, otherwise the response is 421 (Misdirected Request) 
+ * so that the load balancer or the user can try again.
+ * 
+ * Only the query string is looked at so that request bodies are not read.
+ * 
+ * @author maber01
+ */
+public class NodeAffinityFilter extends HttpFilter
+{
+  static final Logger logger = Logger.getLogger( NodeAffinityFilter.class.getName() );
+
+  /**
+   * HTTP status code for a request that reached the wrong server.
+   */
+  public static final int SC_MISDIRECTED_REQUEST = 421;
+  
+  @Override
+  protected void doFilter( HttpServletRequest request, HttpServletResponse response, FilterChain chain )
+          throws IOException, ServletException
+  {
+    ToolCoordinator toolManager = ToolCoordinator.get( request.getServletContext() );
+    NodeAffinity affinity = toolManager == null ? null : toolManager.getNodeAffinity();
+    String query = request.getQueryString();
+    String node = affinity == null ? null : affinity.misroutedTo( query );
+    if ( node == null )
+    {
+      chain.doFilter( request, response );
+      return;
+    }
+    
+    String url = affinity.getNodeUrl( node );
+    logger.log( Level.FINE, "Request for state on node {0} reached node {1}.", new Object[] { node, affinity.getNodeId() } );
+    if ( url == null )
+    {
+      response.sendError( SC_MISDIRECTED_REQUEST, "This request belongs on another server." );
+      return;
+    }
+    response.setStatus( HttpServletResponse.SC_TEMPORARY_REDIRECT );
+    response.setHeader( "Location", url + request.getRequestURI() + "?" + query );
+  }
+}
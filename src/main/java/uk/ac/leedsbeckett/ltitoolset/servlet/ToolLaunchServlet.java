@@ -22,8 +22,19 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -34,14 +45,19 @@ import uk.ac.leedsbeckett.lti.config.LtiConfiguration;
 import uk.ac.leedsbeckett.lti.servlet.LtiLaunchServlet;
 import uk.ac.leedsbeckett.lti.state.LtiStateStore;
 import uk.ac.leedsbeckett.ltitoolset.LaunchDisallowedException;
+import uk.ac.leedsbeckett.ltitoolset.NodeAffinity;
+import uk.ac.leedsbeckett.ltitoolset.StateTokenCodec;
 import uk.ac.leedsbeckett.ltitoolset.Tool;
 import uk.ac.leedsbeckett.ltitoolset.ToolCoordinator;
 import uk.ac.leedsbeckett.ltitoolset.ToolKey;
 import uk.ac.leedsbeckett.ltitoolset.ToolLaunchState;
 import uk.ac.leedsbeckett.ltitoolset.ToolSetLtiState;
 import uk.ac.leedsbeckett.ltitoolset.annotations.ToolMapping;
+import uk.ac.leedsbeckett.ltitoolset.config.PlatformConfiguration;
 import uk.ac.leedsbeckett.ltitoolset.deeplinking.DeepLinkingLaunchState;
 import uk.ac.leedsbeckett.ltitoolset.deeplinking.DeepLinkingTool;
+import uk.ac.leedsbeckett.ltitoolset.page.ToolPageSupport;
+import uk.ac.leedsbeckett.ltitoolset.servlet.LaunchTimings.Stage;
 
 
 /**
@@ -53,6 +69,31 @@ import uk.ac.leedsbeckett.ltitoolset.deeplinking.DeepLinkingTool;
 public class ToolLaunchServlet extends LtiLaunchServlet<ToolSetLtiState>
 {
   static final Logger logger = Logger.getLogger(ToolLaunchServlet.class.getName() );
+
+  /**
+   * Turns requests away while the tool coordinator is warming up its 
+   * stores, if it has been configured to do so. Otherwise starts timing
+   * the launch.
+   * 
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @throws ServletException If the parent class has a problem.
+   * @throws IOException If the network connection is broken.
+   */
+  @Override
+  protected void service( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    ToolCoordinator toolManager = ToolCoordinator.get( request.getServletContext() );
+    if ( toolManager != null && !toolManager.isReady() )
+    {
+      response.setHeader( "Retry-After", "5" );
+      response.sendError( 503, "The tool is starting up, please try again shortly." );
+      return;
+    }
+    request.setAttribute( LaunchTimer.ATTRIBUTE, new LaunchTimer() );
+    super.service( request, response );
+  }
   
   /**
    * The parent class calls this method after it has processed and validated 
@@ -72,6 +113,9 @@ public class ToolLaunchServlet extends LtiLaunchServlet<ToolSetLtiState>
           throws ServletException, IOException
   {
     logger.info( "Processing Launch Request" );
+    LaunchTimer started = (LaunchTimer)request.getAttribute( LaunchTimer.ATTRIBUTE );
+    LaunchTimer timer = started == null ? new LaunchTimer() : started;
+    timer.mark( Stage.VERIFY );
     ToolCoordinator toolManager = ToolCoordinator.get( request.getServletContext() );
     if ( toolManager == null ) { response.sendError( 500, "Cannot find tool manager." ); return; }
     
@@ -85,7 +129,7 @@ public class ToolLaunchServlet extends LtiLaunchServlet<ToolSetLtiState>
       response.sendError( 500, "Launch request from " + lticlaims.getIssuer() + " has been disallowed by this tool's configuration. Reason: " + ex.getMessage() );
       return;
     }
-    
+    timer.mark( Stage.PERMIT );
     
     String toolid = lticlaims.getLtiCustom().getAsString( "digles.leedsbeckett.ac.uk#tool_name" );
     String tooltype = lticlaims.getLtiCustom().getAsString( "digles.leedsbeckett.ac.uk#tool_type" );
@@ -102,21 +146,27 @@ public class ToolLaunchServlet extends LtiLaunchServlet<ToolSetLtiState>
 
     ToolMapping toolMapping = toolManager.getToolMapping( toolKey );    
     state.setToolKey( toolKey );
+    timer.mark( Stage.TOOL );
     
+    PlatformConfiguration platformConfiguration = toolManager.getPlatformConfiguration( lticlaims );
+    timer.mark( Stage.PLATFORM );
     ToolLaunchState toolstate = tool.supplyToolLaunchState();
-    tool.initToolLaunchState( toolManager.getPlatformConfiguration( lticlaims ), toolstate, lticlaims, state );
-    state.setToolLaunchState( toolstate );
-    getLtiStateStore( request.getServletContext() ).updateState( state );
+    CompletionStage<Void> init = tool.initToolLaunchStateAsync( platformConfiguration, toolstate, lticlaims, state );
+    whenInitialized( toolManager, init, request, response, async ->
+    {
+      state.setToolLaunchState( toolstate );
+      applyNodeAffinity( toolManager, state, toolstate );
+      timer.mark( Stage.INIT );
+      getLtiStateStore( request.getServletContext() ).updateState( state );
+      timer.mark( Stage.STORE );
 
-    logger.fine( "Forwarding to tool index page." );
-    StringBuilder sb = new StringBuilder();
-    sb.append( request.getContextPath() )
-      .append( toolMapping.launchURI()  )
-      .append( "?state_id="             )
-      .append( state.getId()            )
-      .append( "&nonce="                )
-      .append( state.getNonce()         );
-    response.sendRedirect( response.encodeRedirectURL( sb.toString() ) );
+      logger.fine( "Forwarding to tool index page." );
+      if ( toolManager.isLaunchServerTiming() )
+        response.setHeader( "Server-Timing", timer.toServerTiming() );
+      sendToPage( toolManager, state, toolMapping.launchURI(), request, response, async );
+      timer.mark( Stage.REDIRECT );
+      toolManager.getLaunchMetrics().record( toolKey.toString(), lticlaims.getIssuer(), timer.nanos );
+    } );
   }
 
   /**
@@ -158,22 +208,322 @@ public class ToolLaunchServlet extends LtiLaunchServlet<ToolSetLtiState>
       logClaims( lticlaims, state );
     
     DeepLinkingLaunchState deepstate = (DeepLinkingLaunchState)tool.supplyToolLaunchState();
-    tool.initToolLaunchState( toolManager.getPlatformConfiguration( lticlaims ), deepstate, lticlaims, state );
-    state.setToolLaunchState( deepstate );
-    getLtiStateStore( request.getServletContext() ).updateState( state );
+    CompletionStage<Void> init = tool.initToolLaunchStateAsync( toolManager.getPlatformConfiguration( lticlaims ), deepstate, lticlaims, state );
+    whenInitialized( toolManager, init, request, response, async ->
+    {
+      state.setToolLaunchState( deepstate );
+      applyNodeAffinity( toolManager, state, deepstate );
+      getLtiStateStore( request.getServletContext() ).updateState( state );
 
+      logger.fine( "Forwarding to deep linking page." );
+      sendToPage( toolManager, state, toolManager.getDeepLinkingUrl(), request, response, async );
+    } );
+  }
+
+  /**
+   * The rest of a launch, which runs once the tool has set up its launch
+   * state.
+   */
+  @FunctionalInterface
+  protected interface LaunchCompletion
+  {
+    /**
+     * Finish the launch.
+     * 
+     * @param async The async context if the request has gone asynchronous
+     * otherwise null.
+     * @throws ServletException If there is an internal problem forwarding the user's browser.
+     * @throws IOException If the network connection is broken.
+     */
+    void complete( AsyncContext async ) throws ServletException, IOException;
+  }
+  
+  /**
+   * Finish a launch when the tool has set up its launch state. If that has
+   * already happened, or the request can't go asynchronous, it is done on 
+   * this thread. Otherwise the request goes asynchronous so that this 
+   * thread is released, and the launch is finished on a container thread
+   * when the tool is ready. If the tool takes longer than the configured 
+   * timeout the fallback page is sent instead.
+   * 
+   * @param toolManager The tool coordinator.
+   * @param init The stage returned by the tool.
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @param next The rest of the launch.
+   * @throws ServletException If the tool failed or the launch could not be finished.
+   * @throws IOException If the network connection is broken.
+   */
+  protected void whenInitialized( ToolCoordinator toolManager, CompletionStage<Void> init, 
+          HttpServletRequest request, HttpServletResponse response, LaunchCompletion next )
+          throws ServletException, IOException
+  {
+    CompletableFuture<Void> future = init.toCompletableFuture();
+    long timeout = toolManager.getLaunchTimeoutSeconds();
+    if ( future.isDone() || !request.isAsyncSupported() )
+    {
+      try
+      {
+        future.get( timeout, TimeUnit.SECONDS );
+      }
+      catch ( TimeoutException ex )
+      {
+        logger.log( Level.WARNING, "Tool took too long to set up a launch." );
+        sendFallbackPage( toolManager, request, response, null );
+        return;
+      }
+      catch ( ExecutionException ex )
+      {
+        throw new ServletException( "Tool failed to set up a launch.", ex.getCause() );
+      }
+      catch ( InterruptedException ex )
+      {
+        Thread.currentThread().interrupt();
+        throw new ServletException( "Interrupted while tool set up a launch.", ex );
+      }
+      next.complete( null );
+      return;
+    }
+    
+    // A page or the fallback page is dispatched to with the request that
+    // went asynchronous so it must already look like a page request.
+    AsyncContext async = request.startAsync( new ForwardedLaunchRequest( request ), response );
+    async.setTimeout( TimeUnit.SECONDS.toMillis( timeout ) );
+    // Either the tool finishes or the timeout fires, not both.
+    AtomicBoolean finished = new AtomicBoolean( false );
+    // Counted down once the launch has been finished on a container thread.
+    CountDownLatch handedOff = new CountDownLatch( 1 );
+    async.addListener( new AsyncListener()
+    {
+      @Override
+      public void onTimeout( AsyncEvent event ) throws IOException
+      {
+        if ( !finished.compareAndSet( false, true ) )
+        {
+          // The tool finished just in time but the launch hasn't been sent
+          // yet. If this returns first the container sends an error and 
+          // the launch fails when it writes the response, so give it more 
+          // time and wait until it has completed or dispatched.
+          try
+          {
+            event.getAsyncContext().setTimeout( TimeUnit.SECONDS.toMillis( timeout ) );
+          }
+          catch ( IllegalStateException ex )
+          {
+            logger.log( Level.FINE, "Unable to extend launch timeout.", ex );
+          }
+          try
+          {
+            if ( !handedOff.await( timeout, TimeUnit.SECONDS ) )
+              logger.log( Level.WARNING, "Tool set up a launch at the timeout but the launch was not sent in time." );
+          }
+          catch ( InterruptedException ex )
+          {
+            Thread.currentThread().interrupt();
+          }
+          return;
+        }
+        logger.log( Level.WARNING, "Tool took too long to set up a launch." );
+        try
+        {
+          sendFallbackPage( toolManager, request, response, async );
+        }
+        catch ( ServletException ex )
+        {
+          throw new IOException( ex );
+        }
+      }
+
+      @Override
+      public void onComplete( AsyncEvent event )
+      {
+      }
+
+      @Override
+      public void onError( AsyncEvent event )
+      {
+        finished.set( true );
+      }
+
+      @Override
+      public void onStartAsync( AsyncEvent event )
+      {
+      }
+    } );
+    
+    future.whenComplete( ( result, failure ) -> 
+    {
+      if ( !finished.compareAndSet( false, true ) )
+        return;
+      async.start( () ->
+      {
+        try
+        {
+          if ( failure == null )
+            next.complete( async );
+          else
+          {
+            logger.log( Level.SEVERE, "Tool failed to set up a launch.", failure );
+            response.sendError( 500, "The tool was unable to set up this launch." );
+            async.complete();
+          }
+        }
+        catch ( ServletException | IOException | RuntimeException ex )
+        {
+          logger.log( Level.SEVERE, "Unable to finish launch.", ex );
+          try
+          {
+            async.complete();
+          }
+          catch ( IllegalStateException ise )
+          {
+            logger.log( Level.FINE, "Launch already finished.", ise );
+          }
+        }
+        finally
+        {
+          handedOff.countDown();
+        }
+      } );
+    } );
+  }
+  
+  /**
+   * Tell the user that the tool took too long to set up the launch, using
+   * the configured fallback page if there is one. Like a forwarded tool 
+   * page, the fallback page sees a GET without the id_token and state.
+   * 
+   * @param toolManager The tool coordinator.
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @param async The async context or null.
+   * @throws ServletException If the fallback page fails.
+   * @throws IOException If the network connection is broken.
+   */
+  protected void sendFallbackPage( ToolCoordinator toolManager, HttpServletRequest request, HttpServletResponse response, AsyncContext async )
+          throws ServletException, IOException
+  {
+    String page = toolManager.getLaunchFallbackPage();
+    if ( page != null )
+    {
+      if ( async != null )
+        async.dispatch( page );
+      else
+        request.getRequestDispatcher( page ).forward( new ForwardedLaunchRequest( request ), response );
+      return;
+    }
     
-    logger.fine( "Forwarding to deep linking page." );
+    response.setStatus( 503 );
+    response.setHeader( "Retry-After", "5" );
+    response.setContentType( "text/html;charset=UTF-8" );
+    try (  PrintWriter out = response.getWriter() )
+    {
+      out.println( "<!DOCTYPE html>" );
+      out.println( "<html>" );
+      out.println( "<head><title>Please try again</title></head>" );
+      out.println( "<body>" );
+      out.println( "<p>The tool is taking too long to start. Please launch it again from your course.</p>" );
+      out.println( "</body>" );
+      out.println( "</html>" );
+    }
+    if ( async != null )
+      async.complete();
+  }
+
+
+  /**
+   * Send the user to a tool page. Usually the browser is redirected to the
+   * page. In launch forward mode the page is run straight away with the 
+   * state in a request attribute, which saves a round trip and a state 
+   * lookup. The page sees a GET request with the state_id, nonce and
+   * state_token parameters, as it would after a redirect, and without the
+   * id_token and state that the platform posted. The browser's
+   * address is still the launch URL though, so pages must not use URLs 
+   * relative to their own location. Reloading would post the launch again
+   * and be refused because its nonce has been used, so the page's own URL
+   * is put in a request attribute for the page to show with 
+   * history.replaceState(). Then a reload asks for the page.
+   * 
+   * @param toolManager The tool coordinator.
+   * @param state The LTI state.
+   * @param pageUri The page, relative to the context.
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @param async The async context if the request has gone asynchronous
+   * otherwise null.
+   * @throws ServletException If the page fails.
+   * @throws IOException If the network connection is broken.
+   */
+  protected void sendToPage( ToolCoordinator toolManager, ToolSetLtiState state, String pageUri, 
+          HttpServletRequest request, HttpServletResponse response, AsyncContext async )
+          throws ServletException, IOException
+  {
     StringBuilder sb = new StringBuilder();
-    sb.append( request.getContextPath()        )
-      .append( toolManager.getDeepLinkingUrl() )
-      .append( "?state_id="                    )
-      .append( state.getId()                   )
-      .append( "&nonce="                       )
-      .append( state.getNonce()                );
-    response.sendRedirect( response.encodeRedirectURL( sb.toString() ) );
+    sb.append( pageUri         )
+      .append( "?state_id="    )
+      .append( toolManager.getNodeAffinity().toExternalId( state.getId() ) )
+      .append( "&nonce="       )
+      .append( state.getNonce() );
+    appendStateToken( toolManager, state, sb );
+    
+    if ( toolManager.isLaunchForward() )
+    {
+      if ( async != null )
+      {
+        request.setAttribute( ToolPageSupport.STATE_ATTRIBUTE, state );
+        request.setAttribute( ToolPageSupport.PAGE_URL_ATTRIBUTE, request.getContextPath() + sb.toString() );
+        async.dispatch( sb.toString() );
+        return;
+      }
+      RequestDispatcher dispatcher = request.getRequestDispatcher( sb.toString() );
+      if ( dispatcher != null )
+      {
+        request.setAttribute( ToolPageSupport.STATE_ATTRIBUTE, state );
+        request.setAttribute( ToolPageSupport.PAGE_URL_ATTRIBUTE, request.getContextPath() + sb.toString() );
+        dispatcher.forward( new ForwardedLaunchRequest( request ), response );
+        return;
+      }
+    }
+    response.sendRedirect( response.encodeRedirectURL( request.getContextPath() + sb.toString() ) );
+    if ( async != null )
+      async.complete();
+  }
+
+  /**
+   * If this server has a node ID, put it in front of the state ID in the 
+   * web socket URI that the tool made.
+   * 
+   * @param toolManager The tool coordinator.
+   * @param state The LTI state.
+   * @param toolstate The tool launch state.
+   */
+  protected void applyNodeAffinity( ToolCoordinator toolManager, ToolSetLtiState state, ToolLaunchState toolstate )
+  {
+    NodeAffinity affinity = toolManager.getNodeAffinity();
+    String uri = toolstate.getRelativeWebSocketUri();
+    if ( !affinity.isEnabled() || uri == null )
+      return;
+    toolstate.setRelativeWebSocketUri( uri.replace( "state_id=" + state.getId(), "state_id=" + affinity.toExternalId( state.getId() ) ) );
   }
 
+  /**
+   * If state tokens are configured add one to the URL of the tool page.
+   * The state stays in the state store too, for states too big for a token
+   * and for servers that get a page request without one.
+   * 
+   * @param toolManager The tool coordinator.
+   * @param state The LTI state.
+   * @param sb The URL being built.
+   */
+  protected void appendStateToken( ToolCoordinator toolManager, ToolSetLtiState state, StringBuilder sb )
+  {
+    StateTokenCodec codec = toolManager.getStateTokenCodec();
+    if ( codec == null )
+      return;
+    String token = codec.encode( state );
+    if ( token != null )
+      sb.append( "&state_token=" ).append( token );
+  }
 
   protected void logClaims( LtiClaims lticlaims, ToolSetLtiState state )
   {
@@ -296,5 +646,5 @@ public class ToolLaunchServlet extends LtiLaunchServlet<ToolSetLtiState>
   protected LtiConfiguration getLtiConfiguration( ServletContext context )
   {
     return ToolCoordinator.get( context ).getLtiConfiguration();
-  }  
+  }
 }
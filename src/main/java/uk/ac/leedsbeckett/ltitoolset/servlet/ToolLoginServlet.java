@@ -16,8 +16,12 @@
 
 package uk.ac.leedsbeckett.ltitoolset.servlet;
 
+import java.io.IOException;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import uk.ac.leedsbeckett.lti.config.LtiConfiguration;
 import uk.ac.leedsbeckett.lti.servlet.LtiLoginServlet;
 import uk.ac.leedsbeckett.lti.state.LtiStateStore;
@@ -34,6 +38,29 @@ public class ToolLoginServlet extends LtiLoginServlet<ToolSetLtiState>
 {
   static final Logger logger = Logger.getLogger(ToolLoginServlet.class.getName() );
 
+  /**
+   * Turns requests away while the tool coordinator is warming up its 
+   * stores, if it has been configured to do so.
+   * 
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @throws ServletException If the parent class has a problem.
+   * @throws IOException If the network connection is broken.
+   */
+  @Override
+  protected void service( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    ToolCoordinator toolManager = ToolCoordinator.get( request.getServletContext() );
+    if ( toolManager != null && !toolManager.isReady() )
+    {
+      response.setHeader( "Retry-After", "5" );
+      response.sendError( 503, "The tool is starting up, please try again shortly." );
+      return;
+    }
+    super.service( request, response );
+  }
+
   /**
    * This implementation ensures that the library code knows how to store
    * LTI state.
@@ -15,6 +15,8 @@
  */
 package uk.ac.leedsbeckett.ltitoolset.store;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * A template class for entries that will go in a cache backed store.
  * 
@@ -42,4 +44,30 @@ public abstract interface Entry<K>
    * be called.
    */
   public void initialize();
+  
+  /**
+   * Get the version of this entry, which the store increases each time the
+   * entry is saved. Used by Store.compareAndUpdate() to detect concurrent 
+   * updates. Entries that don't override this and setVersion() with a 
+   * stored field are always version zero, so updates to them can't be 
+   * checked. Overrides should be annotated with JsonIgnore(false) so the
+   * version is saved.
+   * 
+   * @return The version.
+   */
+  @JsonIgnore
+  public default long getVersion()
+  {
+    return 0L;
+  }
+  
+  /**
+   * Set the version of this entry. Called by the store.
+   * 
+   * @param version The version.
+   */
+  @JsonIgnore
+  public default void setVersion( long version )
+  {
+  }
 }
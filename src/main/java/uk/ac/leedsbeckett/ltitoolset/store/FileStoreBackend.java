@@ -0,0 +1,160 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The default backend which keeps each entry in its own file.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ */
+public class FileStoreBackend<K> implements StoreBackend<K>
+{
+  static final Logger logger = Logger.getLogger( FileStoreBackend.class.getName() );
+
+  private final Function<K,Path> pathFunction;
+  private final Supplier<Path> basePathSupplier;
+
+  /**
+   * Create a backend that uses a function to decide which file each key
+   * is stored in.
+   * 
+   * @param pathFunction Maps keys to file paths.
+   * @param basePathSupplier Supplies the directory that contains all the 
+   * files, for scanning. It may supply null if that isn't known.
+   */
+  public FileStoreBackend( Function<K,Path> pathFunction, Supplier<Path> basePathSupplier )
+  {
+    this.pathFunction = pathFunction;
+    this.basePathSupplier = basePathSupplier;
+  }
+  
+  @Override
+  public byte[] read( K key ) throws IOException
+  {
+    Path filepath = pathFunction.apply( key );
+    try
+    {
+      byte[] data = Files.readAllBytes( filepath );
+      logger.log( Level.FINE, "Loaded data {0}", filepath );
+      return data;
+    }
+    catch ( NoSuchFileException ex )
+    {
+      return null;
+    }
+  }
+
+  @Override
+  public void write( K key, byte[] data ) throws IOException
+  {
+    Path filepath = pathFunction.apply( key );
+    Files.createDirectories( filepath.getParent() );
+    logger.log( Level.FINE, "Saving data to {0}", filepath );
+    // Write to a hidden file and move it into place so that anything
+    // watching the directory never sees a half written file.
+    Path temp = filepath.resolveSibling( "." + filepath.getFileName().toString() + ".tmp" );
+    Files.write( temp, data );
+    Files.move( temp, filepath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+  }
+
+  /**
+   * Walk the directory tree. A parallel scan gives each top level 
+   * directory to a different thread, which suits stores that spread files
+   * over a fan out of directories such as UUIDToPath does.
+   * 
+   * @param parallel True for a parallel stream.
+   * @return A stream of file contents.
+   * @throws IOException If the base directory can't be listed.
+   */
+  @Override
+  public Stream<byte[]> scan( boolean parallel ) throws IOException
+  {
+    Path base = basePathSupplier.get();
+    if ( base == null )
+      throw new UnsupportedOperationException( "This store does not have a base path to scan." );
+    if ( !Files.isDirectory( base ) )
+      return Stream.empty();
+    if ( !parallel )
+      return files( base ).map( this::readQuietly ).filter( Objects::nonNull );
+    
+    List<Path> tops;
+    try ( Stream<Path> list = Files.list( base ) )
+    {
+      tops = list.collect( Collectors.toList() );
+    }
+    return tops.parallelStream()
+            .flatMap( this::filesQuietly )
+            .map( this::readQuietly )
+            .filter( Objects::nonNull );
+  }
+  
+  private Stream<Path> files( Path root ) throws IOException
+  {
+    return Files.walk( root )
+            .filter( p -> !p.getFileName().toString().startsWith( "." ) )
+            .filter( Files::isRegularFile );
+  }
+  
+  private Stream<Path> filesQuietly( Path root )
+  {
+    try
+    {
+      return files( root );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Unable to scan " + root, ex );
+      return Stream.empty();
+    }
+  }
+  
+  private byte[] readQuietly( Path p )
+  {
+    try
+    {
+      return Files.readAllBytes( p );
+    }
+    catch ( NoSuchFileException ex )
+    {
+      return null;
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Unable to read " + p, ex );
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+  }
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A backend that appends entries to a small number of large segment files
+ * instead of creating one file per entry. An in-memory index records where
+ * the latest version of each entry is. Segments that are full are read
+ * through a memory map. A background task compacts segments that are
+ * mostly made up of superseded entries.
+ *
+ * Each record in a segment is laid out as: key length (int), data length
+ * (int), key (UTF-8), data, CRC32 of key and data (int).
+ *
+ * @author maber01
+ * @param <K> The key class.
+ */
+public class LogStructuredBackend<K> implements StoreBackend<K>
+{
+  static final Logger logger = Logger.getLogger( LogStructuredBackend.class.getName() );
+
+  static final String SEGMENT_PREFIX = "segment-";
+  static final String SEGMENT_SUFFIX = ".log";
+  static final int HEADER_SIZE = 8;
+  static final int TRAILER_SIZE = 4;
+  static final int OFFSET_BITS = 40;
+  static final long OFFSET_MASK = ( 1L << OFFSET_BITS ) - 1L;
+
+  private final Path directory;
+  private final Function<K,String> idFunction;
+  private final long maxSegmentSize;
+  private final double compactionThreshold;
+
+  /**
+   * Maps entry IDs to the segment and offset of the latest record packed
+   * into one long.
+   */
+  private final ConcurrentHashMap<String,Long> index = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<Integer,Segment> segments = new ConcurrentSkipListMap<>();
+  private final Object appendLock = new Object();
+  private Segment active;
+  private ScheduledExecutorService compactor;
+
+  /**
+   * Open a log in a directory with default segment size (64MB) and
+   * compaction threshold (half the segment superseded).
+   *
+   * @param directory Where the segment files go.
+   * @param idFunction Maps keys to a unique string ID.
+   * @throws IOException If the existing segments could not be read.
+   */
+  public LogStructuredBackend( Path directory, Function<K,String> idFunction ) throws IOException
+  {
+    this( directory, idFunction, 64L*1024L*1024L, 0.5 );
+  }
+
+  /**
+   * Open a log in a directory. Existing segments are scanned to rebuild
+   * the index.
+   *
+   * @param directory Where the segment files go.
+   * @param idFunction Maps keys to a unique string ID.
+   * @param maxSegmentSize When a segment reaches this size a new one is started.
+   * @param compactionThreshold The fraction of a full segment that must be
+   * superseded before it is compacted.
+   * @throws IOException If the existing segments could not be read.
+   */
+  public LogStructuredBackend( Path directory, Function<K,String> idFunction, long maxSegmentSize, double compactionThreshold ) throws IOException
+  {
+    if ( maxSegmentSize <= 0 || maxSegmentSize > Integer.MAX_VALUE )
+      throw new IllegalArgumentException( "Segment size must be positive and less than 2GB." );
+    this.directory = directory;
+    this.idFunction = idFunction;
+    this.maxSegmentSize = maxSegmentSize;
+    this.compactionThreshold = compactionThreshold;
+    Files.createDirectories( directory );
+    recover();
+  }
+
+  /**
+   * Start compacting in the background.
+   *
+   * @param periodMinutes How often to look for segments to compact.
+   */
+  public synchronized void startCompacting( long periodMinutes )
+  {
+    if ( compactor != null )
+      return;
+    compactor = Executors.newSingleThreadScheduledExecutor();
+    compactor.scheduleWithFixedDelay( this::compactQuietly, periodMinutes, periodMinutes, TimeUnit.MINUTES );
+  }
+
+  /**
+   * How many entries are in the index.
+   *
+   * @return The count.
+   */
+  public int size()
+  {
+    return index.size();
+  }
+
+  @Override
+  public byte[] read( K key ) throws IOException
+  {
+    return readById( idFunction.apply( key ) );
+  }
+  
+  /**
+   * Read an entry using its ID rather than its key.
+   *
+   * @param id The entry ID.
+   * @return The data or null if there is no such entry.
+   * @throws IOException If the data could not be read.
+   */
+  public byte[] readById( String id ) throws IOException
+  {
+    // Compaction may move a record and delete its segment between looking
+    // up the index and reading so try again with the new location.
+    for ( int attempt=0; attempt<3; attempt++ )
+    {
+      Long location = index.get( id );
+      if ( location == null )
+        return null;
+      Segment segment = segments.get( segmentOf( location ) );
+      if ( segment == null )
+        continue;
+      try
+      {
+        return segment.readData( offsetOf( location ) );
+      }
+      catch ( SegmentClosedException ex )
+      {
+        // compacted away
+      }
+    }
+    throw new IOException( "Unable to read entry that keeps moving. " + id );
+  }
+
+  @Override
+  public void write( K key, byte[] data ) throws IOException
+  {
+    append( idFunction.apply( key ), data, null );
+  }
+
+  /**
+   * Stream the latest record of every entry in the index as it was when
+   * the scan started.
+   *
+   * @param parallel True for a parallel stream.
+   * @return A stream of entry data.
+   */
+  @Override
+  public Stream<byte[]> scan( boolean parallel )
+  {
+    ArrayList<String> ids = new ArrayList<>( index.keySet() );
+    Stream<String> stream = parallel ? ids.parallelStream() : ids.stream();
+    return stream.map( id ->
+    {
+      try
+      {
+        return readById( id );
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.WARNING, "Unable to read " + id, ex );
+        return null;
+      }
+    } ).filter( Objects::nonNull );
+  }
+
+  /**
+   * Stream the entries with IDs in a range. The index isn't sorted so this
+   * sorts a snapshot of the IDs first.
+   *
+   * @param fromId The first ID, inclusive, or null to start at the beginning.
+   * @param toId The last ID, inclusive, or null to go to the end.
+   * @return A stream of entry data.
+   */
+  @Override
+  public Stream<byte[]> scanRange( String fromId, String toId )
+  {
+    return index.keySet().stream()
+            .filter( id -> fromId == null || id.compareTo( fromId ) >= 0 )
+            .filter( id -> toId == null || id.compareTo( toId ) <= 0 )
+            .sorted()
+            .collect( Collectors.toList() )
+            .stream()
+            .map( id ->
+            {
+              try
+              {
+                return readById( id );
+              }
+              catch ( IOException ex )
+              {
+                logger.log( Level.WARNING, "Unable to read " + id, ex );
+                return null;
+              }
+            } )
+            .filter( Objects::nonNull );
+  }
+
+  /**
+   * Write an entry using its ID rather than its key. Used when importing.
+   *
+   * @param id The entry ID.
+   * @param data The data.
+   * @throws IOException If the data could not be written.
+   */
+  public void writeById( String id, byte[] data ) throws IOException
+  {
+    append( id, data, null );
+  }
+
+  /**
+   * Append a record and point the index at it.
+   *
+   * @param id The entry ID.
+   * @param data The data.
+   * @param expected If not null the index is only updated if it still
+   * points here. Used by compaction so it doesn't undo a newer write.
+   * @throws IOException If the data could not be written.
+   */
+  private void append( String id, byte[] data, Long expected ) throws IOException
+  {
+    byte[] idbytes = id.getBytes( StandardCharsets.UTF_8 );
+    ByteBuffer record = encode( idbytes, data );
+    synchronized ( appendLock )
+    {
+      if ( expected != null && !expected.equals( index.get( id ) ) )
+        return;
+      if ( active.size >= maxSegmentSize )
+        roll();
+      long offset = active.append( record );
+      Long previous = index.put( id, pack( active.id, offset ) );
+      if ( previous != null )
+        markDead( previous );
+    }
+  }
+
+  /**
+   * Account for a record that has been superseded.
+   *
+   * @param location Where the old record is.
+   */
+  private void markDead( Long location )
+  {
+    Segment segment = segments.get( segmentOf( location ) );
+    if ( segment == null )
+      return;
+    try
+    {
+      segment.dead += segment.recordSize( offsetOf( location ) );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Unable to read superseded record header.", ex );
+    }
+  }
+
+  /**
+   * Seal the active segment and start a new one. Caller must hold the
+   * append lock.
+   *
+   * @throws IOException If the new segment could not be created.
+   */
+  private void roll() throws IOException
+  {
+    active.seal();
+    active = openSegment( active.id + 1 );
+    segments.put( active.id, active );
+  }
+
+  /**
+   * Compact, logging rather than throwing problems.
+   */
+  private void compactQuietly()
+  {
+    try
+    {
+      compact();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Log compaction failed.", ex );
+    }
+  }
+
+  /**
+   * Copy the live records out of every full segment that is mostly
+   * superseded and then, once the copies are on disk, delete it.
+   *
+   * @throws IOException If a segment could not be compacted.
+   */
+  public void compact() throws IOException
+  {
+    for ( Segment segment : new ArrayList<>( segments.values() ) )
+    {
+      if ( !segment.sealed || segment.size == 0 )
+        continue;
+      if ( (double)segment.dead / (double)segment.size < compactionThreshold )
+        continue;
+      logger.log( Level.INFO, "Compacting {0}", segment.path );
+      segment.forEachRecord( ( offset, id, data ) -> {
+        Long location = pack( segment.id, offset );
+        if ( location.equals( index.get( id ) ) )
+          append( id, data, location );
+        return true;
+      } );
+      // The source segment was forced when it was sealed, so the copies
+      // must be on disk, and findable, before it goes.
+      synchronized ( appendLock )
+      {
+        active.channel.force( false );
+      }
+      syncDirectory();
+      segments.remove( segment.id );
+      segment.close();
+      Files.deleteIfExists( segment.path );
+    }
+  }
+
+  /**
+   * Force the directory to disk so that newly created segment files are
+   * still there after a power loss. Not every platform can open a 
+   * directory to do this, in which case it is skipped.
+   */
+  private void syncDirectory()
+  {
+    try ( FileChannel channel = FileChannel.open( directory, StandardOpenOption.READ ) )
+    {
+      channel.force( true );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.FINE, "Unable to sync directory " + directory, ex );
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    if ( compactor != null )
+    {
+      compactor.shutdownNow();
+      compactor = null;
+    }
+    synchronized ( appendLock )
+    {
+      for ( Segment segment : segments.values() )
+        segment.close();
+    }
+  }
+
+  /**
+   * Scan the segment files on disk, rebuild the index and truncate any
+   * partly written record at the end of the last segment.
+   *
+   * @throws IOException If a segment could not be read.
+   */
+  private void recover() throws IOException
+  {
+    List<Integer> ids = new ArrayList<>();
+    try ( Stream<Path> list = Files.list( directory ) )
+    {
+      list.forEach( p -> {
+        String n = p.getFileName().toString();
+        if ( n.startsWith( SEGMENT_PREFIX ) && n.endsWith( SEGMENT_SUFFIX ) )
+          ids.add( Integer.valueOf( n.substring( SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length() ) ) );
+      } );
+    }
+    ids.sort( null );
+    for ( int i=0; i<ids.size(); i++ )
+    {
+      Segment segment = openSegment( ids.get( i ) );
+      segments.put( segment.id, segment );
+      long good = segment.forEachRecord( ( offset, id, data ) -> {
+        Long previous = index.put( id, pack( segment.id, offset ) );
+        if ( previous != null )
+          markDead( previous );
+        return true;
+      } );
+      if ( good < segment.size )
+      {
+        logger.log( Level.WARNING, "Discarding damaged tail of {0} from {1}", new Object[]{segment.path, good} );
+        segment.truncate( good );
+      }
+      if ( i < ids.size() - 1 )
+        segment.seal();
+    }
+    if ( segments.isEmpty() )
+      segments.put( 1, openSegment( 1 ) );
+    active = segments.lastEntry().getValue();
+    logger.log( Level.INFO, "Log {0} has {1} entries in {2} segments.", new Object[]{directory, index.size(), segments.size()} );
+  }
+
+  private Segment openSegment( int id ) throws IOException
+  {
+    return new Segment( id, directory.resolve( String.format( "%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX ) ) );
+  }
+
+  static ByteBuffer encode( byte[] idbytes, byte[] data )
+  {
+    CRC32 crc = new CRC32();
+    crc.update( idbytes );
+    crc.update( data );
+    ByteBuffer record = ByteBuffer.allocate( HEADER_SIZE + idbytes.length + data.length + TRAILER_SIZE );
+    record.putInt( idbytes.length ).putInt( data.length ).put( idbytes ).put( data ).putInt( (int)crc.getValue() );
+    record.flip();
+    return record;
+  }
+
+  static long pack( int segment, long offset )
+  {
+    return ( (long)segment << OFFSET_BITS ) | offset;
+  }
+
+  static int segmentOf( long location )
+  {
+    return (int)( location >>> OFFSET_BITS );
+  }
+
+  static long offsetOf( long location )
+  {
+    return location & OFFSET_MASK;
+  }
+
+  /**
+   * Called for each valid record found while scanning a segment.
+   */
+  interface RecordVisitor
+  {
+    boolean visit( long offset, String id, byte[] data ) throws IOException;
+  }
+
+  static class SegmentClosedException extends IOException
+  {
+  }
+
+  /**
+   * One segment file. Appends go through the channel, reads of a sealed
+   * segment go through a read only memory map of the whole file.
+   */
+  static class Segment
+  {
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    volatile long size;
+    volatile long dead = 0L;
+    volatile boolean sealed = false;
+    volatile boolean closed = false;
+    volatile MappedByteBuffer map = null;
+
+    Segment( int id, Path path ) throws IOException
+    {
+      this.id = id;
+      this.path = path;
+      this.channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+      this.size = channel.size();
+    }
+
+    long append( ByteBuffer record ) throws IOException
+    {
+      long offset = size;
+      long position = offset;
+      while ( record.hasRemaining() )
+        position += channel.write( record, position );
+      size = position;
+      return offset;
+    }
+
+    void seal() throws IOException
+    {
+      channel.force( false );
+      sealed = true;
+    }
+
+    void truncate( long length ) throws IOException
+    {
+      channel.truncate( length );
+      size = length;
+    }
+
+    void close() throws IOException
+    {
+      closed = true;
+      map = null;
+      if ( channel.isOpen() )
+      {
+        if ( !sealed )
+          channel.force( false );
+        channel.close();
+      }
+    }
+
+    /**
+     * Read bytes at an absolute position.
+     *
+     * @param position Where to read from.
+     * @param length How many bytes.
+     * @return A buffer ready to read.
+     * @throws IOException If there was a problem or not enough data.
+     */
+    ByteBuffer readAt( long position, int length ) throws IOException
+    {
+      if ( closed )
+        throw new SegmentClosedException();
+      if ( position + length > size )
+        throw new IOException( "Record extends beyond end of segment " + path );
+      if ( sealed )
+      {
+        MappedByteBuffer m = map;
+        if ( m == null )
+        {
+          synchronized ( this )
+          {
+            if ( map == null )
+              map = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            m = map;
+          }
+        }
+        ByteBuffer b = m.duplicate();
+        b.position( (int)position ).limit( (int)( position + length ) );
+        return b.slice();
+      }
+      ByteBuffer b = ByteBuffer.allocate( length );
+      long p = position;
+      try
+      {
+        while ( b.hasRemaining() )
+        {
+          int n = channel.read( b, p );
+          if ( n < 0 )
+            throw new IOException( "Unexpected end of segment " + path );
+          p += n;
+        }
+      }
+      catch ( ClosedChannelException ex )
+      {
+        throw new SegmentClosedException();
+      }
+      b.flip();
+      return b;
+    }
+
+    int recordSize( long offset ) throws IOException
+    {
+      ByteBuffer header = readAt( offset, HEADER_SIZE );
+      return HEADER_SIZE + header.getInt() + header.getInt() + TRAILER_SIZE;
+    }
+
+    byte[] readData( long offset ) throws IOException
+    {
+      ByteBuffer header = readAt( offset, HEADER_SIZE );
+      int idlength = header.getInt();
+      int datalength = header.getInt();
+      ByteBuffer body = readAt( offset + HEADER_SIZE + idlength, datalength );
+      byte[] data = new byte[datalength];
+      body.get( data );
+      return data;
+    }
+
+    /**
+     * Visit each valid record in order.
+     *
+     * @param visitor The visitor.
+     * @return The offset just after the last valid record.
+     * @throws IOException If there was a problem reading.
+     */
+    long forEachRecord( RecordVisitor visitor ) throws IOException
+    {
+      long offset = 0L;
+      long end = size;
+      while ( offset + HEADER_SIZE + TRAILER_SIZE <= end )
+      {
+        ByteBuffer header = readAt( offset, HEADER_SIZE );
+        int idlength = header.getInt();
+        int datalength = header.getInt();
+        long recordsize = (long)HEADER_SIZE + idlength + datalength + TRAILER_SIZE;
+        if ( idlength < 0 || datalength < 0 || offset + recordsize > end )
+          break;
+        ByteBuffer body = readAt( offset + HEADER_SIZE, idlength + datalength + TRAILER_SIZE );
+        byte[] idbytes = new byte[idlength];
+        byte[] data = new byte[datalength];
+        body.get( idbytes ).get( data );
+        CRC32 crc = new CRC32();
+        crc.update( idbytes );
+        crc.update( data );
+        if ( body.getInt() != (int)crc.getValue() )
+          break;
+        if ( !visitor.visit( offset, new String( idbytes, StandardCharsets.UTF_8 ), data ) )
+          break;
+        offset += recordsize;
+      }
+      return offset;
+    }
+  }
+
+  /**
+   * Copy every entry from the one-file-per-entry layout into this log.
+   *
+   * @param root The base directory of the old layout.
+   * @param idForFile Maps each file to the ID of the entry it contains or
+   * null to skip it.
+   * @return The number of entries imported.
+   * @throws IOException If a file could not be read or written.
+   */
+  public int importFiles( Path root, Function<Path,String> idForFile ) throws IOException
+  {
+    int count = 0;
+    if ( !Files.isDirectory( root ) )
+      return count;
+    try ( Stream<Path> walk = Files.walk( root ) )
+    {
+      for ( Path p : (Iterable<Path>)walk.filter( Files::isRegularFile )::iterator )
+      {
+        String id = idForFile.apply( p );
+        if ( id == null )
+          continue;
+        writeById( id, Files.readAllBytes( p ) );
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get a snapshot of the segments and how much of each is superseded.
+   *
+   * @return Map of segment ID to a two element array of size and dead bytes.
+   */
+  public Map<Integer,long[]> getSegmentUsage()
+  {
+    Map<Integer,long[]> usage = new TreeMap<>();
+    for ( Segment s : segments.values() )
+      usage.put( s.id, new long[] { s.size, s.dead } );
+    return usage;
+  }
+}
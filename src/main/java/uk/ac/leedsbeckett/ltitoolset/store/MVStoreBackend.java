@@ -0,0 +1,335 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreException;
+
+/**
+ * A backend that keeps all entries in one B-tree file using the H2 MVStore
+ * engine. Writes go into memory and are committed to the file in groups,
+ * either after every write or every so many milliseconds, so many writes
+ * share one sync to disk. Entries are kept in order of ID so ranges of
+ * IDs can be scanned. Writes made by writeAll() are always committed
+ * together.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ */
+public class MVStoreBackend<K> implements StoreBackend<K>
+{
+  static final Logger logger = Logger.getLogger( MVStoreBackend.class.getName() );
+
+  private final MVStore store;
+  private final MVMap<String,byte[]> map;
+  private final Function<K,String> idFunction;
+  private final long commitDelayMillis;
+  
+  /**
+   * Writers share the read lock. Commits take the write lock so that they
+   * never see half of a writeAll().
+   */
+  private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+  private ScheduledExecutorService committer;
+
+  /**
+   * Open or create a store file.
+   * 
+   * @param file The file.
+   * @param mapName The name of the map within the file, so that one file 
+   * can hold several stores.
+   * @param idFunction Maps keys to a unique string ID.
+   * @param commitDelayMillis How often to commit writes. Zero or less 
+   * commits after every write.
+   * @throws IOException If the file could not be opened.
+   */
+  public MVStoreBackend( Path file, String mapName, Function<K,String> idFunction, long commitDelayMillis ) throws IOException
+  {
+    this.idFunction = idFunction;
+    this.commitDelayMillis = commitDelayMillis;
+    if ( file.getParent() != null )
+      Files.createDirectories( file.getParent() );
+    try
+    {
+      store = new MVStore.Builder()
+              .fileName( file.toString() )
+              .autoCommitDisabled()
+              .compress()
+              .open();
+      map = store.openMap( mapName );
+    }
+    catch ( MVStoreException ex )
+    {
+      throw new IOException( "Unable to open " + file, ex );
+    }
+    if ( commitDelayMillis > 0 )
+    {
+      committer = Executors.newSingleThreadScheduledExecutor();
+      committer.scheduleWithFixedDelay( this::commitQuietly, commitDelayMillis, commitDelayMillis, TimeUnit.MILLISECONDS );
+    }
+  }
+  
+  /**
+   * How many entries are stored.
+   * 
+   * @return The count.
+   */
+  public long size()
+  {
+    return map.sizeAsLong();
+  }
+
+  @Override
+  public byte[] read( K key ) throws IOException
+  {
+    return readById( idFunction.apply( key ) );
+  }
+  
+  /**
+   * Read an entry using its ID rather than its key.
+   * 
+   * @param id The entry ID.
+   * @return The data or null.
+   * @throws IOException If the data could not be read.
+   */
+  public byte[] readById( String id ) throws IOException
+  {
+    try
+    {
+      return map.get( id );
+    }
+    catch ( MVStoreException ex )
+    {
+      throw new IOException( "Unable to read " + id, ex );
+    }
+  }
+
+  @Override
+  public void write( K key, byte[] data ) throws IOException
+  {
+    writeById( idFunction.apply( key ), data );
+  }
+  
+  /**
+   * Write an entry using its ID rather than its key. Used when importing.
+   * 
+   * @param id The entry ID.
+   * @param data The data.
+   * @throws IOException If the data could not be written.
+   */
+  public void writeById( String id, byte[] data ) throws IOException
+  {
+    commitLock.readLock().lock();
+    try
+    {
+      map.put( id, data );
+    }
+    catch ( MVStoreException ex )
+    {
+      throw new IOException( "Unable to write " + id, ex );
+    }
+    finally
+    {
+      commitLock.readLock().unlock();
+    }
+    if ( commitDelayMillis <= 0 )
+      commit();
+  }
+
+  @Override
+  public void writeAll( Map<K,byte[]> entries ) throws IOException
+  {
+    commitLock.readLock().lock();
+    try
+    {
+      for ( Map.Entry<K,byte[]> e : entries.entrySet() )
+        map.put( idFunction.apply( e.getKey() ), e.getValue() );
+    }
+    catch ( MVStoreException ex )
+    {
+      throw new IOException( "Unable to write entries.", ex );
+    }
+    finally
+    {
+      commitLock.readLock().unlock();
+    }
+    if ( commitDelayMillis <= 0 )
+      commit();
+  }
+
+  @Override
+  public boolean isAtomicWriteAll()
+  {
+    return true;
+  }
+
+  /**
+   * Stream every entry as it was when the scan started. The B-tree can't
+   * be split between threads, so a parallel scan only parallelizes what
+   * happens to the entries after they are read.
+   * 
+   * @param parallel True for a parallel stream.
+   * @return A stream of entry data.
+   */
+  @Override
+  public Stream<byte[]> scan( boolean parallel )
+  {
+    return stream( map.cursor( null ), parallel );
+  }
+
+  @Override
+  public Stream<byte[]> scanRange( String fromId, String toId )
+  {
+    return stream( map.cursor( fromId, toId, false ), false );
+  }
+  
+  private Stream<byte[]> stream( Cursor<String,byte[]> cursor, boolean parallel )
+  {
+    Iterator<byte[]> values = new Iterator<byte[]>()
+    {
+      @Override
+      public boolean hasNext()
+      {
+        return cursor.hasNext();
+      }
+
+      @Override
+      public byte[] next()
+      {
+        cursor.next();
+        return cursor.getValue();
+      }
+    };
+    return StreamSupport.stream( Spliterators.spliteratorUnknownSize( values, Spliterator.ORDERED | Spliterator.NONNULL ), parallel );
+  }
+  
+  /**
+   * Commit writes to the file and sync it.
+   * 
+   * @throws IOException If the commit failed.
+   */
+  public void commit() throws IOException
+  {
+    commitLock.writeLock().lock();
+    try
+    {
+      if ( store.hasUnsavedChanges() )
+      {
+        store.commit();
+        store.sync();
+      }
+    }
+    catch ( MVStoreException ex )
+    {
+      throw new IOException( "Unable to commit.", ex );
+    }
+    finally
+    {
+      commitLock.writeLock().unlock();
+    }
+  }
+  
+  private void commitQuietly()
+  {
+    try
+    {
+      commit();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Background commit failed, will retry.", ex );
+    }
+  }
+  
+  /**
+   * Copy entries from the one file per entry layout.
+   *
+   * @param root The base directory of the old layout.
+   * @param idForFile Maps each file to the ID of the entry it contains or
+   * null to skip it.
+   * @return The number of entries imported.
+   * @throws IOException If a file could not be read or written.
+   */
+  public int importFiles( Path root, Function<Path,String> idForFile ) throws IOException
+  {
+    int count = 0;
+    if ( !Files.isDirectory( root ) )
+      return count;
+    try ( Stream<Path> walk = Files.walk( root ) )
+    {
+      commitLock.readLock().lock();
+      try
+      {
+        for ( Path p : (Iterable<Path>)walk.filter( Files::isRegularFile )::iterator )
+        {
+          String id = idForFile.apply( p );
+          if ( id == null )
+            continue;
+          map.put( id, Files.readAllBytes( p ) );
+          count++;
+        }
+      }
+      finally
+      {
+        commitLock.readLock().unlock();
+      }
+    }
+    commit();
+    return count;
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    if ( committer != null )
+    {
+      committer.shutdown();
+      try
+      {
+        if ( !committer.awaitTermination( 1000, TimeUnit.MILLISECONDS ) )
+          committer.shutdownNow();
+      }
+      catch ( InterruptedException e )
+      {
+        committer.shutdownNow();
+      }
+      committer = null;
+    }
+    if ( store.isClosed() )
+      return;
+    commit();
+    store.close();
+  }
+}
@@ -16,20 +16,59 @@
 
 package uk.ac.leedsbeckett.ltitoolset.store;
 
-import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import javax.cache.Cache;
-import javax.cache.CacheManager;
-import javax.cache.Caching;
-import javax.cache.configuration.MutableConfiguration;
-import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryListener;
 import javax.cache.expiry.Duration;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import uk.ac.leedsbeckett.ltitoolset.cache.BoundedCache;
+import uk.ac.leedsbeckett.ltitoolset.cache.CacheFactory;
 
 /**
  * A store of resources which can be retrieved using keys.At present all
@@ -46,15 +85,77 @@ import javax.cache.expiry.Duration;
 public abstract class Store<K,T extends Entry<K>>
 {
   static final Logger logger = Logger.getLogger(Store.class.getName() );
-  private static final ObjectMapper objectmapper = new ObjectMapper();
-  static
-  {
-    objectmapper.enable( SerializationFeature.INDENT_OUTPUT );
-    objectmapper.disable( SerializationFeature.FAIL_ON_EMPTY_BEANS );
-    objectmapper.configure(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES, true);
-  }
   
+  final String name;
   Cache<K,T> cache;
+  StoreBackend<K> backend;
+  StoreFormat format = StoreFormat.JSON;
+  
+  /**
+   * Loads that are currently in progress. Threads that miss the cache on
+   * the same key share the one load rather than each reading the file.
+   */
+  private final ConcurrentHashMap<K,CompletableFuture<T>> loading = new ConcurrentHashMap<>();
+  
+  /**
+   * Keys that were recently looked for and not found, mapped to the time 
+   * when that knowledge expires. Saves a file system probe on each lookup
+   * of an unknown key.
+   */
+  private final ConcurrentHashMap<K,Long> missing = new ConcurrentHashMap<>();
+  private long negativeCacheTtl = 60000L;
+  private int negativeCacheMaxSize = 1000;
+  
+  /**
+   * A hash of the content most recently written to or read from disk for 
+   * each key. Used to skip writes that would not change the file. A key is
+   * forgotten when its entry leaves the cache, after which the next save
+   * writes even if nothing changed.
+   */
+  private final ConcurrentHashMap<K,Long> persistedHashes = new ConcurrentHashMap<>();
+  
+  /**
+   * The listener registered with a cache that isn't built in, so that it
+   * can be removed at shutdown.
+   */
+  private CacheEntryListenerConfiguration<K,T> expiryListener = null;
+  
+  /**
+   * Write-behind mode. Entries waiting to be written, coalesced so that 
+   * only the latest update of each key is written.
+   */
+  private final ConcurrentHashMap<K,PendingWrite<T>> dirty = new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+  private volatile ScheduledExecutorService writer = null;
+  private int writeBehindBatchSize = 100;
+  
+  private final CopyOnWriteArrayList<StoreListener<K>> listeners = new CopyOnWriteArrayList<>();
+  
+  private final StoreMetrics metrics = new StoreMetrics( this );
+  
+  private Executor bulkExecutor = null;
+  private ExecutorService ownBulkExecutor = null;
+  private int bulkThreads = 4;
+  private Executor asyncExecutor = null;
+  private ObjectName mbeanName = null;
+  
+  private final ConcurrentHashMap<String,StoreIndex<K,T>> indexes = new ConcurrentHashMap<>();
+  
+  /**
+   * Locks held while an entry's version is checked and it is saved. There
+   * is only a lock for a key while some thread is using it.
+   */
+  private final ConcurrentHashMap<K,KeyLock> keyLocks = new ConcurrentHashMap<>();
+  private int computeAttempts = 10;
+  
+  /**
+   * The version of each entry as it was last loaded or saved, kept apart 
+   * from the cached entries so that checking a version costs no cache 
+   * lookup and can't be upset by a caller changing a cached entry in place.
+   * A key is forgotten when its entry leaves the cache, after which its 
+   * version is found by loading the entry again.
+   */
+  private final ConcurrentHashMap<K,Long> versions = new ConcurrentHashMap<>();
   
   /**
    * Create a store for the stated type of entry, type of key and give it a
@@ -64,11 +165,388 @@ public abstract class Store<K,T extends Entry<K>>
    */
   public Store( String name )
   {
-    logger.log(Level.FINE, "Caching provider class {0}", Caching.getCachingProvider().getClass().getName() );
-    CacheManager manager = Caching.getCachingProvider().getCacheManager();
-    MutableConfiguration<K,T> config = new MutableConfiguration<K,T>()
-        .setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(Duration.FIVE_MINUTES));
-    cache = manager.createCache( name, config );
+    this( name, CacheFactory.getDefault().createCache( name, Duration.FIVE_MINUTES ) );
+  }
+  
+  /**
+   * Create a store which uses a given cache, for example a BoundedCache.
+   * 
+   * @param name The name of the store.
+   * @param cache The cache to keep entries in.
+   */
+  public Store( String name, Cache<K,T> cache )
+  {
+    this.name = name;
+    this.backend = new FileStoreBackend<>( this::getPath, this::getBasePath );
+    this.cache = cache;
+    watchRemovals();
+  }
+  
+  /**
+   * Arrange to forget what is known about entries that the cache drops, so
+   * that what is kept beside the cache is bounded like the cache. A built
+   * in cache reports evictions and expiry. Other caches are asked for 
+   * expiry events. JCache has no eviction events, so a provider cache with
+   * a size limit should also expire its entries.
+   */
+  @SuppressWarnings( "unchecked" )
+  private void watchRemovals()
+  {
+    if ( cache instanceof BoundedCache )
+    {
+      ((BoundedCache<K,T>)cache).setRemovalListener( ( key, entry ) -> forget( key ) );
+      return;
+    }
+    try
+    {
+      CacheEntryListenerConfiguration<K,T> configuration = new MutableCacheEntryListenerConfiguration<>( 
+              new ExpiryListenerFactory<>( this ), null, false, false );
+      cache.registerCacheEntryListener( configuration );
+      expiryListener = configuration;
+    }
+    catch ( UnsupportedOperationException | IllegalArgumentException ex )
+    {
+      logger.log( Level.WARNING, "Cache of store " + name + " can't report expired entries so what the store knows about them won't be forgotten.", ex );
+    }
+  }
+  
+  /**
+   * Forget what is known about an entry that has left the cache. 
+   * 
+   * @param key The key.
+   */
+  void forget( K key )
+  {
+    persistedHashes.remove( key );
+    versions.remove( key );
+  }
+  
+  /**
+   * Set how long the store remembers that a key was not found. Zero
+   * switches off the negative cache.
+   * 
+   * @param millis Time to live in milliseconds.
+   */
+  public void setNegativeCacheTtl( long millis )
+  {
+    negativeCacheTtl = millis;
+    if ( millis <= 0 )
+      missing.clear();
+  }
+  
+  /**
+   * Set the maximum number of keys that the negative cache will hold.
+   * 
+   * @param size The maximum number of keys.
+   */
+  public void setNegativeCacheMaxSize( int size )
+  {
+    negativeCacheMaxSize = size;
+  }
+  
+  /**
+   * Change where serialized entries are kept. The default keeps each entry
+   * in the file given by getPath(). Must be called before the store is 
+   * used.
+   * 
+   * @param backend The backend to use.
+   */
+  public void setBackend( StoreBackend<K> backend )
+  {
+    this.backend = backend;
+  }
+  
+  /**
+   * Get the backend where serialized entries are kept.
+   * 
+   * @return The backend.
+   */
+  public StoreBackend<K> getBackend()
+  {
+    return backend;
+  }
+  
+  /**
+   * Set the format used when entries are written. Entries already written
+   * in another format can still be read and are converted when they are
+   * next updated.
+   * 
+   * @param format The format.
+   */
+  public void setFormat( StoreFormat format )
+  {
+    this.format = format;
+  }
+  
+  /**
+   * Get the format used when entries are written.
+   * 
+   * @return The format.
+   */
+  public StoreFormat getFormat()
+  {
+    return format;
+  }
+  
+  /**
+   * Get the counters and timings of this store.
+   * 
+   * @return The metrics.
+   */
+  public StoreMetrics getMetrics()
+  {
+    return metrics;
+  }
+  
+  /**
+   * Publish the metrics and management operations of this store as an 
+   * MBean named after the store. The context distinguishes stores of 
+   * different web applications in the same JVM.
+   * 
+   * @param context The context path of the web application.
+   */
+  public synchronized void registerMBean( String context )
+  {
+    try
+    {
+      mbeanName = new ObjectName( "uk.ac.leedsbeckett.ltitoolset:type=Store,context=" 
+              + ObjectName.quote( context.isEmpty() ? "/" : context ) 
+              + ",name=" + ObjectName.quote( name ) );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if ( server.isRegistered( mbeanName ) )
+        server.unregisterMBean( mbeanName );
+      server.registerMBean( metrics, mbeanName );
+    }
+    catch ( JMException ex )
+    {
+      logger.log( Level.WARNING, "Unable to register MBean for store " + name, ex );
+      mbeanName = null;
+    }
+  }
+  
+  /**
+   * Remove the MBean, if it was registered.
+   */
+  public synchronized void unregisterMBean()
+  {
+    if ( mbeanName == null )
+      return;
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean( mbeanName );
+    }
+    catch ( JMException ex )
+    {
+      logger.log( Level.WARNING, "Unable to unregister MBean for store " + name, ex );
+    }
+    mbeanName = null;
+  }
+  
+  /**
+   * Get the name of this store.
+   * 
+   * @return The name.
+   */
+  public String getName()
+  {
+    return name;
+  }
+  
+  /**
+   * Switch on write-behind mode. Instead of writing to disk on the thread 
+   * that calls update() the entry is queued and written by a background
+   * thread. Repeated updates to the same key while it is waiting are 
+   * coalesced into one write. Setting the delay to zero or less flushes
+   * anything waiting and returns to writing synchronously.
+   * 
+   * @param delayMillis How often the background writer runs.
+   * @param batchSize The most entries written in one go before other
+   * threads get a look in.
+   */
+  public synchronized void setWriteBehind( long delayMillis, int batchSize )
+  {
+    stopWriter();
+    if ( delayMillis <= 0 )
+      return;
+    writeBehindBatchSize = Math.max( 1, batchSize );
+    writer = Executors.newSingleThreadScheduledExecutor();
+    writer.scheduleWithFixedDelay( this::writeDirty, delayMillis, delayMillis, TimeUnit.MILLISECONDS );
+    logger.log( Level.INFO, "Store {0} using write-behind every {1}ms.", new Object[]{name, delayMillis} );
+  }
+  
+  /**
+   * Is the store in write-behind mode?
+   * 
+   * @return True if writes are queued.
+   */
+  public boolean isWriteBehind()
+  {
+    return writer != null;
+  }
+  
+  /**
+   * Write every queued entry to disk now, on the calling thread. For callers
+   * that need to know their data is durable.
+   * 
+   * @throws IOException The first problem that occurred writing data. All
+   * entries are attempted and those that failed stay in the queue.
+   */
+  public void flush() throws IOException
+  {
+    IOException first = null;
+    synchronized ( writeLock )
+    {
+      LinkedHashMap<K,PendingWrite<T>> batch = new LinkedHashMap<>();
+      for ( Map.Entry<K,PendingWrite<T>> e : new ArrayList<>( dirty.entrySet() ) )
+      {
+        batch.put( e.getKey(), e.getValue() );
+        if ( batch.size() < writeBehindBatchSize )
+          continue;
+        try
+        {
+          writePending( batch );
+        }
+        catch ( IOException ex )
+        {
+          if ( first == null )
+            first = ex;
+        }
+        batch.clear();
+      }
+      try
+      {
+        writePending( batch );
+      }
+      catch ( IOException ex )
+      {
+        if ( first == null )
+          first = ex;
+      }
+    }
+    if ( first != null )
+      throw first;
+  }
+  
+  /**
+   * Called when the web application is shutting down. Queued writes are 
+   * flushed, the background writer stopped and indexes saved.
+   */
+  public synchronized void shutdown()
+  {
+    stopWriter();
+    saveIndexes();
+    if ( expiryListener != null )
+    {
+      try
+      {
+        cache.deregisterCacheEntryListener( expiryListener );
+      }
+      catch ( RuntimeException ex )
+      {
+        logger.log( Level.FINE, "Unable to deregister cache listener of store " + name, ex );
+      }
+      expiryListener = null;
+    }
+    if ( ownBulkExecutor != null )
+    {
+      ownBulkExecutor.shutdown();
+      ownBulkExecutor = null;
+    }
+    try
+    {
+      backend.close();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to close backend of store " + name, ex );
+    }
+  }
+  
+  /**
+   * Stop the background writer, if any, and flush what it hadn't done.
+   */
+  private void stopWriter()
+  {
+    if ( writer == null )
+      return;
+    writer.shutdown();
+    try
+    {
+      if ( !writer.awaitTermination( 5000, TimeUnit.MILLISECONDS ) )
+        writer.shutdownNow();
+    }
+    catch ( InterruptedException e )
+    {
+      writer.shutdownNow();
+    }
+    writer = null;
+    try
+    {
+      flush();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to flush store " + name, ex );
+    }
+  }
+  
+  /**
+   * Runs on the background writer. Writes a batch of queued entries and, if
+   * there are more, arranges to run again straight away.
+   */
+  private void writeDirty()
+  {
+    int count = 0;
+    synchronized ( writeLock )
+    {
+      LinkedHashMap<K,PendingWrite<T>> batch = new LinkedHashMap<>();
+      for ( Map.Entry<K,PendingWrite<T>> e : dirty.entrySet() )
+      {
+        if ( count++ >= writeBehindBatchSize )
+          break;
+        batch.put( e.getKey(), e.getValue() );
+      }
+      try
+      {
+        writePending( batch );
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.SEVERE, "Background write failed, will retry. " + batch.keySet(), ex );
+      }
+    }
+    if ( count > writeBehindBatchSize )
+    {
+      ScheduledExecutorService w = writer;
+      try
+      {
+        if ( w != null )
+          w.execute( this::writeDirty );
+      }
+      catch ( RejectedExecutionException ex )
+      {
+        // Shutting down so flush() will finish the job.
+      }
+    }
+  }
+  
+  /**
+   * Write a batch of queued entries together and take them off the queue
+   * unless they were updated again meanwhile. Caller must hold writeLock.
+   * 
+   * @param batch Map of key to queued entry.
+   * @throws IOException If the write failed.
+   */
+  private void writePending( Map<K,PendingWrite<T>> batch ) throws IOException
+  {
+    if ( batch.isEmpty() )
+      return;
+    LinkedHashMap<K,T> entries = new LinkedHashMap<>();
+    for ( Map.Entry<K,PendingWrite<T>> e : batch.entrySet() )
+      entries.put( e.getKey(), e.getValue().entry );
+    writeAll( entries );
+    for ( Map.Entry<K,PendingWrite<T>> e : batch.entrySet() )
+      dirty.remove( e.getKey(), e.getValue() );
   }
   
   /**
@@ -80,54 +558,773 @@ public abstract class Store<K,T extends Entry<K>>
   public abstract T create( K key );
   
   /**
-   * Get a class of the type that matches entries.
+   * Get a class of the type that matches entries.
+   * 
+   * @return The class of entries.
+   */
+  public abstract Class<T> getEntryClass();
+  
+  /**
+   * Get a path into the file system where the data entry will be stored
+   * based on the contents of the key.
+   * 
+   * @param key The key.
+   * @return A file system path where the object should be stored.
+   */
+  public abstract Path getPath( K key );
+  
+  /**
+   * Get the directory under which getPath() puts files. Stores that don't
+   * keep their files under one directory return null, which is the default.
+   * 
+   * @return The directory or null.
+   */
+  public Path getBasePath()
+  {
+    return null;
+  }
+  
+  /**
+   * Find the keys of all the entries stored in files under the base path,
+   * using keyForPath(). Hidden files and files that keyForPath() doesn't
+   * recognise are skipped.
+   * 
+   * @return A list of keys, empty if the store has no base path.
+   * @throws IOException If the directory could not be read.
+   */
+  public List<K> listKeys() throws IOException
+  {
+    ArrayList<K> keys = new ArrayList<>();
+    Path base = getBasePath();
+    if ( base == null || !Files.isDirectory( base ) )
+      return keys;
+    try ( Stream<Path> walk = Files.walk( base ) )
+    {
+      for ( Path p : (Iterable<Path>)walk.filter( Files::isRegularFile )::iterator )
+      {
+        if ( p.getFileName().toString().startsWith( "." ) )
+          continue;
+        K key = keyForPath( p );
+        if ( key != null )
+          keys.add( key );
+      }
+    }
+    return keys;
+  }
+  
+  /**
+   * Work out which key a file belongs to, the reverse of getPath(). Used to
+   * find out which entry to invalidate when a file changes. Stores that 
+   * can't do this return null, which is the default.
+   * 
+   * @param path A file system path.
+   * @return The key or null if it isn't known.
+   */
+  public K keyForPath( Path path )
+  {
+    return null;
+  }
+  
+  /**
+   * Convert a key to text so that indexes can be saved to disk. Stores that
+   * can't do this return null, which is the default, and their indexes are
+   * rebuilt each time openIndexes() is called.
+   * 
+   * @param key The key.
+   * @return The text or null.
+   */
+  public String keyToText( K key )
+  {
+    return null;
+  }
+  
+  /**
+   * The reverse of keyToText().
+   * 
+   * @param text The text form of a key.
+   * @return The key or null if it isn't known.
+   */
+  public K keyFromText( String text )
+  {
+    return null;
+  }
+  
+  /**
+   * Define a secondary index on some value of the entries. The index is 
+   * updated whenever an entry is saved. Define indexes before calling 
+   * openIndexes().
+   * 
+   * @param indexName The name of the index, unique in this store.
+   * @param extractor Gets the value from an entry. It may return null, or 
+   * throw a runtime exception, for entries that shouldn't be indexed.
+   * @return The index.
+   */
+  public StoreIndex<K,T> defineIndex( String indexName, Function<T,String> extractor )
+  {
+    StoreIndex<K,T> index = new StoreIndex<>( indexName, extractor );
+    if ( indexes.putIfAbsent( indexName, index ) != null )
+      throw new IllegalArgumentException( "Store " + name + " already has an index named " + indexName );
+    return index;
+  }
+  
+  /**
+   * Get an index by name.
+   * 
+   * @param indexName The name of the index.
+   * @return The index or null if there is no such index.
+   */
+  public StoreIndex<K,T> getIndex( String indexName )
+  {
+    return indexes.get( indexName );
+  }
+  
+  /**
+   * Find the entries which have a value in an index.
+   * 
+   * @param indexName The name of the index.
+   * @param value The value to look for.
+   * @return A map of key to entry, empty if none were found.
+   */
+  public Map<K,T> findBy( String indexName, String value )
+  {
+    StoreIndex<K,T> index = indexes.get( indexName );
+    if ( index == null )
+      throw new IllegalArgumentException( "Store " + name + " has no index named " + indexName );
+    Set<K> keys = index.lookup( value );
+    if ( keys.isEmpty() )
+      return Collections.emptyMap();
+    return getAll( new ArrayList<>( keys ) );
+  }
+  
+  /**
+   * Get indexes ready for use. Each index saved at the last shutdown is 
+   * loaded and if any are missing all are rebuilt from the stored data. 
+   * The saved files are deleted once loaded so that if the application 
+   * stops without saving them again they are rebuilt next time.
+   */
+  public void openIndexes()
+  {
+    if ( indexes.isEmpty() )
+      return;
+    boolean complete = true;
+    for ( StoreIndex<K,T> index : indexes.values() )
+      complete = loadIndex( index ) && complete;
+    if ( !complete )
+      rebuildIndexes();
+  }
+  
+  /**
+   * Rebuild all indexes by scanning every entry. Queued writes are flushed
+   * first so that the scan sees them. Lookups made while this is running 
+   * may not find everything.
+   */
+  public void rebuildIndexes()
+  {
+    if ( indexes.isEmpty() )
+      return;
+    long start = System.currentTimeMillis();
+    indexes.values().forEach( StoreIndex::clear );
+    try
+    {
+      flush();
+      try ( Stream<T> entries = scan( e -> e.getKey() != null, true ) )
+      {
+        entries.forEach( e -> updateIndexes( e.getKey(), e ) );
+      }
+      logger.log( Level.INFO, "Store {0} rebuilt indexes in {1}ms.", new Object[]{name, System.currentTimeMillis() - start} );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to rebuild indexes of store " + name, ex );
+    }
+  }
+  
+  private void updateIndexes( K key, T entry )
+  {
+    for ( StoreIndex<K,T> index : indexes.values() )
+      index.update( key, entry );
+  }
+  
+  /**
+   * Where an index is saved, as a hidden file in the base directory so that
+   * it is kept with the data but not mistaken for an entry.
+   * 
+   * @param index The index.
+   * @return The path or null if the store can't save indexes.
+   */
+  private Path getIndexPath( StoreIndex<K,T> index )
+  {
+    Path base = getBasePath();
+    if ( base == null )
+      return null;
+    return base.resolve( ".index-" + index.getName() + ".json" );
+  }
+  
+  /**
+   * Load a saved index and delete the file.
+   * 
+   * @param index The index to fill.
+   * @return True if the index was loaded.
+   */
+  private boolean loadIndex( StoreIndex<K,T> index )
+  {
+    Path path = getIndexPath( index );
+    if ( path == null || !Files.isRegularFile( path ) )
+      return false;
+    try
+    {
+      Map<String,List<String>> saved = StoreFormat.JSON.getObjectMapper().readValue( 
+              path.toFile(), new TypeReference<Map<String,List<String>>>(){} );
+      index.clear();
+      for ( Map.Entry<String,List<String>> e : saved.entrySet() )
+        for ( String text : e.getValue() )
+        {
+          K key = keyFromText( text );
+          if ( key == null )
+            return false;
+          index.put( key, e.getKey() );
+        }
+      Files.delete( path );
+      return true;
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Unable to load index " + index.getName() + " of store " + name, ex );
+      return false;
+    }
+  }
+  
+  /**
+   * Save every index as a hidden file in the base directory.
+   */
+  private void saveIndexes()
+  {
+    for ( StoreIndex<K,T> index : indexes.values() )
+    {
+      Path path = getIndexPath( index );
+      if ( path == null )
+        continue;
+      // A key that can't be written as text means the index can't be saved
+      // whole; leave no file so that it is rebuilt at start up.
+      LinkedHashMap<String,List<String>> saved = new LinkedHashMap<>();
+      boolean whole = true;
+      for ( Map.Entry<K,String> e : index.snapshot().entrySet() )
+      {
+        String text = keyToText( e.getKey() );
+        if ( text == null )
+        {
+          whole = false;
+          break;
+        }
+        saved.computeIfAbsent( e.getValue(), v -> new ArrayList<>() ).add( text );
+      }
+      if ( !whole )
+        continue;
+      try
+      {
+        Files.createDirectories( path.getParent() );
+        StoreFormat.JSON.getObjectMapper().writeValue( path.toFile(), saved );
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.WARNING, "Unable to save index " + index.getName() + " of store " + name, ex );
+      }
+    }
+  }
+  
+  /**
+   * Add a listener which is told when entries change.
+   * 
+   * @param listener The listener.
+   */
+  public void addListener( StoreListener<K> listener )
+  {
+    listeners.add( listener );
+  }
+  
+  /**
+   * Remove a listener.
+   * 
+   * @param listener The listener.
+   */
+  public void removeListener( StoreListener<K> listener )
+  {
+    listeners.remove( listener );
+  }
+  
+  private void fireChanged( K key )
+  {
+    for ( StoreListener<K> listener : listeners )
+    {
+      try
+      {
+        listener.entryChanged( this, key );
+      }
+      catch ( RuntimeException ex )
+      {
+        logger.log( Level.SEVERE, "Store listener failed.", ex );
+      }
+    }
+  }
+  
+  /**
+   * Remove an entry from memory so that it will be loaded again when it is
+   * next needed.
+   * 
+   * @param key The key.
+   */
+  public void evict( K key )
+  {
+    cache.remove( key );
+    forgetMissing( key );
+    persistedHashes.remove( key );
+    versions.remove( key );
+  }
+  
+  /**
+   * Evict cached entries whose keys have a given string form. For use by
+   * management tools where keys have to be typed in.
+   * 
+   * @param keyname The string form of the key.
+   * @return The number of entries evicted.
+   */
+  public int evictByName( String keyname )
+  {
+    ArrayList<K> matches = new ArrayList<>();
+    for ( Cache.Entry<K,T> e : cache )
+      if ( keyname.equals( String.valueOf( e.getKey() ) ) )
+        matches.add( e.getKey() );
+    for ( K key : matches )
+      evict( key );
+    return matches.size();
+  }
+  
+  int getPendingWriteCount()
+  {
+    return dirty.size();
+  }
+  
+  int getNegativeCacheSize()
+  {
+    return missing.size();
+  }
+  
+  int getPersistedHashCount()
+  {
+    return persistedHashes.size();
+  }
+  
+  int getVersionCount()
+  {
+    return versions.size();
+  }
+  
+  /**
+   * Remove every entry from memory.
+   */
+  public void evictAll()
+  {
+    cache.removeAll();
+    missing.clear();
+    persistedHashes.clear();
+    versions.clear();
+  }
+  
+  /**
+   * Called when something other than this store may have changed the
+   * stored data for a key. If the data is the same as this store last read
+   * or wrote, for example because the change was this store saving, 
+   * nothing happens. Otherwise the entry is evicted and listeners are told.
+   * 
+   * @param key The key.
+   */
+  public void invalidate( K key )
+  {
+    if ( dirty.containsKey( key ) )
+      return;
+    Long known = persistedHashes.get( key );
+    if ( known != null )
+    {
+      try
+      {
+        byte[] data = backend.read( key );
+        if ( data != null && known.equals( hash( data ) ) )
+          return;
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.FINE, "Unable to read changed entry, evicting.", ex );
+      }
+    }
+    logger.log( Level.FINE, "Store {0} invalidating {1}", new Object[]{name, key} );
+    evict( key );
+    fireChanged( key );
+  }
+    
+  
+  /**
+   * Find a resource keyed by platform ID and resource ID with option to
+   * create the resource if it doesn't exist yet. Cache hits do not take any
+   * lock. On a miss only one thread loads (or creates) a given key and 
+   * any other threads wanting the same key wait for that result. Misses on
+   * different keys load in parallel.
+   * 
+   * @param key The unique key of the entry.
+   * @param create Set true if the resource should be created if it doesn't already exist.
+   * @return The resource or null if it wasn't found and creation wasn't requested.
+   */
+  public T get( K key, boolean create )
+  {
+    T r = cache.get( key );
+    
+    if ( r != null )
+    {
+      logger.log( Level.FINE, "Found in cache - {0}", key.toString() );
+      metrics.hits.increment();
+      return r;      
+    }
+    
+    logger.log( Level.FINE, "Not in cache - {0}", key.toString() );
+    if ( !create && isKnownMissing( key ) )
+    {
+      logger.log( Level.FINE, "Known to be missing - {0}", key.toString() );
+      metrics.negativeHits.increment();
+      return null;
+    }
+    metrics.misses.increment();
+    
+    while ( true )
+    {
+      CompletableFuture<T> mine = new CompletableFuture<>();
+      CompletableFuture<T> theirs = loading.putIfAbsent( key, mine );
+      if ( theirs == null )
+        return loadOrCreate( key, create, mine );
+      
+      logger.log( Level.FINE, "Waiting for load by another thread - {0}", key.toString() );
+      r = await( theirs );
+      // If the other thread wasn't asked to create the entry go round again
+      // so this thread can do it.
+      if ( r != null || !create )
+        return r;
+    }
+  }
+  
+  /**
+   * Get many entries at once. Entries that are cached are returned 
+   * straight away and the rest are loaded in parallel on the bulk executor.
+   * Entries are not created if they don't exist.
+   * 
+   * @param keys The keys.
+   * @return A map of key to entry, leaving out keys that have no entry.
+   */
+  public Map<K,T> getAll( Collection<K> keys )
+  {
+    LinkedHashMap<K,T> found = new LinkedHashMap<>();
+    LinkedHashMap<K,CompletableFuture<T>> loads = new LinkedHashMap<>();
+    Executor executor = getBulkExecutor();
+    for ( K key : keys )
+    {
+      T r = cache.get( key );
+      if ( r != null )
+      {
+        metrics.hits.increment();
+        found.put( key, r );
+      }
+      else if ( !loads.containsKey( key ) )
+        loads.put( key, CompletableFuture.supplyAsync( () -> get( key, false ), executor ) );
+    }
+    for ( Map.Entry<K,CompletableFuture<T>> e : loads.entrySet() )
+    {
+      T r = await( e.getValue() );
+      if ( r != null )
+        found.put( e.getKey(), r );
+    }
+    return found;
+  }
+  
+  /**
+   * Stream every entry in the backend without caching them. Entries are 
+   * read as the stream is consumed. Entries waiting to be written in 
+   * write-behind mode are returned in place of the older data on disk but
+   * entries that have never been written are not included, so call flush()
+   * first if they matter. The stream must be closed.
+   * 
+   * @param filter Only entries that pass the filter are included.
+   * @return A stream of entries.
+   * @throws IOException If the scan could not be started.
+   */
+  public Stream<T> scan( Predicate<? super T> filter ) throws IOException
+  {
+    return scan( filter, false );
+  }
+  
+  /**
+   * Stream every entry in the backend without caching them, optionally
+   * in parallel. The file backend splits the work by top level directory.
+   * 
+   * @param filter Only entries that pass the filter are included.
+   * @param parallel True for a parallel stream.
+   * @return A stream of entries.
+   * @throws IOException If the scan could not be started.
+   */
+  public Stream<T> scan( Predicate<? super T> filter, boolean parallel ) throws IOException
+  {
+    return backend.scan( parallel )
+            .map( this::deserializeQuietly )
+            .filter( Objects::nonNull )
+            .map( this::pendingOrLoaded )
+            .filter( filter );
+  }
+  
+  /**
+   * Stream the entries whose backend IDs are in a range, in order of ID, 
+   * without caching them. Only some backends support this.
+   * 
+   * @param fromId The first ID, inclusive, or null to start at the beginning.
+   * @param toId The last ID, inclusive, or null to go to the end.
+   * @return A stream of entries.
+   * @throws IOException If the scan could not be started.
+   * @throws UnsupportedOperationException If the backend can't do it.
+   */
+  public Stream<T> scanRange( String fromId, String toId ) throws IOException
+  {
+    return backend.scanRange( fromId, toId )
+            .map( this::deserializeQuietly )
+            .filter( Objects::nonNull )
+            .map( this::pendingOrLoaded );
+  }
+  
+  private T deserializeQuietly( byte[] data )
+  {
+    try
+    {
+      metrics.bytesRead.add( data.length );
+      return StoreFormat.detect( data ).getObjectMapper().readValue( data, getEntryClass() );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Unable to parse entry in store " + name, ex );
+      return null;
+    }
+  }
+  
+  private T pendingOrLoaded( T entry )
+  {
+    if ( entry.getKey() == null )
+      return entry;
+    PendingWrite<T> pending = dirty.get( entry.getKey() );
+    return pending == null ? entry : pending.entry;
+  }
+  
+  /**
+   * Get an entry without blocking the calling thread. The load runs on the
+   * async executor and the future completes there.
+   * 
+   * @param key The unique key of the entry.
+   * @param create Set true if the resource should be created if it doesn't already exist.
+   * @return A future of the resource or null.
+   */
+  public CompletableFuture<T> getAsync( K key, boolean create )
+  {
+    return CompletableFuture.supplyAsync( () -> get( key, create ), getAsyncExecutor() );
+  }
+  
+  /**
+   * Get an entry without blocking the calling thread and complete the 
+   * future on a given executor, so that work chained on to it doesn't run
+   * on the store's threads.
+   * 
+   * @param key The unique key of the entry.
+   * @param create Set true if the resource should be created if it doesn't already exist.
+   * @param completionExecutor Where the future completes.
+   * @return A future of the resource or null.
+   */
+  public CompletableFuture<T> getAsync( K key, boolean create, Executor completionExecutor )
+  {
+    return completeOn( getAsync( key, create ), completionExecutor );
+  }
+  
+  /**
+   * Get many entries without blocking the calling thread. Each key is got
+   * with getAsync() and the results combined, rather than running getAll()
+   * on the async executor, which would hold a thread while it waited for 
+   * loads queued behind it on the same pool.
+   * 
+   * @param keys The keys.
+   * @return A future of a map of key to entry, leaving out keys that have no entry.
+   */
+  public CompletableFuture<Map<K,T>> getAllAsync( Collection<K> keys )
+  {
+    LinkedHashMap<K,CompletableFuture<T>> gets = new LinkedHashMap<>();
+    for ( K key : keys )
+      if ( !gets.containsKey( key ) )
+        gets.put( key, getAsync( key, false ) );
+    return CompletableFuture.allOf( gets.values().toArray( new CompletableFuture<?>[0] ) )
+            .thenApply( done -> 
+            {
+              LinkedHashMap<K,T> found = new LinkedHashMap<>();
+              for ( Map.Entry<K,CompletableFuture<T>> e : gets.entrySet() )
+              {
+                T r = e.getValue().join();
+                if ( r != null )
+                  found.put( e.getKey(), r );
+              }
+              return found;
+            } );
+  }
+  
+  /**
+   * Get many entries without blocking the calling thread and complete the
+   * future on a given executor.
+   * 
+   * @param keys The keys.
+   * @param completionExecutor Where the future completes.
+   * @return A future of a map of key to entry, leaving out keys that have no entry.
+   */
+  public CompletableFuture<Map<K,T>> getAllAsync( Collection<K> keys, Executor completionExecutor )
+  {
+    return completeOn( getAllAsync( keys ), completionExecutor );
+  }
+  
+  /**
+   * Save an entry without blocking the calling thread. A problem saving 
+   * completes the future exceptionally with the IOException.
+   * 
+   * @param entry An entry to store and update in the cache.
+   * @return A future that completes when the entry is saved.
+   */
+  public CompletableFuture<Void> updateAsync( T entry )
+  {
+    return CompletableFuture.runAsync( () -> 
+    {
+      try
+      {
+        update( entry );
+      }
+      catch ( IOException ex )
+      {
+        throw new CompletionException( ex );
+      }
+    }, getAsyncExecutor() );
+  }
+  
+  /**
+   * Save an entry without blocking the calling thread and complete the 
+   * future on a given executor.
+   * 
+   * @param entry An entry to store and update in the cache.
+   * @param completionExecutor Where the future completes.
+   * @return A future that completes when the entry is saved.
+   */
+  public CompletableFuture<Void> updateAsync( T entry, Executor completionExecutor )
+  {
+    return completeOn( updateAsync( entry ), completionExecutor );
+  }
+  
+  private static <R> CompletableFuture<R> completeOn( CompletableFuture<R> future, Executor executor )
+  {
+    CompletableFuture<R> result = new CompletableFuture<>();
+    future.whenCompleteAsync( ( r, th ) -> 
+    {
+      if ( th != null )
+        result.completeExceptionally( th instanceof CompletionException && th.getCause() != null ? th.getCause() : th );
+      else
+        result.complete( r );
+    }, executor );
+    return result;
+  }
+  
+  /**
+   * Set the executor that the async methods run on. Normally the 
+   * coordinator shares one between all stores. If none is set the store's
+   * own bulk pool is used.
+   * 
+   * @param executor The executor.
+   */
+  public synchronized void setAsyncExecutor( Executor executor )
+  {
+    this.asyncExecutor = executor;
+  }
+  
+  private synchronized Executor getAsyncExecutor()
+  {
+    return asyncExecutor != null ? asyncExecutor : getBulkExecutor();
+  }
+  
+  /**
+   * Set the executor that getAll() uses to load entries. By default each
+   * store has a small pool of its own.
    * 
-   * @return The class of entries.
+   * @param executor The executor.
    */
-  public abstract Class<T> getEntryClass();
+  public synchronized void setBulkExecutor( Executor executor )
+  {
+    this.bulkExecutor = executor;
+  }
   
   /**
-   * Get a path into the file system where the data entry will be stored
-   * based on the contents of the key.
+   * Set the size of the store's own pool for getAll(). Has no effect once
+   * the pool exists.
    * 
-   * @param key The key.
-   * @return A file system path where the object should be stored.
+   * @param threads The maximum number of threads.
    */
-  public abstract Path getPath( K key );
-    
+  public synchronized void setBulkThreads( int threads )
+  {
+    this.bulkThreads = Math.max( 1, threads );
+  }
+  
+  private synchronized Executor getBulkExecutor()
+  {
+    if ( bulkExecutor != null )
+      return bulkExecutor;
+    if ( ownBulkExecutor == null )
+    {
+      // Idle threads time out so a quiet store doesn't hold any.
+      ThreadPoolExecutor pool = new ThreadPoolExecutor( bulkThreads, bulkThreads, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>() );
+      pool.allowCoreThreadTimeOut( true );
+      ownBulkExecutor = pool;
+    }
+    return ownBulkExecutor;
+  }
   
   /**
-   * Find a resource keyed by platform ID and resource ID with option to
-   * create the resource if it doesn't exist yet.
+   * Called by the one thread that is responsible for loading a key. The
+   * outcome is passed to any waiting threads via the future.
    * 
    * @param key The unique key of the entry.
    * @param create Set true if the resource should be created if it doesn't already exist.
-   * @return The resource or null if it wasn't found and creation wasn't requested.
+   * @param future The future that waiting threads are watching.
+   * @return The resource or null.
    */
-  public synchronized T get( K key, boolean create )
+  private T loadOrCreate( K key, boolean create, CompletableFuture<T> future )
   {
-    T r = cache.get( key );
-    
-    if ( r != null )
-    {
-      logger.log( Level.FINE, "Found in cache - {0}", key.toString() );
-      return r;      
-    }
-    
-    logger.log( Level.FINE, "Not in cache - {0}", key.toString() );
     try
     {
-      r = load( key );
+      // Another thread may have completed a load between our cache miss
+      // and registering this load.
+      T r = cache.get( key );
+      if ( r == null )
+      {
+        // The cache may have dropped an entry that isn't on disk yet.
+        PendingWrite<T> pending = dirty.get( key );
+        r = ( pending != null ) ? pending.entry : load( key );
+      }
       if ( r != null )
       {
         logger.log( Level.FINE, "Loaded so caching - {0}", key.toString() );
-        cache.put( key, r );
-        if ( !cache.containsKey( key ) )
+        // Don't overwrite an entry that was put by a concurrent update.
+        if ( !cache.putIfAbsent( key, r ) )
+        {
+          T current = cache.get( key );
+          if ( current != null )
+            r = current;
+        }
+        else if ( !cache.containsKey( key ) )
           logger.log( Level.SEVERE, "But key is still not in the cache {0}", key.toString() );
-        return r;
       }
-      
-      if ( create )
+      else if ( !create )
+        rememberMissing( key );
+      else
       {
         logger.log( Level.FINE, "Created and saved - {0}", key.toString() );
         r = create( key );
@@ -135,20 +1332,102 @@ public abstract class Store<K,T extends Entry<K>>
         r.initialize();
         save( key, r );
         // save also caches the record so we are done now
-        return r;
       }
+      future.complete( r );
+      return r;
     }
-    catch (IOException ex)
+    catch ( IOException ex )
     {
-      logger.log(Level.SEVERE, null, ex);
+      logger.log( Level.SEVERE, null, ex );
+      future.complete( null );
       return null;
-    }  
-    
-    return null;
+    }
+    catch ( RuntimeException ex )
+    {
+      future.completeExceptionally( ex );
+      throw ex;
+    }
+    finally
+    {
+      loading.remove( key, future );
+    }
+  }
+  
+  /**
+   * Is the key in the negative cache and not expired?
+   * 
+   * @param key The key.
+   * @return True if the key was recently found not to exist.
+   */
+  private boolean isKnownMissing( K key )
+  {
+    Long expiry = missing.get( key );
+    if ( expiry == null )
+      return false;
+    if ( expiry > System.currentTimeMillis() )
+      return true;
+    missing.remove( key, expiry );
+    return false;
+  }
+  
+  /**
+   * Put a key in the negative cache. If the cache is full expired keys are
+   * purged and if that isn't enough an arbitrary key is dropped.
+   * 
+   * @param key The key that was not found.
+   */
+  private void rememberMissing( K key )
+  {
+    if ( negativeCacheTtl <= 0 || negativeCacheMaxSize <= 0 )
+      return;
+    long now = System.currentTimeMillis();
+    if ( missing.size() >= negativeCacheMaxSize )
+    {
+      missing.values().removeIf( expiry -> expiry <= now );
+      Iterator<K> it = missing.keySet().iterator();
+      while ( missing.size() >= negativeCacheMaxSize && it.hasNext() )
+      {
+        it.next();
+        it.remove();
+      }
+    }
+    missing.put( key, now + negativeCacheTtl );
+  }
+  
+  /**
+   * Take a key out of the negative cache because it now exists.
+   * 
+   * @param key The key.
+   */
+  void forgetMissing( K key )
+  {
+    missing.remove( key );
+  }
+  
+  /**
+   * Wait for a load that another thread is doing.
+   * 
+   * @param future The future of the load.
+   * @return The outcome.
+   */
+  private T await( CompletableFuture<T> future )
+  {
+    try
+    {
+      return future.join();
+    }
+    catch ( CompletionException ex )
+    {
+      if ( ex.getCause() instanceof RuntimeException )
+        throw (RuntimeException)ex.getCause();
+      throw ex;
+    }
   }
     
   /**
-   * Save the data to disk and update the cache.
+   * Save the data to disk and update the cache. The entry replaces whatever
+   * is stored, even if another thread has updated it since this one read 
+   * it. Use compareAndUpdate() or compute() where that matters.
    * 
    * @param entry An entry to store and update in the cache.
    * @throws IOException Thrown if there is a problem storing the data.
@@ -157,11 +1436,220 @@ public abstract class Store<K,T extends Entry<K>>
   {
     if ( entry.getKey() == null )
       throw new IllegalArgumentException( "Cannot update resource that lacks a key." );
-    save( entry.getKey(), entry );
+    K key = entry.getKey();
+    KeyLock lock = lock( key );
+    try
+    {
+      entry.setVersion( Math.max( currentVersion( key ), entry.getVersion() ) + 1 );
+      save( key, entry );
+    }
+    finally
+    {
+      unlock( key, lock );
+    }
+  }
+  
+  /**
+   * Save several entries together. With a backend that supports it, such 
+   * as MVStoreBackend, they are written atomically and with one sync to 
+   * disk. In write-behind mode they are queued like any other update and 
+   * may be written in different batches.
+   * 
+   * @param entries The entries.
+   * @throws IOException Thrown if there is a problem storing the data.
+   */
+  public void updateAll( Collection<T> entries ) throws IOException
+  {
+    LinkedHashMap<K,T> byKey = new LinkedHashMap<>();
+    for ( T entry : entries )
+    {
+      if ( entry.getKey() == null )
+        throw new IllegalArgumentException( "Cannot update resource that lacks a key." );
+      byKey.put( entry.getKey(), entry );
+    }
+    if ( isWriteBehind() )
+    {
+      for ( T entry : byKey.values() )
+        update( entry );
+      return;
+    }
+    // Every key stays locked until the entries are written and cached, or
+    // a compareAndUpdate() could pass its version check meanwhile and then
+    // be overwritten. Locking in the same order stops two batches that 
+    // share keys from deadlocking.
+    List<K> keys = new ArrayList<>( byKey.keySet() );
+    keys.sort( Comparator.comparing( this::lockOrder ).thenComparingInt( Object::hashCode ) );
+    List<KeyLock> locks = new ArrayList<>( keys.size() );
+    try
+    {
+      for ( K key : keys )
+        locks.add( lock( key ) );
+      for ( Map.Entry<K,T> e : byKey.entrySet() )
+        e.getValue().setVersion( Math.max( currentVersion( e.getKey() ), e.getValue().getVersion() ) + 1 );
+      metrics.saves.add( byKey.size() );
+      writeAll( byKey );
+      for ( Map.Entry<K,T> e : byKey.entrySet() )
+        cached( e.getKey(), e.getValue() );
+    }
+    finally
+    {
+      for ( int i = locks.size() - 1; i >= 0; i-- )
+        unlock( keys.get( i ), locks.get( i ) );
+    }
+  }
+  
+  /**
+   * Save an entry only if the stored entry is still the expected version,
+   * that is nobody else has updated it since it was read. Only threads 
+   * updating the same key wait for each other. The entry must override
+   * Entry.getVersion() and setVersion() for this to be useful. The version
+   * is checked against the store's own record, not the cached entry, but
+   * with a cache that stores by reference get() returns the shared cached 
+   * entry so changes made to it in place are seen by every thread before 
+   * they are saved. Change a copy, as compute() does, where that matters.
+   * 
+   * @param entry The updated entry.
+   * @param expectedVersion The version of the entry when it was read, 
+   * zero if it didn't exist.
+   * @return True if the entry was saved, false if it had been changed.
+   * @throws IOException Thrown if there is a problem storing the data.
+   */
+  public boolean compareAndUpdate( T entry, long expectedVersion ) throws IOException
+  {
+    if ( entry.getKey() == null )
+      throw new IllegalArgumentException( "Cannot update resource that lacks a key." );
+    K key = entry.getKey();
+    KeyLock lock = lock( key );
+    try
+    {
+      long current = currentVersion( key );
+      if ( current != expectedVersion )
+      {
+        logger.log( Level.FINE, "Version conflict on {0}, expected {1} found {2}", new Object[]{key, expectedVersion, current} );
+        metrics.conflicts.increment();
+        return false;
+      }
+      entry.setVersion( current + 1 );
+      save( key, entry );
+      return true;
+    }
+    finally
+    {
+      unlock( key, lock );
+    }
+  }
+  
+  /**
+   * Update an entry with a function, retrying if another thread updates it
+   * at the same time. The function is given a private copy of the entry, 
+   * or a new entry if there isn't one, and may be called more than once. 
+   * No lock is held while it runs.
+   * 
+   * @param key The key.
+   * @param fn Changes the entry and returns it, or returns null to leave
+   * the entry as it is.
+   * @return The entry that was saved or the current entry if fn returned
+   * null.
+   * @throws IOException Thrown if there is a problem storing the data.
+   * @throws ConcurrentModificationException If every attempt conflicted.
+   */
+  public T compute( K key, UnaryOperator<T> fn ) throws IOException
+  {
+    for ( int attempt = 0; attempt < computeAttempts; attempt++ )
+    {
+      T current = get( key, false );
+      T copy;
+      if ( current == null )
+      {
+        copy = create( key );
+        copy.initialize();
+      }
+      else
+        copy = copyOf( current );
+      long expected = copy.getVersion();
+      T updated = fn.apply( copy );
+      if ( updated == null )
+        return current;
+      if ( compareAndUpdate( updated, expected ) )
+        return updated;
+    }
+    throw new ConcurrentModificationException( "Gave up updating " + key + " in store " + name + " after " + computeAttempts + " attempts." );
+  }
+  
+  /**
+   * Set how many times compute() tries before giving up.
+   * 
+   * @param attempts The number of attempts.
+   */
+  public void setComputeAttempts( int attempts )
+  {
+    this.computeAttempts = Math.max( 1, attempts );
+  }
+  
+  /**
+   * The version of the stored entry. Caller should hold the key's lock. 
+   * The entry is only loaded if this store hasn't loaded or saved it since
+   * it was last evicted.
+   * 
+   * @param key The key.
+   * @return The version or zero if there is no entry.
+   */
+  private long currentVersion( K key )
+  {
+    Long known = versions.get( key );
+    if ( known != null )
+      return known;
+    T current = get( key, false );
+    return current == null ? 0L : current.getVersion();
+  }
+  
+  /**
+   * Make a deep copy of an entry, which works whether the cache stores by
+   * value or by reference.
+   * 
+   * @param entry The entry.
+   * @return The copy.
+   * @throws IOException If the entry couldn't be serialized.
+   */
+  private T copyOf( T entry ) throws IOException
+  {
+    ObjectMapper mapper = StoreFormat.JSON.getObjectMapper();
+    return mapper.readValue( mapper.writeValueAsBytes( entry ), getEntryClass() );
+  }
+  
+  /**
+   * The text that updateAll() sorts keys by before locking them.
+   * 
+   * @param key The key.
+   * @return The key's text, or its string form if it has none.
+   */
+  private String lockOrder( K key )
+  {
+    String text = keyToText( key );
+    return text == null ? key.toString() : text;
+  }
+  
+  private KeyLock lock( K key )
+  {
+    KeyLock lock = keyLocks.compute( key, ( k, l ) ->
+    {
+      if ( l == null )
+        l = new KeyLock();
+      l.users++;
+      return l;
+    } );
+    lock.lock();
+    return lock;
+  }
+  
+  private void unlock( K key, KeyLock lock )
+  {
+    lock.unlock();
+    keyLocks.computeIfPresent( key, ( k, l ) -> --l.users == 0 ? null : l );
   }
 
   /**
-   * Load and entry from disk.
+   * Load an entry from the backend.
    * 
    * @param key The unique key to the entry.
    * @return The loaded record or null if it doesn't exist.
@@ -169,17 +1657,34 @@ public abstract class Store<K,T extends Entry<K>>
    */  
   T load( K key ) throws IOException
   {
-    Path filepath = getPath( key );
-    if ( Files.exists( filepath ) )
+    long start = System.nanoTime();
+    try
     {
-      logger.log( Level.FINE, "Loading data {0}", filepath );
-      return objectmapper.readValue( filepath.toFile(), getEntryClass() );
+      byte[] data = backend.read( key );
+      if ( data == null )
+        return null;
+      logger.log( Level.FINE, "Loaded data {0}", key.toString() );
+      metrics.bytesRead.add( data.length );
+      T r = StoreFormat.detect( data ).getObjectMapper().readValue( data, getEntryClass() );
+      persistedHashes.put( key, hash( data ) );
+      // A save may have overtaken this load.
+      versions.merge( key, r.getVersion(), Math::max );
+      return r;
+    }
+    catch ( IOException | RuntimeException ex )
+    {
+      metrics.loadFailures.increment();
+      throw ex;
+    }
+    finally
+    {
+      metrics.loadTimes.recordSince( start );
     }
-    return null;
   }
   
   /**
-   * Save a data record against a key.
+   * Save a data record against a key. In write-behind mode the record is
+   * queued for the background writer, otherwise it is written now.
    * 
    * @param key The key of the record.
    * @param r The data record to save.
@@ -187,12 +1692,224 @@ public abstract class Store<K,T extends Entry<K>>
    */
   void save( K key, T r ) throws IOException
   {
-    Path filepath = getPath( key );
-    Files.createDirectories( filepath.getParent() );
-    logger.log( Level.FINE, "Saving data to {0}", filepath );
-    objectmapper.writeValue( filepath.toFile(), r );
+    metrics.saves.increment();
+    if ( isWriteBehind() )
+      dirty.put( key, new PendingWrite<>( r ) );
+    else
+      write( key, r );
+    cached( key, r );
+  }
+  
+  /**
+   * Bring memory up to date after an entry has been saved.
+   * 
+   * @param key The key of the record.
+   * @param r The data record that was saved.
+   */
+  private void cached( K key, T r )
+  {
     cache.put( key, r );
+    versions.put( key, r.getVersion() );
+    forgetMissing( key );
     if ( !cache.containsKey(key) )
       logger.log( Level.SEVERE, "Put resource in cache but key is not present {0}", key.toString() );
+    updateIndexes( key, r );
+    fireChanged( key );
   }  
+  
+  /**
+   * Serialize a data record and write it to the backend unless the content 
+   * is the same as was last read or written.
+   * 
+   * @param key The key of the record.
+   * @param r The data record to write.
+   * @return True if the file was written.
+   * @throws IOException Thrown if a problem occurs writing data.
+   */
+  boolean write( K key, T r ) throws IOException
+  {
+    long start = System.nanoTime();
+    byte[] data = format.getObjectMapper().writeValueAsBytes( r );
+    Long h = hash( data );
+    if ( h.equals( persistedHashes.get( key ) ) )
+    {
+      logger.log( Level.FINE, "Unchanged so not saving {0}", key.toString() );
+      return false;
+    }
+    // Record the hash first so that a file watcher which sees the new file
+    // recognises it as written by this store.
+    Long previous = persistedHashes.put( key, h );
+    try
+    {
+      backend.write( key, data );
+      metrics.bytesWritten.add( data.length );
+    }
+    catch ( IOException ex )
+    {
+      metrics.saveFailures.increment();
+      if ( previous == null )
+        persistedHashes.remove( key, h );
+      else
+        persistedHashes.replace( key, h, previous );
+      throw ex;
+    }
+    finally
+    {
+      metrics.saveTimes.recordSince( start );
+    }
+    return true;
+  }
+  
+  /**
+   * Serialize several records and write them to the backend in one go, 
+   * leaving out any whose content is the same as was last read or written.
+   * 
+   * @param entries Map of key to data record.
+   * @throws IOException Thrown if a problem occurs writing data.
+   */
+  void writeAll( Map<K,T> entries ) throws IOException
+  {
+    if ( entries.size() == 1 )
+    {
+      Map.Entry<K,T> e = entries.entrySet().iterator().next();
+      write( e.getKey(), e.getValue() );
+      return;
+    }
+    long start = System.nanoTime();
+    LinkedHashMap<K,byte[]> data = new LinkedHashMap<>();
+    LinkedHashMap<K,Long> hashes = new LinkedHashMap<>();
+    for ( Map.Entry<K,T> e : entries.entrySet() )
+    {
+      byte[] d = format.getObjectMapper().writeValueAsBytes( e.getValue() );
+      Long h = hash( d );
+      if ( h.equals( persistedHashes.get( e.getKey() ) ) )
+        continue;
+      data.put( e.getKey(), d );
+      hashes.put( e.getKey(), h );
+    }
+    if ( data.isEmpty() )
+      return;
+    HashMap<K,Long> previous = new HashMap<>();
+    for ( Map.Entry<K,Long> e : hashes.entrySet() )
+      previous.put( e.getKey(), persistedHashes.put( e.getKey(), e.getValue() ) );
+    try
+    {
+      backend.writeAll( data );
+      for ( byte[] d : data.values() )
+        metrics.bytesWritten.add( d.length );
+    }
+    catch ( IOException ex )
+    {
+      metrics.saveFailures.increment();
+      for ( Map.Entry<K,Long> e : hashes.entrySet() )
+      {
+        Long p = previous.get( e.getKey() );
+        if ( p == null )
+          persistedHashes.remove( e.getKey(), e.getValue() );
+        else
+          persistedHashes.replace( e.getKey(), e.getValue(), p );
+      }
+      throw ex;
+    }
+    finally
+    {
+      metrics.saveTimes.recordSince( start );
+    }
+  }
+  
+  /**
+   * A 64 bit digest of serialized content.
+   * 
+   * @param data The content.
+   * @return The first 64 bits of a SHA-256 digest of the data.
+   */
+  static Long hash( byte[] data )
+  {
+    try
+    {
+      MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+      return ByteBuffer.wrap( md.digest( data ) ).getLong();
+    }
+    catch ( NoSuchAlgorithmException ex )
+    {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException( ex );
+    }
+  }
+  
+  /**
+   * A lock on one key which counts the threads using it, so that it can
+   * be discarded when the last one is done. The count is only changed 
+   * inside keyLocks.compute().
+   */
+  static class KeyLock extends ReentrantLock
+  {
+    int users = 0;
+  }
+  
+  /**
+   * Tells a store when its cache expires entries.
+   * 
+   * @param <K> The key class.
+   * @param <T> The entry class.
+   */
+  static class ExpiryListener<K,T extends Entry<K>> implements CacheEntryExpiredListener<K,T>
+  {
+    final Store<K,T> store;
+
+    ExpiryListener( Store<K,T> store )
+    {
+      this.store = store;
+    }
+
+    @Override
+    public void onExpired( Iterable<CacheEntryEvent<? extends K, ? extends T>> events )
+    {
+      for ( CacheEntryEvent<? extends K, ? extends T> e : events )
+        store.forget( e.getKey() );
+    }
+  }
+  
+  /**
+   * JCache wants a serializable factory for listeners. The store can't be
+   * serialized, so this factory only works on the server that registered 
+   * it, which is where the listener is needed.
+   * 
+   * @param <K> The key class.
+   * @param <T> The entry class.
+   */
+  static class ExpiryListenerFactory<K,T extends Entry<K>> implements Factory<CacheEntryListener<? super K, ? super T>>
+  {
+    private static final long serialVersionUID = 1L;
+    final transient Store<K,T> store;
+
+    ExpiryListenerFactory( Store<K,T> store )
+    {
+      this.store = store;
+    }
+
+    @Override
+    public CacheEntryListener<? super K, ? super T> create()
+    {
+      if ( store == null )
+        throw new IllegalStateException( "Store listener can only be created where it was registered." );
+      return new ExpiryListener<>( store );
+    }
+  }
+  
+  /**
+   * An entry waiting to be written. Each update creates a new one so the 
+   * writer can tell if the entry was updated again while it was writing.
+   * 
+   * @param <T> The entry class.
+   */
+  static class PendingWrite<T>
+  {
+    final T entry;
+
+    PendingWrite( T entry )
+    {
+      this.entry = entry;
+    }
+  }
 }
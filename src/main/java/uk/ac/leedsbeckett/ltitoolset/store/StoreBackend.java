@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Where a store keeps the serialized form of its entries. The store looks
+ * after caching and serialization, the backend only deals with bytes.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ */
+public interface StoreBackend<K>
+{
+  /**
+   * Read the serialized entry for a key.
+   * 
+   * @param key The key.
+   * @return The data or null if there is no entry for the key.
+   * @throws IOException If the data could not be read.
+   */
+  public byte[] read( K key ) throws IOException;
+  
+  /**
+   * Write the serialized entry for a key, replacing any previous data.
+   * 
+   * @param key The key.
+   * @param data The data.
+   * @throws IOException If the data could not be written.
+   */
+  public void write( K key, byte[] data ) throws IOException;
+  
+  /**
+   * Write several entries. Backends that can do so write them atomically,
+   * so that after a crash either all or none of them are stored, and with
+   * one sync to disk. The default writes them one at a time.
+   * 
+   * @param entries Map of key to data.
+   * @throws IOException If the data could not be written. Some entries may
+   * have been written unless the backend is atomic.
+   */
+  public default void writeAll( Map<K,byte[]> entries ) throws IOException
+  {
+    for ( Map.Entry<K,byte[]> e : entries.entrySet() )
+      write( e.getKey(), e.getValue() );
+  }
+  
+  /**
+   * Does writeAll() write atomically?
+   * 
+   * @return True if it does.
+   */
+  public default boolean isAtomicWriteAll()
+  {
+    return false;
+  }
+  
+  /**
+   * Stream the serialized form of the entries whose IDs are in a range, in
+   * order of ID. Only backends that keep entries by a string ID can do 
+   * this. The caller must close the stream.
+   * 
+   * @param fromId The first ID, inclusive, or null to start at the beginning.
+   * @param toId The last ID, inclusive, or null to go to the end.
+   * @return A stream of serialized entries.
+   * @throws IOException If the scan could not be started.
+   * @throws UnsupportedOperationException If the backend can't do it, 
+   * which is the default.
+   */
+  public default Stream<byte[]> scanRange( String fromId, String toId ) throws IOException
+  {
+    throw new UnsupportedOperationException( "This backend does not support range scans." );
+  }
+  
+  /**
+   * Stream the serialized form of every entry. Entries are read as the
+   * stream is consumed, not all at once. Entries that can't be read are
+   * logged and left out. The caller must close the stream.
+   * 
+   * @param parallel True for a parallel stream where the backend has a 
+   * natural way to split the work.
+   * @return A stream of serialized entries.
+   * @throws IOException If the scan could not be started.
+   */
+  public Stream<byte[]> scan( boolean parallel ) throws IOException;
+  
+  /**
+   * Release any resources. Called when the store shuts down.
+   * 
+   * @throws IOException If there was a problem closing.
+   */
+  public void close() throws IOException;
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import uk.ac.leedsbeckett.ltitoolset.util.LatencyHistogram;
+
+/**
+ * A bounded pool of threads for store input and output, so that callers
+ * such as websocket handlers don't block on disk. When the queue is full
+ * the task runs on the calling thread, which slows callers down rather 
+ * than failing them. Queue and run times are recorded.
+ * 
+ * @author maber01
+ */
+public class StoreExecutor extends ThreadPoolExecutor implements StoreExecutorMBean
+{
+  final int queueCapacity;
+  final LongAdder callerRuns = new LongAdder();
+  final LatencyHistogram queueWaits = new LatencyHistogram();
+  final LatencyHistogram runTimes = new LatencyHistogram();
+  
+  private final ThreadLocal<Long> started = new ThreadLocal<>();
+
+  /**
+   * Create the pool.
+   * 
+   * @param name The prefix of thread names.
+   * @param threads The maximum number of threads.
+   * @param queueCapacity The maximum number of tasks waiting.
+   */
+  public StoreExecutor( String name, int threads, int queueCapacity )
+  {
+    super( Math.max( 1, threads ), Math.max( 1, threads ), 30L, TimeUnit.SECONDS, 
+            new ArrayBlockingQueue<>( Math.max( 1, queueCapacity ) ), new NamedThreadFactory( name ) );
+    this.queueCapacity = Math.max( 1, queueCapacity );
+    allowCoreThreadTimeOut( true );
+    setRejectedExecutionHandler( ( r, executor ) ->
+    {
+      if ( executor.isShutdown() )
+        new AbortPolicy().rejectedExecution( r, executor );
+      callerRuns.increment();
+      r.run();
+    } );
+  }
+
+  @Override
+  public void execute( Runnable command )
+  {
+    super.execute( new TimedTask( command ) );
+  }
+
+  @Override
+  protected void beforeExecute( Thread t, Runnable r )
+  {
+    super.beforeExecute( t, r );
+    long now = System.nanoTime();
+    if ( r instanceof TimedTask )
+      queueWaits.record( now - ((TimedTask)r).queued );
+    started.set( now );
+  }
+
+  @Override
+  protected void afterExecute( Runnable r, Throwable t )
+  {
+    Long start = started.get();
+    if ( start != null )
+      runTimes.recordSince( start );
+    started.remove();
+    super.afterExecute( r, t );
+  }
+
+  @Override
+  public int getQueueSize()
+  {
+    return getQueue().size();
+  }
+
+  @Override
+  public int getQueueCapacity()
+  {
+    return queueCapacity;
+  }
+
+  @Override
+  public long getCompletedTasks()
+  {
+    return getCompletedTaskCount();
+  }
+
+  @Override
+  public long getCallerRuns()
+  {
+    return callerRuns.sum();
+  }
+
+  @Override
+  public long getQueueWaitMeanMicros()
+  {
+    return queueWaits.getMeanMicros();
+  }
+
+  @Override
+  public long getQueueWait99thPercentileMicros()
+  {
+    return queueWaits.getPercentileMicros( 99.0 );
+  }
+
+  @Override
+  public long getRunMeanMicros()
+  {
+    return runTimes.getMeanMicros();
+  }
+
+  @Override
+  public long getRun99thPercentileMicros()
+  {
+    return runTimes.getPercentileMicros( 99.0 );
+  }
+
+  @Override
+  public long getRunMaxMicros()
+  {
+    return runTimes.getMaxMicros();
+  }
+
+  @Override
+  public void resetStatistics()
+  {
+    callerRuns.reset();
+    queueWaits.reset();
+    runTimes.reset();
+  }
+  
+  /**
+   * Remembers when a task was queued.
+   */
+  static class TimedTask implements Runnable
+  {
+    final Runnable task;
+    final long queued = System.nanoTime();
+
+    TimedTask( Runnable task )
+    {
+      this.task = task;
+    }
+
+    @Override
+    public void run()
+    {
+      task.run();
+    }
+  }
+  
+  /**
+   * Daemon threads with recognisable names.
+   */
+  static class NamedThreadFactory implements ThreadFactory
+  {
+    final String name;
+    final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory( String name )
+    {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread( Runnable r )
+    {
+      Thread t = new Thread( r, name + "-" + count.incrementAndGet() );
+      t.setDaemon( true );
+      return t;
+    }
+  }
+}
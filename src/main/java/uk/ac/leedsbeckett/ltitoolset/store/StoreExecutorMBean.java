@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+/**
+ * The management interface of a StoreExecutor. Times are in microseconds.
+ * 
+ * @author maber01
+ */
+public interface StoreExecutorMBean
+{
+  int getPoolSize();
+  int getActiveCount();
+  int getQueueSize();
+  int getQueueCapacity();
+  
+  long getCompletedTasks();
+  long getCallerRuns();
+  
+  long getQueueWaitMeanMicros();
+  long getQueueWait99thPercentileMicros();
+  long getRunMeanMicros();
+  long getRun99thPercentileMicros();
+  long getRunMaxMicros();
+  
+  /**
+   * Set all the counters and timings back to zero.
+   */
+  void resetStatistics();
+}
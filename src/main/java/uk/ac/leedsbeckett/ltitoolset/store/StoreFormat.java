@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * The ways a store can serialize its entries. Whatever format a store
+ * writes it can read all of them because the format is detected from the
+ * first bytes of the data. This means a directory can contain a mixture
+ * and the format of a store can be changed without converting everything.
+ * 
+ * @author maber01
+ */
+public enum StoreFormat
+{
+  /**
+   * Indented JSON, the original format. Easy to read and edit by hand.
+   */
+  JSON( new ObjectMapper().enable( SerializationFeature.INDENT_OUTPUT ) ),
+  
+  /**
+   * JSON without white space.
+   */
+  COMPACT_JSON( new ObjectMapper() ),
+  
+  /**
+   * Jackson's binary JSON format, which always starts with a header.
+   */
+  SMILE( new ObjectMapper( new SmileFactory() ) ),
+  
+  /**
+   * Concise Binary Object Representation, written with the self describe
+   * tag so it can be recognised.
+   */
+  CBOR( new ObjectMapper( CBORFactory.builder().enable( CBORGenerator.Feature.WRITE_TYPE_HEADER ).build() ) );
+  
+  private final ObjectMapper objectmapper;
+
+  private StoreFormat( ObjectMapper objectmapper )
+  {
+    this.objectmapper = objectmapper;
+    objectmapper.disable( SerializationFeature.FAIL_ON_EMPTY_BEANS );
+    objectmapper.configure( JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES, true );
+  }
+
+  /**
+   * Get the object mapper that reads and writes this format.
+   * 
+   * @return The object mapper.
+   */
+  public ObjectMapper getObjectMapper()
+  {
+    return objectmapper;
+  }
+  
+  /**
+   * Work out which format some data is in. Smile data starts with ":)\n"
+   * and CBOR data with the self describe tag 0xD9D9F7. Anything else is
+   * taken to be JSON.
+   * 
+   * @param data The serialized data.
+   * @return The format which can read the data.
+   */
+  public static StoreFormat detect( byte[] data )
+  {
+    if ( data.length >= 3 )
+    {
+      if ( data[0] == ':' && data[1] == ')' && data[2] == '\n' )
+        return SMILE;
+      if ( (data[0] & 0xff) == 0xd9 && (data[1] & 0xff) == 0xd9 && (data[2] & 0xff) == 0xf7 )
+        return CBOR;
+    }
+    return JSON;
+  }
+  
+  /**
+   * Find a format by name, ignoring case and treating '-' as '_'.
+   * 
+   * @param name The name, e.g. "compact-json" or "smile".
+   * @return The format.
+   * @throws IllegalArgumentException If there is no such format.
+   */
+  public static StoreFormat forName( String name )
+  {
+    return valueOf( name.trim().toUpperCase().replace( '-', '_' ) );
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+
+/**
+ * Command line tool which rewrites every file under a store directory in a
+ * given format. The web application should be stopped while this runs.
+ * Files already in the target format are left alone. Each file is written
+ * to a temporary file which then replaces the original so a failure part
+ * way through leaves every file readable.
+ * 
+ * Usage: StoreFormatConverter &lt;store directory&gt; &lt;json|compact-json|smile|cbor&gt;
+ * 
+ * @author maber01
+ */
+public class StoreFormatConverter
+{
+  /**
+   * Convert all the files under a directory.
+   * 
+   * @param root The base directory of a store.
+   * @param format The format to convert to.
+   * @return An array of three numbers, files converted, bytes before and
+   * bytes after.
+   * @throws IOException If a file could not be read or written.
+   */
+  public static long[] convert( Path root, StoreFormat format ) throws IOException
+  {
+    long[] totals = new long[3];
+    try ( Stream<Path> walk = Files.walk( root ) )
+    {
+      for ( Path p : (Iterable<Path>)walk.filter( Files::isRegularFile )::iterator )
+      {
+        byte[] data = Files.readAllBytes( p );
+        StoreFormat current = StoreFormat.detect( data );
+        if ( current == format )
+          continue;
+        JsonNode tree = current.getObjectMapper().readTree( data );
+        byte[] converted = format.getObjectMapper().writeValueAsBytes( tree );
+        Path temp = p.resolveSibling( p.getFileName().toString() + ".converting" );
+        Files.write( temp, converted );
+        Files.move( temp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        totals[0]++;
+        totals[1] += data.length;
+        totals[2] += converted.length;
+      }
+    }
+    return totals;
+  }
+  
+  public static void main( String[] args ) throws IOException
+  {
+    if ( args.length != 2 )
+    {
+      System.err.println( "Usage: StoreFormatConverter <store directory> <json|compact-json|smile|cbor>" );
+      System.exit( 1 );
+    }
+    long[] totals = convert( Paths.get( args[0] ), StoreFormat.forName( args[1] ) );
+    System.out.println( "Converted " + totals[0] + " files from " + totals[1] + " to " + totals[2] + " bytes." );
+  }
+}
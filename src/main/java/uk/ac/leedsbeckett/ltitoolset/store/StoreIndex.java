@@ -0,0 +1,151 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A secondary index on a store which maps a value taken from each entry to
+ * the keys of the entries that have that value. Defined by a store with
+ * Store.defineIndex() and kept up to date as entries are updated.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ * @param <T> The entry class.
+ */
+public class StoreIndex<K,T>
+{
+  final String name;
+  final Function<T,String> extractor;
+  
+  final ConcurrentHashMap<String,Set<K>> forward = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<K,String> reverse = new ConcurrentHashMap<>();
+
+  StoreIndex( String name, Function<T,String> extractor )
+  {
+    this.name = name;
+    this.extractor = extractor;
+  }
+
+  /**
+   * Get the name of the index.
+   * 
+   * @return The name.
+   */
+  public String getName()
+  {
+    return name;
+  }
+  
+  /**
+   * Find the keys of entries with a value.
+   * 
+   * @param value The value.
+   * @return An unmodifiable view of the keys, empty if there are none.
+   */
+  public Set<K> lookup( String value )
+  {
+    Set<K> keys = forward.get( value );
+    if ( keys == null )
+      return Collections.emptySet();
+    return Collections.unmodifiableSet( keys );
+  }
+  
+  /**
+   * The number of distinct values in the index.
+   * 
+   * @return The count.
+   */
+  public int size()
+  {
+    return forward.size();
+  }
+  
+  /**
+   * Index an entry, removing it from under any value it had before.
+   * 
+   * @param key The key of the entry.
+   * @param entry The entry.
+   */
+  void update( K key, T entry )
+  {
+    String value;
+    try
+    {
+      value = extractor.apply( entry );
+    }
+    catch ( RuntimeException ex )
+    {
+      // Entries that are incomplete, e.g. not launched yet, aren't indexed.
+      value = null;
+    }
+    put( key, value );
+  }
+  
+  /**
+   * Set the value of a key directly, used when loading a saved index.
+   * 
+   * @param key The key.
+   * @param value The value or null to remove the key.
+   */
+  void put( K key, String value )
+  {
+    reverse.compute( key, ( k, old ) ->
+    {
+      if ( Objects.equals( old, value ) )
+        return old;
+      if ( old != null )
+        forward.computeIfPresent( old, ( v, keys ) ->
+        {
+          keys.remove( k );
+          return keys.isEmpty() ? null : keys;
+        } );
+      // Add inside compute() so that another key's removal can't drop the
+      // set from forward between finding it and adding to it.
+      if ( value != null )
+        forward.compute( value, ( v, keys ) ->
+        {
+          if ( keys == null )
+            keys = ConcurrentHashMap.newKeySet();
+          keys.add( k );
+          return keys;
+        } );
+      return value;
+    } );
+  }
+  
+  /**
+   * Get a snapshot of which value each key has.
+   * 
+   * @return Map of key to value.
+   */
+  Map<K,String> snapshot()
+  {
+    return new ConcurrentHashMap<>( reverse );
+  }
+  
+  void clear()
+  {
+    reverse.clear();
+    forward.clear();
+  }
+}
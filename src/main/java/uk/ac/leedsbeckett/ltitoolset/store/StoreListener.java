@@ -0,0 +1,37 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+/**
+ * Something that wants to know when entries in a store change, either
+ * because they were updated through the store or because their files were
+ * changed by something else.
+ * 
+ * @author maber01
+ * @param <K> The key class.
+ */
+public interface StoreListener<K>
+{
+  /**
+   * Called after an entry has changed. Called on whichever thread made or
+   * noticed the change so implementations should be quick.
+   * 
+   * @param store The store.
+   * @param key The key of the entry that changed.
+   */
+  void entryChanged( Store<K,?> store, K key );
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.util.concurrent.atomic.LongAdder;
+import uk.ac.leedsbeckett.ltitoolset.util.LatencyHistogram;
+
+/**
+ * Counters and timings for one store. The store updates them and they are
+ * published as an MBean.
+ * 
+ * @author maber01
+ */
+public class StoreMetrics implements StoreMetricsMBean
+{
+  final Store<?,?> store;
+  
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder negativeHits = new LongAdder();
+  final LongAdder loadFailures = new LongAdder();
+  final LongAdder bytesRead = new LongAdder();
+  final LongAdder saves = new LongAdder();
+  final LongAdder saveFailures = new LongAdder();
+  final LongAdder bytesWritten = new LongAdder();
+  final LongAdder conflicts = new LongAdder();
+  final LatencyHistogram loadTimes = new LatencyHistogram();
+  final LatencyHistogram saveTimes = new LatencyHistogram();
+
+  StoreMetrics( Store<?,?> store )
+  {
+    this.store = store;
+  }
+
+  @Override
+  public String getName()
+  {
+    return store.getName();
+  }
+
+  @Override
+  public long getHits()
+  {
+    return hits.sum();
+  }
+
+  @Override
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+
+  @Override
+  public long getNegativeHits()
+  {
+    return negativeHits.sum();
+  }
+
+  @Override
+  public long getLoads()
+  {
+    return loadTimes.getCount();
+  }
+
+  @Override
+  public long getLoadFailures()
+  {
+    return loadFailures.sum();
+  }
+
+  @Override
+  public long getBytesRead()
+  {
+    return bytesRead.sum();
+  }
+
+  @Override
+  public long getLoadMeanMicros()
+  {
+    return loadTimes.getMeanMicros();
+  }
+
+  @Override
+  public long getLoad50thPercentileMicros()
+  {
+    return loadTimes.getPercentileMicros( 50.0 );
+  }
+
+  @Override
+  public long getLoad99thPercentileMicros()
+  {
+    return loadTimes.getPercentileMicros( 99.0 );
+  }
+
+  @Override
+  public long getLoadMaxMicros()
+  {
+    return loadTimes.getMaxMicros();
+  }
+
+  @Override
+  public long getSaves()
+  {
+    return saves.sum();
+  }
+
+  @Override
+  public long getSaveFailures()
+  {
+    return saveFailures.sum();
+  }
+
+  @Override
+  public long getBytesWritten()
+  {
+    return bytesWritten.sum();
+  }
+
+  @Override
+  public long getConflicts()
+  {
+    return conflicts.sum();
+  }
+
+  @Override
+  public long getSaveMeanMicros()
+  {
+    return saveTimes.getMeanMicros();
+  }
+
+  @Override
+  public long getSave50thPercentileMicros()
+  {
+    return saveTimes.getPercentileMicros( 50.0 );
+  }
+
+  @Override
+  public long getSave99thPercentileMicros()
+  {
+    return saveTimes.getPercentileMicros( 99.0 );
+  }
+
+  @Override
+  public long getSaveMaxMicros()
+  {
+    return saveTimes.getMaxMicros();
+  }
+
+  @Override
+  public int getPendingWrites()
+  {
+    return store.getPendingWriteCount();
+  }
+
+  @Override
+  public int getNegativeCacheSize()
+  {
+    return store.getNegativeCacheSize();
+  }
+
+  @Override
+  public int evict( String key )
+  {
+    return store.evictByName( key );
+  }
+
+  @Override
+  public void clear()
+  {
+    store.evictAll();
+  }
+
+  @Override
+  public void resetStatistics()
+  {
+    hits.reset();
+    misses.reset();
+    negativeHits.reset();
+    loadFailures.reset();
+    bytesRead.reset();
+    saves.reset();
+    saveFailures.reset();
+    bytesWritten.reset();
+    conflicts.reset();
+    loadTimes.reset();
+    saveTimes.reset();
+  }
+}
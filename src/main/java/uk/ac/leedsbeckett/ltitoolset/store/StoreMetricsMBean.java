@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+/**
+ * The management interface of a store, published with JMX under the name
+ * of the store. Times are in microseconds.
+ * 
+ * @author maber01
+ */
+public interface StoreMetricsMBean
+{
+  String getName();
+  
+  long getHits();
+  long getMisses();
+  long getNegativeHits();
+  
+  long getLoads();
+  long getLoadFailures();
+  long getBytesRead();
+  long getLoadMeanMicros();
+  long getLoad50thPercentileMicros();
+  long getLoad99thPercentileMicros();
+  long getLoadMaxMicros();
+  
+  long getSaves();
+  long getSaveFailures();
+  long getBytesWritten();
+  long getConflicts();
+  long getSaveMeanMicros();
+  long getSave50thPercentileMicros();
+  long getSave99thPercentileMicros();
+  long getSaveMaxMicros();
+  
+  int getPendingWrites();
+  int getNegativeCacheSize();
+  
+  /**
+   * Evict entries whose key, as a string, matches.
+   * 
+   * @param key The key as shown by its toString() method.
+   * @return The number of entries evicted.
+   */
+  int evict( String key );
+  
+  /**
+   * Evict every entry so they are all loaded again.
+   */
+  void clear();
+  
+  /**
+   * Set all the counters back to zero.
+   */
+  void resetStatistics();
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the directories of file based stores and tells the stores when
+ * files are created, changed or deleted by something else, for example
+ * when ops edit configuration by hand. Only the affected keys are
+ * invalidated so cached entries can otherwise live indefinitely.
+ * 
+ * A WatchService is used where the file system supports it. Where it 
+ * doesn't, or if polling is requested because the file system is a network
+ * share that doesn't report changes, directories are listed periodically
+ * and file times and sizes are compared.
+ * 
+ * Only the files directly in each directory are watched and hidden files
+ * are ignored.
+ * 
+ * @author maber01
+ */
+public class StoreWatcher
+{
+  static final Logger logger = Logger.getLogger( StoreWatcher.class.getName() );
+  
+  final long pollSeconds;
+  final boolean forcePolling;
+  
+  WatchService watchService;
+  ExecutorService watchThread;
+  final Map<WatchKey,Watched> watchKeys = new ConcurrentHashMap<>();
+  
+  ScheduledExecutorService pollThread;
+  final ArrayList<Watched> polled = new ArrayList<>();
+
+  /**
+   * Create a watcher.
+   * 
+   * @param pollSeconds How often to list directories that have to be polled.
+   * @param forcePolling True to poll every directory and not use a 
+   * WatchService.
+   */
+  public StoreWatcher( long pollSeconds, boolean forcePolling )
+  {
+    this.pollSeconds = pollSeconds;
+    this.forcePolling = forcePolling;
+  }
+  
+  /**
+   * Start watching the directory of a store. The store must implement 
+   * keyForPath().
+   * 
+   * @param store The store.
+   * @param directory The directory where the store keeps its files.
+   */
+  public synchronized void watch( Store<?,?> store, Path directory )
+  {
+    Watched w = new Watched( store, directory );
+    if ( !forcePolling )
+    {
+      try
+      {
+        if ( watchService == null )
+        {
+          watchService = directory.getFileSystem().newWatchService();
+          watchThread = Executors.newSingleThreadExecutor();
+          watchThread.execute( this::processEvents );
+        }
+        WatchKey key = directory.register( watchService, 
+                StandardWatchEventKinds.ENTRY_CREATE, 
+                StandardWatchEventKinds.ENTRY_MODIFY, 
+                StandardWatchEventKinds.ENTRY_DELETE );
+        watchKeys.put( key, w );
+        logger.log( Level.INFO, "Watching {0} for store {1}", new Object[]{directory, store.getName()} );
+        return;
+      }
+      catch ( IOException | UnsupportedOperationException ex )
+      {
+        logger.log( Level.WARNING, "Cannot watch " + directory + " so polling it instead.", ex );
+      }
+    }
+    
+    w.snapshot = list( directory );
+    synchronized ( polled )
+    {
+      polled.add( w );
+    }
+    if ( pollThread == null )
+    {
+      pollThread = Executors.newSingleThreadScheduledExecutor();
+      pollThread.scheduleWithFixedDelay( this::poll, pollSeconds, pollSeconds, TimeUnit.SECONDS );
+    }
+    logger.log( Level.INFO, "Polling {0} for store {1} every {2}s", new Object[]{directory, store.getName(), pollSeconds} );
+  }
+  
+  /**
+   * Stop watching and polling.
+   */
+  public synchronized void stop()
+  {
+    if ( watchService != null )
+    {
+      try
+      {
+        // This makes the watch thread's take() throw so it finishes.
+        watchService.close();
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.SEVERE, "Problem closing watch service.", ex );
+      }
+      shutdown( watchThread );
+      watchService = null;
+      watchKeys.clear();
+    }
+    if ( pollThread != null )
+    {
+      shutdown( pollThread );
+      pollThread = null;
+      synchronized ( polled )
+      {
+        polled.clear();
+      }
+    }
+  }
+  
+  private void shutdown( ExecutorService executor )
+  {
+    executor.shutdown();
+    try
+    {
+      if ( !executor.awaitTermination( 1000, TimeUnit.MILLISECONDS ) )
+        executor.shutdownNow();
+    }
+    catch ( InterruptedException e )
+    {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Runs on the watch thread until the watch service is closed.
+   */
+  private void processEvents()
+  {
+    WatchService service = watchService;
+    while ( true )
+    {
+      WatchKey key;
+      try
+      {
+        key = service.take();
+      }
+      catch ( InterruptedException | ClosedWatchServiceException e )
+      {
+        return;
+      }
+      
+      Watched w = watchKeys.get( key );
+      if ( w != null )
+      {
+        for ( WatchEvent<?> event : key.pollEvents() )
+        {
+          if ( event.kind() == StandardWatchEventKinds.OVERFLOW )
+          {
+            logger.log( Level.WARNING, "Missed changes in {0}, evicting everything.", w.directory );
+            w.store.evictAll();
+            continue;
+          }
+          changed( w, w.directory.resolve( (Path)event.context() ) );
+        }
+      }
+      if ( !key.reset() )
+      {
+        watchKeys.remove( key );
+        if ( w != null )
+          logger.log( Level.WARNING, "No longer able to watch {0}", w.directory );
+      }
+    }
+  }
+  
+  /**
+   * Runs on the poll thread.
+   */
+  private void poll()
+  {
+    ArrayList<Watched> list;
+    synchronized ( polled )
+    {
+      list = new ArrayList<>( polled );
+    }
+    for ( Watched w : list )
+    {
+      Map<Path,String> now = list( w.directory );
+      HashSet<Path> all = new HashSet<>( w.snapshot.keySet() );
+      all.addAll( now.keySet() );
+      for ( Path p : all )
+        if ( !now.getOrDefault( p, "" ).equals( w.snapshot.getOrDefault( p, "" ) ) )
+          changed( w, p );
+      w.snapshot = now;
+    }
+  }
+  
+  /**
+   * List the files in a directory along with a signature of time and size.
+   * 
+   * @param directory The directory.
+   * @return Map of file to signature.
+   */
+  private Map<Path,String> list( Path directory )
+  {
+    HashMap<Path,String> map = new HashMap<>();
+    try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory ) )
+    {
+      for ( Path p : stream )
+      {
+        BasicFileAttributes a = Files.readAttributes( p, BasicFileAttributes.class );
+        if ( a.isRegularFile() )
+          map.put( p, a.lastModifiedTime().toMillis() + "/" + a.size() );
+      }
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.FINE, "Unable to list " + directory, ex );
+    }
+    return map;
+  }
+  
+  @SuppressWarnings( "unchecked" )
+  private void changed( Watched w, Path path )
+  {
+    // Hidden files are temporary files that stores write before moving 
+    // them into place.
+    if ( path.getFileName().toString().startsWith( "." ) )
+      return;
+    Store<Object,?> store = (Store<Object,?>)w.store;
+    Object key = store.keyForPath( path );
+    if ( key == null )
+    {
+      logger.log( Level.FINE, "No key for changed file {0}", path );
+      return;
+    }
+    try
+    {
+      store.invalidate( key );
+    }
+    catch ( RuntimeException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to invalidate " + path, ex );
+    }
+  }
+  
+  static class Watched
+  {
+    final Store<?,?> store;
+    final Path directory;
+    Map<Path,String> snapshot;
+
+    Watched( Store<?,?> store, Path directory )
+    {
+      this.store = store;
+      this.directory = directory;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.ltitoolset.util;
+
+import java.util.Objects;
+
+/**
+ * Hash codes for keys made of several parts. Each part's hash is mixed in
+ * the way MurmurHash3 mixes a block, so parts in a different order give a
+ * different hash and all the bits of the result depend on all the parts.
+ * Keys should work this out once, when they are made.
+ * 
+ * @author maber01
+ */
+public class KeyHash
+{
+  private static final int SEED = 0x9e3779b9;
+  
+  private KeyHash()
+  {
+  }
+
+  /**
+   * Hash a key with one part.
+   * 
+   * @param a The part.
+   * @return The hash code.
+   */
+  public static int of( Object a )
+  {
+    return finish( combine( SEED, a ), 1 );
+  }
+
+  /**
+   * Hash a key with two parts.
+   * 
+   * @param a The first part.
+   * @param b The second part.
+   * @return The hash code.
+   */
+  public static int of( Object a, Object b )
+  {
+    return finish( combine( combine( SEED, a ), b ), 2 );
+  }
+
+  /**
+   * Hash a key with four parts.
+   * 
+   * @param a The first part.
+   * @param b The second part.
+   * @param c The third part.
+   * @param d The fourth part.
+   * @return The hash code.
+   */
+  public static int of( Object a, Object b, Object c, Object d )
+  {
+    return finish( combine( combine( combine( combine( SEED, a ), b ), c ), d ), 4 );
+  }
+  
+  static int combine( int h, Object part )
+  {
+    int k = Objects.hashCode( part ) * 0xcc9e2d51;
+    k = Integer.rotateLeft( k, 15 ) * 0x1b873593;
+    h ^= k;
+    return Integer.rotateLeft( h, 13 ) * 5 + 0xe6546b64;
+  }
+  
+  static int finish( int h, int parts )
+  {
+    h ^= parts;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ ( h >>> 16 );
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of durations. Bucket n counts durations from 2^n
+ * up to 2^(n+1) microseconds so percentiles are accurate to within a factor
+ * of two, which is enough to see whether something takes microseconds,
+ * milliseconds or seconds.
+ * 
+ * @author maber01
+ */
+public class LatencyHistogram
+{
+  static final int BUCKETS = 40;
+  
+  private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalMicros = new LongAdder();
+  private final LongAccumulator maxMicros = new LongAccumulator( Math::max, 0L );
+
+  /**
+   * Record one duration.
+   * 
+   * @param nanos The duration in nanoseconds.
+   */
+  public void record( long nanos )
+  {
+    long micros = Math.max( 0L, nanos / 1000L );
+    int bucket = Math.min( BUCKETS - 1, 63 - Long.numberOfLeadingZeros( micros | 1L ) );
+    buckets.incrementAndGet( bucket );
+    count.increment();
+    totalMicros.add( micros );
+    maxMicros.accumulate( micros );
+  }
+  
+  /**
+   * Record the time since a start time.
+   * 
+   * @param startNanos A value from System.nanoTime().
+   */
+  public void recordSince( long startNanos )
+  {
+    record( System.nanoTime() - startNanos );
+  }
+  
+  public long getCount()
+  {
+    return count.sum();
+  }
+  
+  public long getMeanMicros()
+  {
+    long n = count.sum();
+    return n == 0 ? 0L : totalMicros.sum() / n;
+  }
+  
+  public long getMaxMicros()
+  {
+    return maxMicros.get();
+  }
+  
+  /**
+   * Estimate a percentile.
+   * 
+   * @param percentile A number between 0 and 100.
+   * @return The upper bound in microseconds of the bucket that contains the
+   * percentile.
+   */
+  public long getPercentileMicros( double percentile )
+  {
+    long[] snapshot = new long[BUCKETS];
+    long n = 0L;
+    for ( int i = 0; i < BUCKETS; i++ )
+    {
+      snapshot[i] = buckets.get( i );
+      n += snapshot[i];
+    }
+    if ( n == 0L )
+      return 0L;
+    long target = (long)Math.ceil( n * percentile / 100.0 );
+    long seen = 0L;
+    for ( int i = 0; i < BUCKETS; i++ )
+    {
+      seen += snapshot[i];
+      if ( seen >= target )
+        return Math.min( 1L << (i + 1), getMaxMicros() );
+    }
+    return getMaxMicros();
+  }
+  
+  /**
+   * Set everything back to zero.
+   */
+  public void reset()
+  {
+    for ( int i = 0; i < BUCKETS; i++ )
+      buckets.set( i, 0L );
+    count.reset();
+    totalMicros.reset();
+    maxMicros.reset();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.util;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Helpers for classes that write their own serialized form. Each form 
+ * starts with a version byte. A later version may only add data after the
+ * data of earlier versions, so an older reader reads the part it 
+ * understands and Java serialization skips the rest.
+ * 
+ * @author maber01
+ */
+public class SerialFormat
+{
+  private SerialFormat()
+  {
+  }
+  
+  /**
+   * Write the version of a serialized form.
+   * 
+   * @param out The output.
+   * @param version The version, from 1 to 255.
+   * @throws IOException If writing failed.
+   */
+  public static void writeVersion( ObjectOutput out, int version ) throws IOException
+  {
+    out.writeByte( version );
+  }
+  
+  /**
+   * Read the version of a serialized form.
+   * 
+   * @param in The input.
+   * @param type The class being read, for the error message.
+   * @return The version, which may be higher than the reader knows.
+   * @throws IOException If reading failed or the version is invalid.
+   */
+  public static int readVersion( ObjectInput in, Class<?> type ) throws IOException
+  {
+    int version = in.readUnsignedByte();
+    if ( version == 0 )
+      throw new InvalidObjectException( "Invalid serial form version for " + type.getName() );
+    return version;
+  }
+  
+  /**
+   * Write a string which may be null.
+   * 
+   * @param out The output.
+   * @param s The string.
+   * @throws IOException If writing failed.
+   */
+  public static void writeString( ObjectOutput out, String s ) throws IOException
+  {
+    out.writeBoolean( s != null );
+    if ( s != null )
+      out.writeUTF( s );
+  }
+  
+  /**
+   * Read a string written by writeString().
+   * 
+   * @param in The input.
+   * @return The string or null.
+   * @throws IOException If reading failed.
+   */
+  public static String readString( ObjectInput in ) throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
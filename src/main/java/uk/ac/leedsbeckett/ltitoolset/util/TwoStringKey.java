@@ -32,11 +32,19 @@ public class TwoStringKey implements Serializable
   @JsonIgnore
   private final String b;
   
+  /**
+   * Worked out when the key is made. It isn't serialized so it is worked
+   * out again, on first use, after the key is read back.
+   */
+  @JsonIgnore
+  private transient int hash;
+  
   protected TwoStringKey( String a, String b )
   {
     assert( a != null && b != null );
     this.a = a;
     this.b = b;
+    this.hash = KeyHash.of( a, b );
   }
 
   
@@ -53,7 +61,10 @@ public class TwoStringKey implements Serializable
   @Override
   public int hashCode()
   {
-    return a.hashCode() | b.hashCode();
+    int h = hash;
+    if ( h == 0 )
+      hash = h = KeyHash.of( a, b );
+    return h;
   }
 
   @Override
@@ -68,6 +79,6 @@ public class TwoStringKey implements Serializable
     if ( !(obj instanceof TwoStringKey) )
       return false;
     TwoStringKey other = (TwoStringKey)obj;
-    return this.a.equals( other.a ) && this.b.equals( other.b );
+    return this.hashCode() == other.hashCode() && this.a.equals( other.a ) && this.b.equals( other.b );
   }  
 }
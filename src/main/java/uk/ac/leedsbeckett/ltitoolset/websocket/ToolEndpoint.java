@@ -12,8 +12,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.websocket.CloseReason;
 import javax.websocket.Session;
 import uk.ac.leedsbeckett.lti.LtiException;
+import uk.ac.leedsbeckett.ltitoolset.NodeAffinity;
 import uk.ac.leedsbeckett.ltitoolset.ToolCoordinator;
 import uk.ac.leedsbeckett.ltitoolset.ToolLaunchState;
 import uk.ac.leedsbeckett.ltitoolset.ToolSetLtiState;
@@ -35,6 +37,11 @@ public abstract class ToolEndpoint implements BackchannelOwner
 {
   static final Logger logger = Logger.getLogger(ToolEndpoint.class.getName() );
 
+  /**
+   * The close code sent when the state ID belongs to another server.
+   */
+  public static final CloseReason.CloseCode MISDIRECTED = CloseReason.CloseCodes.getCloseCode( 4421 );
+
   /**
    * A map of maps to keep track of handlers in implementations.
    */
@@ -198,6 +205,13 @@ public abstract class ToolEndpoint implements BackchannelOwner
     if ( list != null && list.size() == 1 )
       stateid = list.get( 0 );
     if ( stateid == null ) throw new IOException( "No state ID parameter provided in URL to web socket endpoint." );
+    if ( !toolCoordinator.getNodeAffinity().isLocal( stateid ) )
+    {
+      // Tell the client to connect again, hopefully to the right server.
+      session.close( new CloseReason( MISDIRECTED, "State is held by another server." ) );
+      throw new IOException( "State ID " + stateid + " belongs to another server." );
+    }
+    stateid = NodeAffinity.toStateId( stateid );
     logger.log(Level.INFO, "State ID = {0}", stateid);
 
     String claimedNonce=null;
@@ -207,9 +221,14 @@ public abstract class ToolEndpoint implements BackchannelOwner
     if ( claimedNonce == null ) throw new IOException( "No nonce parameter provided in URL to web socket endpoint." );
     logger.log(Level.INFO, "Claimed nonce = {0}", claimedNonce );
     
+    String stateToken=null;
+    list = session.getRequestParameterMap().get( "state_token" );
+    if ( list != null && list.size() == 1 )
+      stateToken = list.get( 0 );
+
     try
     {
-      state = toolCoordinator.getLtiStateStore().getState( stateid, claimedNonce );
+      state = toolCoordinator.getLtiState( stateid, claimedNonce, stateToken );
     }
     catch ( LtiException ltiex )
     {
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Several servers in one JVM, each with its own state store, behind a
+ * load balancer. Each server handles follow-up requests the way
+ * NodeAffinityFilter and the tool page do: it turns away requests for
+ * states held elsewhere and otherwise looks the state up in its own store.
+ *
+ * @author maber01
+ */
+public class NodeAffinityTest
+{
+  static final int SERVERS = 3;
+  static final int LAUNCHES = 1000;
+
+  final Map<String,Server> servers = new LinkedHashMap<>();
+  final Map<String,Server> serversByUrl = new HashMap<>();
+
+  @BeforeEach
+  public void setUp()
+  {
+    HashMap<String,String> urls = new HashMap<>();
+    for ( int i = 1; i <= SERVERS; i++ )
+      urls.put( "n" + i, "https://n" + i + ".example.ac.uk" );
+    for ( int i = 1; i <= SERVERS; i++ )
+    {
+      Server server = new Server( new NodeAffinity( "n" + i, urls ) );
+      servers.put( "n" + i, server );
+      serversByUrl.put( urls.get( "n" + i ), server );
+    }
+  }
+
+  /**
+   * Launch on each server in turn and return the query strings of the
+   * tool pages.
+   */
+  List<String> launchAll()
+  {
+    ArrayList<String> queries = new ArrayList<>();
+    List<Server> list = new ArrayList<>( servers.values() );
+    for ( int i = 0; i < LAUNCHES; i++ )
+      queries.add( list.get( i % list.size() ).launch() );
+    return queries;
+  }
+
+  @Test
+  public void lookupsStayLocalBehindPrefixRouting()
+  {
+    for ( String query : launchAll() )
+    {
+      // The load balancer routes on the prefix of the state ID.
+      Server server = servers.get( NodeAffinity.nodeOf( NodeAffinity.stateIdFromQuery( query ) ) );
+      assertEquals( Outcome.FOUND, server.handle( query ) );
+    }
+    for ( Server server : servers.values() )
+    {
+      assertEquals( server.states.size(), server.found, server.affinity.getNodeId() );
+      assertEquals( 0, server.redirected );
+      assertEquals( 0, server.missing );
+    }
+  }
+
+  @Test
+  public void misroutedRequestsAreRedirectedToTheHolder()
+  {
+    List<Server> list = new ArrayList<>( servers.values() );
+    Random random = new Random( 1L );
+    int redirects = 0;
+    for ( String query : launchAll() )
+    {
+      // A load balancer that ignores the prefix.
+      Server server = list.get( random.nextInt( list.size() ) );
+      Outcome outcome = server.handle( query );
+      if ( outcome == Outcome.REDIRECTED )
+      {
+        redirects++;
+        outcome = server.redirect.handle( query );
+      }
+      assertEquals( Outcome.FOUND, outcome );
+    }
+    assertTrue( redirects > 0 );
+    int found = 0;
+    for ( Server server : servers.values() )
+    {
+      // No server ever looked for a state that it doesn't hold.
+      assertEquals( 0, server.missing );
+      found += server.found;
+    }
+    assertEquals( LAUNCHES, found );
+  }
+
+  @Test
+  public void serverWithoutUrlIsMisdirected()
+  {
+    NodeAffinity affinity = new NodeAffinity( "n1", null );
+    assertEquals( "n9", affinity.misroutedTo( "state_id=n9~abc&nonce=x" ) );
+    assertNull( affinity.getNodeUrl( "n9" ) );
+  }
+
+  @Test
+  public void stateIdIsReadFromQueryOnly()
+  {
+    assertEquals( "n2~abc", NodeAffinity.stateIdFromQuery( "nonce=x&state_id=n2~abc" ) );
+    assertEquals( "n2~abc", NodeAffinity.stateIdFromQuery( "state_id=n2%7Eabc&nonce=x" ) );
+    assertNull( NodeAffinity.stateIdFromQuery( "xstate_id=n2~abc" ) );
+    assertNull( NodeAffinity.stateIdFromQuery( "" ) );
+    assertNull( NodeAffinity.stateIdFromQuery( null ) );
+
+    NodeAffinity affinity = new NodeAffinity( "n1", null );
+    assertNull( affinity.misroutedTo( null ) );
+    assertNull( affinity.misroutedTo( "nonce=x" ) );
+    assertNull( affinity.misroutedTo( "state_id=abc" ) );
+    assertNull( affinity.misroutedTo( "state_id=n1~abc" ) );
+    assertNull( new NodeAffinity( null, null ).misroutedTo( "state_id=n2~abc" ) );
+  }
+
+  enum Outcome
+  {
+    FOUND, REDIRECTED, MISDIRECTED, MISSING
+  }
+
+  /**
+   * One server with a state store of its own.
+   */
+  class Server
+  {
+    final NodeAffinity affinity;
+    final Map<String,String> states = new HashMap<>();
+    int found = 0;
+    int redirected = 0;
+    int missing = 0;
+    Server redirect = null;
+
+    Server( NodeAffinity affinity )
+    {
+      this.affinity = affinity;
+    }
+
+    String launch()
+    {
+      String stateId = UUID.randomUUID().toString();
+      String nonce = UUID.randomUUID().toString();
+      states.put( stateId, nonce );
+      return "state_id=" + affinity.toExternalId( stateId ) + "&nonce=" + nonce;
+    }
+
+    Outcome handle( String query )
+    {
+      redirect = null;
+      String node = affinity.misroutedTo( query );
+      if ( node != null )
+      {
+        String url = affinity.getNodeUrl( node );
+        if ( url == null )
+          return Outcome.MISDIRECTED;
+        redirected++;
+        redirect = serversByUrl.get( url );
+        return Outcome.REDIRECTED;
+      }
+      String stateId = NodeAffinity.toStateId( NodeAffinity.stateIdFromQuery( query ) );
+      if ( !states.containsKey( stateId ) )
+      {
+        missing++;
+        return Outcome.MISSING;
+      }
+      found++;
+      return Outcome.FOUND;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of eviction and expiry in BoundedCache.
+ *
+ * @author maber01
+ */
+public class BoundedCacheTest
+{
+  static BoundedCache<String,String> create( long maxEntries, BoundedCache.Eviction eviction )
+  {
+    return new BoundedCache<>( "bounded-test", maxEntries, null, eviction, BoundedCache.ExpiryType.ACCESSED, 0L, TimeUnit.SECONDS );
+  }
+
+  static BoundedCache<String,String> expiring( BoundedCache.ExpiryType type, long millis )
+  {
+    return new BoundedCache<>( "bounded-test", 1000L, type, millis, TimeUnit.MILLISECONDS );
+  }
+
+  @Test
+  public void staysWithinMaxEntries()
+  {
+    for ( BoundedCache.Eviction eviction : BoundedCache.Eviction.values() )
+    {
+      BoundedCache<String,String> cache = create( 100L, eviction );
+      for ( int i = 0; i < 10000; i++ )
+        cache.put( "k" + i, "v" + i );
+      assertEquals( 100, cache.size(), eviction.name() );
+      assertEquals( 100L, cache.getWeight(), eviction.name() );
+      assertEquals( 9900L, cache.getEvictionCount(), eviction.name() );
+      // The newest entry is always let in.
+      assertEquals( "v9999", cache.get( "k9999" ), eviction.name() );
+    }
+  }
+
+  @Test
+  public void staysWithinMaxWeight()
+  {
+    BoundedCache<String,String> cache = new BoundedCache<>( "bounded-test", 1000L,
+            ( k, v ) -> v.length(), BoundedCache.ExpiryType.ACCESSED, 0L, TimeUnit.SECONDS );
+    Random random = new Random( 1L );
+    for ( int i = 0; i < 5000; i++ )
+    {
+      cache.put( "k" + random.nextInt( 2000 ), "x".repeat( 1 + random.nextInt( 50 ) ) );
+      assertTrue( cache.getWeight() <= 1000L );
+    }
+    long weight = 0L;
+    for ( javax.cache.Cache.Entry<String,String> e : cache )
+      weight += e.getValue().length();
+    assertEquals( weight, cache.getWeight() );
+  }
+
+  @Test
+  public void lruEvictsLeastRecentlyUsed()
+  {
+    BoundedCache<String,String> cache = create( 3L, BoundedCache.Eviction.LRU );
+    cache.put( "a", "1" );
+    cache.put( "b", "2" );
+    cache.put( "c", "3" );
+    assertEquals( "1", cache.get( "a" ) );
+    cache.put( "d", "4" );
+    assertNull( cache.get( "b" ) );
+    assertEquals( "1", cache.get( "a" ) );
+    assertEquals( "3", cache.get( "c" ) );
+    assertEquals( "4", cache.get( "d" ) );
+  }
+
+  @Test
+  public void tinyLfuKeepsHotEntriesThroughScan()
+  {
+    BoundedCache<String,String> lfu = create( 200L, BoundedCache.Eviction.TINY_LFU );
+    BoundedCache<String,String> lru = create( 200L, BoundedCache.Eviction.LRU );
+    int[] hotHits = new int[2];
+    List<BoundedCache<String,String>> caches = List.of( lfu, lru );
+    for ( int c = 0; c < caches.size(); c++ )
+    {
+      BoundedCache<String,String> cache = caches.get( c );
+      for ( int round = 0; round < 20; round++ )
+        for ( int i = 0; i < 50; i++ )
+          useHot( cache, i );
+      // A scan of entries that are each used once, such as a report, while
+      // the hot entries go on being used now and then.
+      for ( int i = 0; i < 5000; i++ )
+      {
+        cache.put( "cold" + i, "c" );
+        if ( i % 10 == 0 && useHot( cache, ( i / 10 ) % 50 ) )
+          hotHits[c]++;
+      }
+    }
+    // Each hot entry is used again after more puts than LRU has room for,
+    // so LRU only hits on the few used before the scan pushed them out.
+    assertEquals( 500, hotHits[0] );
+    assertTrue( hotHits[1] < 50, hotHits[1] + " LRU hits" );
+    assertEquals( 50, countHot( lfu ) );
+  }
+
+  static boolean useHot( BoundedCache<String,String> cache, int i )
+  {
+    if ( cache.get( "hot" + i ) != null )
+      return true;
+    cache.put( "hot" + i, "h" );
+    return false;
+  }
+
+  static int countHot( BoundedCache<String,String> cache )
+  {
+    int found = 0;
+    for ( int i = 0; i < 50; i++ )
+      if ( cache.get( "hot" + i ) != null )
+        found++;
+    return found;
+  }
+
+  @Test
+  public void createdExpiryIsNotExtendedByReads() throws InterruptedException
+  {
+    BoundedCache<String,String> cache = expiring( BoundedCache.ExpiryType.CREATED, 300L );
+    cache.put( "k", "v" );
+    long end = System.currentTimeMillis() + 600L;
+    while ( System.currentTimeMillis() < end )
+    {
+      cache.get( "k" );
+      Thread.sleep( 20L );
+    }
+    assertNull( cache.get( "k" ) );
+    assertEquals( 1L, cache.getExpirationCount() );
+  }
+
+  @Test
+  public void accessedExpiryIsExtendedByReads() throws InterruptedException
+  {
+    BoundedCache<String,String> cache = expiring( BoundedCache.ExpiryType.ACCESSED, 300L );
+    cache.put( "k", "v" );
+    long end = System.currentTimeMillis() + 600L;
+    while ( System.currentTimeMillis() < end )
+    {
+      assertEquals( "v", cache.get( "k" ) );
+      Thread.sleep( 20L );
+    }
+    Thread.sleep( 400L );
+    assertNull( cache.get( "k" ) );
+    assertEquals( 1L, cache.getExpirationCount() );
+  }
+
+  @Test
+  public void expiredEntryCanBeReplaced() throws InterruptedException
+  {
+    BoundedCache<String,String> cache = expiring( BoundedCache.ExpiryType.CREATED, 50L );
+    cache.put( "k", "v1" );
+    Thread.sleep( 100L );
+    assertTrue( cache.putIfAbsent( "k", "v2" ) );
+    assertEquals( "v2", cache.get( "k" ) );
+    assertFalse( cache.containsKey( "gone" ) );
+  }
+
+  @Test
+  public void removalListenerHearsOfEvictionAndExpiryOnly() throws InterruptedException
+  {
+    BoundedCache<String,String> cache = new BoundedCache<>( "bounded-test", 2L, null, 
+            BoundedCache.Eviction.LRU, BoundedCache.ExpiryType.CREATED, 50L, TimeUnit.MILLISECONDS );
+    List<String> dropped = new ArrayList<>();
+    cache.setRemovalListener( ( k, v ) -> dropped.add( k + "=" + v ) );
+    cache.put( "a", "1" );
+    cache.put( "a", "2" );
+    cache.put( "b", "3" );
+    cache.remove( "b" );
+    assertTrue( dropped.isEmpty(), dropped.toString() );
+    cache.put( "c", "4" );
+    cache.put( "d", "5" );
+    assertEquals( List.of( "a=2" ), dropped );
+    Thread.sleep( 100L );
+    assertNull( cache.get( "c" ) );
+    assertEquals( List.of( "a=2", "c=4" ), dropped );
+  }
+
+  @Test
+  public void removedEntryFreesItsWeight()
+  {
+    BoundedCache<String,String> cache = create( 10L, BoundedCache.Eviction.TINY_LFU );
+    for ( int i = 0; i < 10; i++ )
+      cache.put( "k" + i, "v" );
+    cache.remove( "k0" );
+    assertEquals( 9L, cache.getWeight() );
+    cache.clear();
+    assertEquals( 0L, cache.getWeight() );
+    assertEquals( 0, cache.size() );
+  }
+
+  @Test
+  public void concurrentUseKeepsWeightConsistent() throws Exception
+  {
+    BoundedCache<String,String> cache = new BoundedCache<>( "bounded-test", 500L,
+            ( k, v ) -> v.length(), BoundedCache.ExpiryType.ACCESSED, 0L, TimeUnit.SECONDS );
+    ExecutorService pool = Executors.newFixedThreadPool( 4 );
+    try
+    {
+      List<Future<?>> futures = new ArrayList<>();
+      for ( int t = 0; t < 4; t++ )
+      {
+        long seed = t;
+        futures.add( pool.submit( () ->
+        {
+          Random random = new Random( seed );
+          for ( int i = 0; i < 50000; i++ )
+          {
+            String key = "k" + random.nextInt( 1000 );
+            switch ( random.nextInt( 4 ) )
+            {
+              case 0:
+                cache.put( key, "x".repeat( 1 + random.nextInt( 10 ) ) );
+                break;
+              case 1:
+                cache.remove( key );
+                break;
+              default:
+                cache.get( key );
+            }
+          }
+          return null;
+        } ) );
+      }
+      for ( Future<?> f : futures )
+        f.get( 60, TimeUnit.SECONDS );
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+    long weight = 0L;
+    for ( javax.cache.Cache.Entry<String,String> e : cache )
+      weight += e.getValue().length();
+    assertEquals( weight, cache.getWeight() );
+    assertTrue( cache.getWeight() <= 500L );
+  }
+}
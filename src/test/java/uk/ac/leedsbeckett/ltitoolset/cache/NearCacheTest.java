@@ -0,0 +1,181 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two near caches in front of one cache of the reference JCache provider
+ * stand in for two servers sharing a clustered cache.
+ *
+ * @author maber01
+ */
+public class NearCacheTest
+{
+  CacheManager manager;
+  Cache<String,String> shared;
+  NearCache<String,String> a;
+  NearCache<String,String> b;
+
+  @BeforeEach
+  public void setUp()
+  {
+    manager = Caching.getCachingProvider().getCacheManager();
+    shared = manager.createCache( "near-test", new MutableConfiguration<String,String>() );
+    a = new NearCache<>( shared, 10000, 60, TimeUnit.SECONDS );
+    b = new NearCache<>( shared, 10000, 60, TimeUnit.SECONDS );
+  }
+
+  @AfterEach
+  public void tearDown()
+  {
+    a.close();
+    b.close();
+    manager.destroyCache( "near-test" );
+  }
+
+  @Test
+  public void ownWriteIsKeptLocally()
+  {
+    a.put( "k", "v1" );
+    assertEquals( 1, a.getLocalSize() );
+    assertEquals( "v1", a.get( "k" ) );
+    assertEquals( 0, a.getRemoteReadCount() );
+    assertEquals( 0, a.getInvalidationCount() );
+  }
+
+  @Test
+  public void otherServerWriteInvalidates()
+  {
+    a.put( "k", "v1" );
+    assertEquals( "v1", b.get( "k" ) );
+    assertEquals( "v1", b.get( "k" ) );
+    assertEquals( 1, b.getRemoteReadCount() );
+
+    a.put( "k", "v2" );
+    assertEquals( "v2", b.get( "k" ) );
+    assertEquals( "v2", a.get( "k" ) );
+    assertEquals( 2, b.getRemoteReadCount() );
+
+    b.remove( "k" );
+    assertNull( a.get( "k" ) );
+  }
+
+  @Test
+  public void putIfAbsentThatFailsIsNotOwnWrite()
+  {
+    a.put( "k", "v1" );
+    assertFalse( b.putIfAbsent( "k", "other" ) );
+    assertEquals( "v1", b.get( "k" ) );
+    // b expected no event of its own so a's next write must reach it.
+    a.put( "k", "v2" );
+    assertEquals( "v2", b.get( "k" ) );
+  }
+
+  @Test
+  @SuppressWarnings( "unchecked" )
+  public void plainWritesDontFetchPreviousValue()
+  {
+    List<String> calls = new ArrayList<>();
+    Cache<String,String> counted = (Cache<String,String>)Proxy.newProxyInstance( 
+            Cache.class.getClassLoader(), new Class<?>[]{ Cache.class }, ( proxy, method, args ) ->
+    {
+      calls.add( method.getName() );
+      try
+      {
+        return method.invoke( shared, args );
+      }
+      catch ( InvocationTargetException ex )
+      {
+        throw ex.getCause();
+      }
+    } );
+    NearCache<String,String> c = new NearCache<>( counted, 10000, 60, TimeUnit.SECONDS );
+    try
+    {
+      calls.clear();
+      c.put( "k", "v1" );
+      assertTrue( c.remove( "k" ) );
+      assertEquals( List.of( "put", "remove" ), calls );
+
+      c.put( "k", "v1" );
+      assertEquals( "v1", c.getAndPut( "k", "v2" ) );
+      assertEquals( "v2", c.getAndRemove( "k" ) );
+      assertTrue( calls.contains( "getAndPut" ) && calls.contains( "getAndRemove" ), calls.toString() );
+    }
+    finally
+    {
+      c.close();
+    }
+  }
+
+  @Test
+  @SuppressWarnings( "unchecked" )
+  public void invalidationDuringReadOnlyStopsKeepingThatKey()
+  {
+    // Wrap the shared cache so that the test can deliver an invalidation 
+    // while c is reading, as another server's write would.
+    Runnable[] duringGet = new Runnable[]{ () -> {} };
+    Cache<String,String> hooked = (Cache<String,String>)Proxy.newProxyInstance( 
+            Cache.class.getClassLoader(), new Class<?>[]{ Cache.class }, ( proxy, method, args ) ->
+    {
+      if ( method.getName().equals( "get" ) )
+        duringGet[0].run();
+      try
+      {
+        return method.invoke( shared, args );
+      }
+      catch ( InvocationTargetException ex )
+      {
+        throw ex.getCause();
+      }
+    } );
+    NearCache<String,String> c = new NearCache<>( hooked, 10000, 60, TimeUnit.SECONDS );
+    try
+    {
+      shared.put( "k1", "v1" );
+      shared.put( "k2", "v2" );
+      String other = "other";
+      for ( int i = 0; NearCache.stripe( other ) == NearCache.stripe( "k1" ); i++ )
+        other = "other" + i;
+      String churned = other;
+      duringGet[0] = () -> c.invalidate( churned );
+      assertEquals( "v1", c.get( "k1" ) );
+      assertEquals( 1, c.getLocalSize() );
+
+      duringGet[0] = () -> c.invalidate( "k2" );
+      assertEquals( "v2", c.get( "k2" ) );
+      assertEquals( 1, c.getLocalSize() );
+    }
+    finally
+    {
+      c.close();
+    }
+  }
+}
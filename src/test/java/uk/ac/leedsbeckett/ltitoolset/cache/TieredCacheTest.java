@@ -0,0 +1,190 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.cache;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the two tiers of TieredCache, using small states which weigh
+ * one kilobyte each.
+ *
+ * @author maber01
+ */
+public class TieredCacheTest
+{
+  static TieredCache<String,State> create( long pendingKilobytes, long pendingMillis )
+  {
+    return new TieredCache<>( "tiered-test", State::isLaunched,
+            pendingKilobytes, pendingMillis, 1000L, 60000L, TimeUnit.MILLISECONDS );
+  }
+
+  @Test
+  public void launchPromotesEntry()
+  {
+    TieredCache<String,State> cache = create( 100L, 60000L );
+    State login = new State( "nonce" );
+    cache.put( "s1", login );
+    assertSame( login, cache.get( "s1" ) );
+    assertEquals( 1, cache.getPendingCount() );
+    assertEquals( 0, cache.getPromotedCount() );
+
+    State launched = new State( "nonce" ).launch();
+    cache.put( "s1", launched );
+    assertSame( launched, cache.get( "s1" ) );
+    assertEquals( 0, cache.getPendingCount() );
+    assertEquals( 1, cache.getPromotedCount() );
+    assertEquals( 1, cache.getPromotions() );
+    assertEquals( 1, cache.getPromotedKilobytes() );
+    assertEquals( 0, cache.getPendingKilobytes() );
+  }
+
+  @Test
+  public void promotionIsNeverSeenAsMiss() throws Exception
+  {
+    TieredCache<String,State> cache = create( 1000L, 60000L );
+    // The reader keeps looking up whichever key is being promoted.
+    AtomicReference<String> current = new AtomicReference<>( null );
+    AtomicBoolean promoting = new AtomicBoolean( true );
+    AtomicInteger misses = new AtomicInteger();
+    Thread reader = new Thread( () ->
+    {
+      while ( promoting.get() )
+      {
+        String key = current.get();
+        // Keys are only removed once the reader has been moved off them.
+        if ( key != null && cache.get( key ) == null && key.equals( current.get() ) )
+          misses.incrementAndGet();
+      }
+    } );
+    reader.start();
+    try
+    {
+      for ( int round = 0; round < 200; round++ )
+      {
+        for ( int i = 0; i < 100; i++ )
+          cache.put( round + "-" + i, new State( "nonce" ) );
+        for ( int i = 0; i < 100; i++ )
+        {
+          current.set( round + "-" + i );
+          cache.put( round + "-" + i, new State( "nonce" ).launch() );
+        }
+        current.set( null );
+        for ( int i = 0; i < 100; i++ )
+          cache.remove( round + "-" + i );
+      }
+    }
+    finally
+    {
+      promoting.set( false );
+      reader.join( 10000L );
+    }
+    assertEquals( 0, misses.get() );
+  }
+
+  @Test
+  public void promotedEntryStaysPromoted()
+  {
+    TieredCache<String,State> cache = create( 100L, 60000L );
+    cache.put( "s1", new State( "a" ).launch() );
+    State replaced = new State( "b" );
+    cache.put( "s1", replaced );
+    assertSame( replaced, cache.get( "s1" ) );
+    assertEquals( 0, cache.getPendingCount() );
+    assertEquals( 1, cache.getPromotedCount() );
+  }
+
+  @Test
+  public void loginFloodEvictsOldestPendingOnly()
+  {
+    TieredCache<String,State> cache = create( 100L, 60000L );
+    cache.put( "launched", new State( "x" ).launch() );
+    for ( int i = 0; i < 1000; i++ )
+      cache.put( "login" + i, new State( "n" + i ) );
+
+    // Every new login is kept and the oldest abandoned ones make room.
+    assertEquals( 100, cache.getPendingCount() );
+    for ( int i = 900; i < 1000; i++ )
+      assertNotNull( cache.get( "login" + i ), "login" + i );
+    assertNull( cache.get( "login0" ) );
+    assertNull( cache.get( "login899" ) );
+    assertEquals( 900, cache.getEvictions() );
+
+    // The flood can't push out a launched state.
+    assertNotNull( cache.get( "launched" ) );
+    assertEquals( 1, cache.getPromotedCount() );
+
+    // A login that goes on to launch after the flood still gets promoted.
+    cache.put( "login999", new State( "n999" ).launch() );
+    assertEquals( 2, cache.getPromotedCount() );
+    assertEquals( 99, cache.getPendingCount() );
+  }
+
+  @Test
+  public void pendingEntriesExpire() throws InterruptedException
+  {
+    TieredCache<String,State> cache = create( 100L, 50L );
+    cache.put( "login", new State( "n" ) );
+    cache.put( "launched", new State( "n" ).launch() );
+    Thread.sleep( 100L );
+    assertNull( cache.get( "login" ) );
+    assertNotNull( cache.get( "launched" ) );
+    assertEquals( 1, cache.getExpirations() );
+  }
+
+  @Test
+  public void largeEntriesWeighMore()
+  {
+    TieredCache<String,State> cache = create( 100L, 60000L );
+    State big = new State( "n" );
+    big.payload = new byte[10 * 1024];
+    cache.put( "big", big );
+    assertEquals( 11, cache.getPendingKilobytes() );
+  }
+
+  /**
+   * Stands in for an LTI state, which is promoted once it has launched.
+   */
+  static class State implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    final String nonce;
+    boolean launched = false;
+    byte[] payload = null;
+
+    State( String nonce )
+    {
+      this.nonce = nonce;
+    }
+
+    State launch()
+    {
+      launched = true;
+      return this;
+    }
+
+    boolean isLaunched()
+    {
+      return launched;
+    }
+  }
+}
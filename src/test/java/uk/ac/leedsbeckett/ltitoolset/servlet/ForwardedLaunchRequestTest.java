@@ -0,0 +1,188 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.servlet;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that a forwarded page can read the parameters of its own URL
+ * through ForwardedLaunchRequest, the way Tomcat and Jetty forward.
+ *
+ * @author maber01
+ */
+public class ForwardedLaunchRequestTest
+{
+  static final Map<String,String[]> PAGE_QUERY = Map.of(
+          "state_id", new String[] { "s1" },
+          "nonce", new String[] { "n1" },
+          "state_token", new String[] { "t1" } );
+
+  /**
+   * A launch POST as the container would present it.
+   *
+   * @param parameters The parameters, which the test may change later.
+   * @return The request.
+   */
+  static HttpServletRequest launchPost( Map<String,String[]> parameters )
+  {
+    return (HttpServletRequest)Proxy.newProxyInstance(
+            ForwardedLaunchRequestTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class },
+            ( proxy, method, args ) ->
+            {
+              switch ( method.getName() )
+              {
+                case "getMethod":
+                  return "POST";
+                case "getParameter":
+                  String[] values = parameters.get( (String)args[0] );
+                  return values == null ? null : values[0];
+                case "getParameterValues":
+                  return parameters.get( (String)args[0] );
+                case "getParameterMap":
+                  return Collections.unmodifiableMap( parameters );
+                case "getParameterNames":
+                  return Collections.enumeration( parameters.keySet() );
+                default:
+                  throw new UnsupportedOperationException( method.getName() );
+              }
+            } );
+  }
+
+  static Map<String,String[]> launchParameters()
+  {
+    Map<String,String[]> parameters = new LinkedHashMap<>();
+    parameters.put( "id_token", new String[] { "eyJ..." } );
+    parameters.put( "state", new String[] { "launch-state" } );
+    return parameters;
+  }
+
+  /**
+   * What Tomcat's ApplicationHttpRequest does: it merges the query string of
+   * the forward path with the parameters of the request it wraps.
+   */
+  static class MergingRequest extends HttpServletRequestWrapper
+  {
+    final Map<String,String[]> merged;
+
+    MergingRequest( HttpServletRequest request, Map<String,String[]> query )
+    {
+      super( request );
+      merged = new LinkedHashMap<>( query );
+      request.getParameterMap().forEach( merged::putIfAbsent );
+    }
+
+    @Override
+    public String getParameter( String name )
+    {
+      String[] values = merged.get( name );
+      return values == null ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues( String name )
+    {
+      return merged.get( name );
+    }
+
+    @Override
+    public Map<String,String[]> getParameterMap()
+    {
+      return Collections.unmodifiableMap( merged );
+    }
+  }
+
+  /**
+   * Tomcat puts its merging request beneath every application wrapper,
+   * just above the container's own request.
+   *
+   * @param outer The request passed to forward().
+   */
+  static void tomcatForward( HttpServletRequest outer )
+  {
+    ServletRequest previous = outer;
+    ServletRequest current = outer;
+    while ( current instanceof HttpServletRequestWrapper )
+    {
+      previous = current;
+      current = ( (HttpServletRequestWrapper)current ).getRequest();
+    }
+    ( (HttpServletRequestWrapper)previous ).setRequest(
+            new MergingRequest( (HttpServletRequest)current, PAGE_QUERY ) );
+  }
+
+  static void assertPageView( HttpServletRequest page )
+  {
+    assertEquals( "GET", page.getMethod() );
+    assertEquals( "s1", page.getParameter( "state_id" ) );
+    assertEquals( "n1", page.getParameter( "nonce" ) );
+    assertArrayEquals( new String[] { "t1" }, page.getParameterValues( "state_token" ) );
+    assertNull( page.getParameter( "id_token" ) );
+    assertNull( page.getParameterValues( "state" ) );
+    assertEquals( PAGE_QUERY.keySet(), page.getParameterMap().keySet() );
+    assertEquals( PAGE_QUERY.keySet(), Collections.list( page.getParameterNames() ).stream()
+            .collect( Collectors.toSet() ) );
+  }
+
+  @Test
+  public void pageReadsItsParametersAfterTomcatForward()
+  {
+    HttpServletRequest page = new ForwardedLaunchRequest( launchPost( launchParameters() ) );
+    tomcatForward( page );
+    assertPageView( page );
+  }
+
+  @Test
+  public void pageReadsItsParametersThroughFilterWrapperAfterTomcatForward()
+  {
+    // A filter wrapped the launch before it reached the servlet.
+    HttpServletRequest filtered = new HttpServletRequestWrapper( launchPost( launchParameters() ) );
+    HttpServletRequest page = new ForwardedLaunchRequest( filtered );
+    tomcatForward( page );
+    assertPageView( page );
+  }
+
+  @Test
+  public void pageReadsItsParametersAfterJettyForward()
+  {
+    // Jetty merges the query string into the base request's parameters.
+    Map<String,String[]> parameters = launchParameters();
+    HttpServletRequest page = new ForwardedLaunchRequest( launchPost( parameters ) );
+    parameters.putAll( PAGE_QUERY );
+    assertPageView( page );
+  }
+
+  @Test
+  public void launchParametersAreHiddenBeforeForward()
+  {
+    HttpServletRequest page = new ForwardedLaunchRequest( launchPost( launchParameters() ) );
+    assertEquals( "GET", page.getMethod() );
+    assertNull( page.getParameter( "id_token" ) );
+    assertNull( page.getParameter( "state" ) );
+    assertTrue( page.getParameterMap().isEmpty() );
+    assertFalse( page.getParameterNames().hasMoreElements() );
+  }
+}
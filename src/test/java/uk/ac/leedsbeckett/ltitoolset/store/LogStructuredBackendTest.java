@@ -0,0 +1,301 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of recovery and compaction in LogStructuredBackend, keyed by the
+ * ID itself.
+ *
+ * @author maber01
+ */
+public class LogStructuredBackendTest
+{
+  static final int WRITERS = 4;
+  static final int KEYS_PER_WRITER = 20;
+  static final int WRITES_PER_WRITER = 3000;
+
+  @TempDir
+  Path directory;
+
+  LogStructuredBackend<String> log;
+
+  LogStructuredBackend<String> open( long maxSegmentSize, double compactionThreshold ) throws IOException
+  {
+    log = new LogStructuredBackend<>( directory, id -> id, maxSegmentSize, compactionThreshold );
+    return log;
+  }
+
+  LogStructuredBackend<String> reopen( long maxSegmentSize, double compactionThreshold ) throws IOException
+  {
+    log.close();
+    return open( maxSegmentSize, compactionThreshold );
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException
+  {
+    if ( log != null )
+      log.close();
+  }
+
+  static byte[] bytes( String s )
+  {
+    return s.getBytes( StandardCharsets.UTF_8 );
+  }
+
+  static String text( byte[] b )
+  {
+    return b == null ? null : new String( b, StandardCharsets.UTF_8 );
+  }
+
+  List<Path> segmentFiles() throws IOException
+  {
+    try ( Stream<Path> list = Files.list( directory ) )
+    {
+      return list.filter( p -> p.getFileName().toString().startsWith( LogStructuredBackend.SEGMENT_PREFIX ) )
+              .sorted()
+              .collect( Collectors.toList() );
+    }
+  }
+
+  Path lastSegment() throws IOException
+  {
+    List<Path> files = segmentFiles();
+    return files.get( files.size() - 1 );
+  }
+
+  @Test
+  public void entriesSurviveReopening() throws IOException
+  {
+    open( 1024L, 0.5 );
+    for ( int i = 0; i < 100; i++ )
+      log.write( "k" + ( i % 10 ), bytes( "v" + i ) );
+    assertTrue( segmentFiles().size() > 1 );
+    reopen( 1024L, 0.5 );
+    assertEquals( 10, log.size() );
+    for ( int k = 0; k < 10; k++ )
+      assertEquals( "v" + ( 90 + k ), text( log.read( "k" + k ) ) );
+  }
+
+  @Test
+  public void truncatedTailIsDiscarded() throws IOException
+  {
+    open( 1024L * 1024L, 0.5 );
+    log.write( "a", bytes( "a1" ) );
+    log.write( "b", bytes( "b1" ) );
+    log.write( "a", bytes( "a2-which-is-longer" ) );
+    log.close();
+    log = null;
+
+    // Lose the last few bytes of the last record, as a crash mid-write would.
+    Path segment = lastSegment();
+    long full = Files.size( segment );
+    try ( FileChannel channel = FileChannel.open( segment, StandardOpenOption.WRITE ) )
+    {
+      channel.truncate( full - 5 );
+    }
+
+    open( 1024L * 1024L, 0.5 );
+    assertEquals( "a1", text( log.read( "a" ) ) );
+    assertEquals( "b1", text( log.read( "b" ) ) );
+    long good = Files.size( segment );
+    assertTrue( good < full - 5, "The partial record is cut off." );
+
+    // New records go after the last good one and survive reopening.
+    log.write( "c", bytes( "c1" ) );
+    reopen( 1024L * 1024L, 0.5 );
+    assertEquals( "a1", text( log.read( "a" ) ) );
+    assertEquals( "b1", text( log.read( "b" ) ) );
+    assertEquals( "c1", text( log.read( "c" ) ) );
+  }
+
+  @Test
+  public void corruptTailIsDiscarded() throws IOException
+  {
+    open( 1024L * 1024L, 0.5 );
+    log.write( "a", bytes( "a1" ) );
+    log.write( "a", bytes( "a2" ) );
+    log.close();
+    log = null;
+
+    // Damage the data of the last record so that its checksum fails.
+    Path segment = lastSegment();
+    long size = Files.size( segment );
+    try ( FileChannel channel = FileChannel.open( segment, StandardOpenOption.WRITE ) )
+    {
+      channel.write( ByteBuffer.wrap( bytes( "X" ) ), size - LogStructuredBackend.TRAILER_SIZE - 1 );
+    }
+
+    open( 1024L * 1024L, 0.5 );
+    assertEquals( "a1", text( log.read( "a" ) ) );
+    log.write( "a", bytes( "a3" ) );
+    reopen( 1024L * 1024L, 0.5 );
+    assertEquals( "a3", text( log.read( "a" ) ) );
+  }
+
+  @Test
+  public void garbageHeaderAtTailIsDiscarded() throws IOException
+  {
+    open( 1024L * 1024L, 0.5 );
+    log.write( "a", bytes( "a1" ) );
+    log.close();
+    log = null;
+
+    // A header claiming a huge record, as if only the header got written.
+    Path segment = lastSegment();
+    long size = Files.size( segment );
+    try ( FileChannel channel = FileChannel.open( segment, StandardOpenOption.WRITE ) )
+    {
+      ByteBuffer header = ByteBuffer.allocate( LogStructuredBackend.HEADER_SIZE + LogStructuredBackend.TRAILER_SIZE );
+      header.putInt( 1 ).putInt( 1000000 ).putInt( 0 ).flip();
+      channel.write( header, size );
+    }
+
+    open( 1024L * 1024L, 0.5 );
+    assertEquals( "a1", text( log.read( "a" ) ) );
+    assertEquals( size, Files.size( segment ) );
+  }
+
+  @Test
+  public void compactionKeepsLatestAndFreesSegments() throws IOException
+  {
+    open( 512L, 0.5 );
+    for ( int i = 0; i < 200; i++ )
+      log.write( "k" + ( i % 5 ), bytes( "v" + i ) );
+    int before = segmentFiles().size();
+    log.compact();
+    int after = segmentFiles().size();
+    assertTrue( after < before, before + " segments before, " + after + " after" );
+    for ( int k = 0; k < 5; k++ )
+      assertEquals( "v" + ( 195 + k ), text( log.read( "k" + k ) ) );
+
+    reopen( 512L, 0.5 );
+    assertEquals( 5, log.size() );
+    for ( int k = 0; k < 5; k++ )
+      assertEquals( "v" + ( 195 + k ), text( log.read( "k" + k ) ) );
+  }
+
+  @Test
+  public void compactionRacingWritesKeepsLatest() throws Exception
+  {
+    // Small segments and a low threshold so that compaction copies records
+    // that writers are superseding at the same time.
+    open( 2048L, 0.1 );
+    ExecutorService pool = Executors.newFixedThreadPool( WRITERS + 2 );
+    AtomicBoolean writing = new AtomicBoolean( true );
+    try
+    {
+      List<Future<?>> writers = new ArrayList<>();
+      for ( int w = 0; w < WRITERS; w++ )
+      {
+        int writer = w;
+        // Each writer owns its keys and writes increasing sequence numbers.
+        writers.add( pool.submit( () ->
+        {
+          for ( int i = 0; i < WRITES_PER_WRITER; i++ )
+            log.write( key( writer, i % KEYS_PER_WRITER ), bytes( Integer.toString( i ) ) );
+          return null;
+        } ) );
+      }
+
+      Future<Integer> compactions = pool.submit( () ->
+      {
+        int n = 0;
+        while ( writing.get() )
+        {
+          log.compact();
+          n++;
+        }
+        return n;
+      } );
+
+      // A reader must always find each key and never see it go backwards.
+      Future<?> reader = pool.submit( () ->
+      {
+        int[][] seen = new int[WRITERS][KEYS_PER_WRITER];
+        while ( writing.get() )
+        {
+          for ( int w = 0; w < WRITERS; w++ )
+            for ( int k = 0; k < KEYS_PER_WRITER; k++ )
+            {
+              String value = text( log.read( key( w, k ) ) );
+              if ( value == null )
+                continue;
+              int seq = Integer.parseInt( value );
+              assertTrue( seq >= seen[w][k], key( w, k ) + " went back from " + seen[w][k] + " to " + seq );
+              seen[w][k] = seq;
+            }
+        }
+        return null;
+      } );
+
+      for ( Future<?> f : writers )
+        f.get( 60, TimeUnit.SECONDS );
+      writing.set( false );
+      assertTrue( compactions.get( 60, TimeUnit.SECONDS ) > 0 );
+      reader.get( 60, TimeUnit.SECONDS );
+    }
+    finally
+    {
+      writing.set( false );
+      pool.shutdownNow();
+    }
+
+    assertLatest();
+    log.compact();
+    assertLatest();
+    reopen( 2048L, 0.1 );
+    assertEquals( WRITERS * KEYS_PER_WRITER, log.size() );
+    assertLatest();
+  }
+
+  static String key( int writer, int k )
+  {
+    return "w" + writer + "-k" + k;
+  }
+
+  void assertLatest() throws IOException
+  {
+    for ( int w = 0; w < WRITERS; w++ )
+      for ( int k = 0; k < KEYS_PER_WRITER; k++ )
+      {
+        int last = WRITES_PER_WRITER - KEYS_PER_WRITER + k;
+        assertEquals( Integer.toString( last ), text( log.read( key( w, k ) ) ), key( w, k ) );
+      }
+  }
+}
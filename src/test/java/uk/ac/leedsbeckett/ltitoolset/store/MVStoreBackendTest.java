@@ -0,0 +1,190 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of MVStoreBackend, keyed by the ID itself.
+ *
+ * @author maber01
+ */
+public class MVStoreBackendTest
+{
+  @TempDir
+  Path directory;
+
+  MVStoreBackend<String> backend;
+
+  MVStoreBackend<String> open( long commitDelayMillis ) throws IOException
+  {
+    backend = new MVStoreBackend<>( directory.resolve( "test.mv.db" ), "test", id -> id, commitDelayMillis );
+    return backend;
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException
+  {
+    if ( backend != null )
+      backend.close();
+  }
+
+  static byte[] bytes( String s )
+  {
+    return s.getBytes( StandardCharsets.UTF_8 );
+  }
+
+  static String text( byte[] b )
+  {
+    return b == null ? null : new String( b, StandardCharsets.UTF_8 );
+  }
+
+  /**
+   * Stop the MVStore without committing, as if the server died.
+   */
+  void crash() throws ReflectiveOperationException
+  {
+    Field field = MVStoreBackend.class.getDeclaredField( "store" );
+    field.setAccessible( true );
+    ( (MVStore)field.get( backend ) ).closeImmediately();
+    backend = null;
+  }
+
+  @Test
+  public void entriesSurviveReopening() throws IOException
+  {
+    open( 0L );
+    for ( int i = 0; i < 100; i++ )
+      backend.write( "k" + ( i % 10 ), bytes( "v" + i ) );
+    backend.close();
+    open( 0L );
+    assertEquals( 10L, backend.size() );
+    for ( int k = 0; k < 10; k++ )
+      assertEquals( "v" + ( 90 + k ), text( backend.read( "k" + k ) ) );
+    assertNull( backend.read( "nothing" ) );
+  }
+
+  @Test
+  public void rangeScanIsInIdOrderAndInclusive() throws IOException
+  {
+    open( 0L );
+    for ( String id : List.of( "c", "a", "e", "b", "d" ) )
+      backend.write( id, bytes( id ) );
+    assertEquals( List.of( "b", "c", "d" ), 
+            backend.scanRange( "b", "d" ).map( MVStoreBackendTest::text ).collect( Collectors.toList() ) );
+    assertEquals( List.of( "a", "b" ), 
+            backend.scanRange( null, "b" ).map( MVStoreBackendTest::text ).collect( Collectors.toList() ) );
+    assertEquals( List.of( "d", "e" ), 
+            backend.scanRange( "d", null ).map( MVStoreBackendTest::text ).collect( Collectors.toList() ) );
+    assertEquals( 5L, backend.scan( false ).count() );
+  }
+
+  @Test
+  public void delayedWritesAreReadableAndCommittedOnClose() throws IOException
+  {
+    open( 60000L );
+    backend.write( "k", bytes( "v" ) );
+    assertEquals( "v", text( backend.read( "k" ) ) );
+    backend.close();
+    open( 60000L );
+    assertEquals( "v", text( backend.read( "k" ) ) );
+  }
+
+  @Test
+  public void uncommittedWritesAreLostInACrash() throws Exception
+  {
+    open( 60000L );
+    backend.write( "k", bytes( "v1" ) );
+    backend.commit();
+    backend.write( "k", bytes( "v2" ) );
+    crash();
+    open( 0L );
+    assertEquals( "v1", text( backend.read( "k" ) ) );
+  }
+
+  @Test
+  public void writeAllIsNeverHalfCommitted() throws Exception
+  {
+    // Every writeAll() gives both entries the same value. The store is 
+    // committed while that goes on and then dies straight after the commit,
+    // so the file holds whatever the commit caught.
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try
+    {
+      for ( int cycle = 0; cycle < 20; cycle++ )
+      {
+        open( 60000L );
+        AtomicBoolean writing = new AtomicBoolean( true );
+        MVStoreBackend<String> writingTo = backend;
+        Future<?> writer = pool.submit( () ->
+        {
+          for ( int i = 0; writing.get(); i++ )
+          {
+            LinkedHashMap<String,byte[]> pair = new LinkedHashMap<>();
+            pair.put( "a", bytes( Integer.toString( i ) ) );
+            pair.put( "b", bytes( Integer.toString( i ) ) );
+            try
+            {
+              writingTo.writeAll( pair );
+            }
+            catch ( IOException | RuntimeException ex )
+            {
+              // The store died under it.
+              return;
+            }
+          }
+        } );
+        while ( backend.read( "a" ) == null )
+          Thread.sleep( 1L );
+        Thread.sleep( 5L );
+        backend.commit();
+        crash();
+        writing.set( false );
+        writer.get( 60, TimeUnit.SECONDS );
+
+        open( 0L );
+        String a = text( backend.read( "a" ) );
+        assertNotNull( a );
+        assertEquals( a, text( backend.read( "b" ) ), "cycle " + cycle );
+        backend.close();
+        backend = null;
+        Files.delete( directory.resolve( "test.mv.db" ) );
+      }
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.leedsbeckett.ltitoolset.store.StoreTest.Item;
+import uk.ac.leedsbeckett.ltitoolset.store.StoreTest.ItemStore;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the formats a store can write entries in, using the item store
+ * from StoreTest.
+ *
+ * @author maber01
+ */
+public class StoreFormatTest
+{
+  @TempDir
+  Path base;
+
+  ItemStore store;
+
+  @BeforeEach
+  public void setUp()
+  {
+    store = new ItemStore( base );
+  }
+
+  byte[] file( String key ) throws IOException
+  {
+    return Files.readAllBytes( store.getPath( key ) );
+  }
+
+  @Test
+  public void everyFormatRoundTrips() throws IOException
+  {
+    for ( StoreFormat format : StoreFormat.values() )
+    {
+      String key = format.name();
+      store.setFormat( format );
+      store.update( new Item( key, "value of " + key ) );
+      // Both kinds of JSON are detected as JSON.
+      assertEquals( format == StoreFormat.COMPACT_JSON ? StoreFormat.JSON : format, StoreFormat.detect( file( key ) ) );
+      store.evictAll();
+      assertEquals( "value of " + key, store.get( key, false ).getValue(), key );
+    }
+  }
+
+  @Test
+  public void entriesInAnotherFormatAreReadAndConvertedOnUpdate() throws IOException
+  {
+    store.setFormat( StoreFormat.JSON );
+    store.update( new Item( "k", "v1" ) );
+    assertEquals( StoreFormat.JSON, StoreFormat.detect( file( "k" ) ) );
+
+    store.setFormat( StoreFormat.SMILE );
+    store.evictAll();
+    Item item = store.get( "k", false );
+    assertEquals( "v1", item.getValue() );
+    // Reading doesn't rewrite the file.
+    assertEquals( StoreFormat.JSON, StoreFormat.detect( file( "k" ) ) );
+
+    item.setValue( "v2" );
+    store.update( item );
+    assertEquals( StoreFormat.SMILE, StoreFormat.detect( file( "k" ) ) );
+
+    store.setFormat( StoreFormat.CBOR );
+    store.evictAll();
+    assertEquals( "v2", store.get( "k", false ).getValue() );
+  }
+
+  @Test
+  public void binaryFormatsAreSmallerThanIndentedJson() throws IOException
+  {
+    Item item = new Item( "k", "a value that is much the same in every format" );
+    int json = StoreFormat.JSON.getObjectMapper().writeValueAsBytes( item ).length;
+    int compact = StoreFormat.COMPACT_JSON.getObjectMapper().writeValueAsBytes( item ).length;
+    int smile = StoreFormat.SMILE.getObjectMapper().writeValueAsBytes( item ).length;
+    int cbor = StoreFormat.CBOR.getObjectMapper().writeValueAsBytes( item ).length;
+    assertTrue( compact < json, compact + " >= " + json );
+    assertTrue( smile < json, smile + " >= " + json );
+    assertTrue( cbor < json, cbor + " >= " + json );
+  }
+
+  @Test
+  public void formatNamesAreForgiving()
+  {
+    assertEquals( StoreFormat.COMPACT_JSON, StoreFormat.forName( "compact-json" ) );
+    assertEquals( StoreFormat.SMILE, StoreFormat.forName( " Smile " ) );
+    assertEquals( StoreFormat.CBOR, StoreFormat.forName( "cbor" ) );
+    assertThrows( IllegalArgumentException.class, () -> StoreFormat.forName( "xml" ) );
+  }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.store;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.cache.Cache;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.leedsbeckett.ltitoolset.cache.BoundedCache;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the loading and negative caching done by Store, with a file
+ * backend that counts reads and can hold them up.
+ *
+ * @author maber01
+ */
+public class StoreTest
+{
+  static final int THREADS = 8;
+
+  @TempDir
+  Path base;
+
+  ItemStore store;
+  CountingBackend backend;
+  ExecutorService pool;
+
+  @BeforeEach
+  public void setUp()
+  {
+    store = new ItemStore( base );
+    backend = new CountingBackend( new FileStoreBackend<>( store::getPath, store::getBasePath ) );
+    store.setBackend( backend );
+    pool = Executors.newFixedThreadPool( THREADS );
+  }
+
+  @AfterEach
+  public void tearDown()
+  {
+    pool.shutdownNow();
+    store.shutdown();
+  }
+
+  @Test
+  public void concurrentMissesLoadOnce() throws Exception
+  {
+    store.update( new Item( "k", "v" ) );
+    store.evictAll();
+    backend.reads.set( 0 );
+    long misses = store.getMetrics().getMisses();
+    long loads = store.getMetrics().getLoads();
+
+    // Hold the first read until every thread has missed the cache.
+    backend.hold = new CountDownLatch( 1 );
+    List<Future<Item>> results = new ArrayList<>();
+    for ( int i = 0; i < THREADS; i++ )
+      results.add( pool.submit( () -> store.get( "k", false ) ) );
+    long deadline = System.currentTimeMillis() + 5000L;
+    while ( store.getMetrics().getMisses() - misses < THREADS && System.currentTimeMillis() < deadline )
+      Thread.sleep( 1L );
+    assertEquals( THREADS, store.getMetrics().getMisses() - misses );
+    backend.hold.countDown();
+
+    Item first = results.get( 0 ).get( 5, TimeUnit.SECONDS );
+    assertEquals( "v", first.getValue() );
+    for ( Future<Item> result : results )
+      assertSame( first, result.get( 5, TimeUnit.SECONDS ) );
+    assertEquals( 1, backend.reads.get() );
+    assertEquals( 1, store.getMetrics().getLoads() - loads );
+  }
+
+  @Test
+  public void concurrentMissesOnDifferentKeysLoadInParallel() throws Exception
+  {
+    for ( int i = 0; i < THREADS; i++ )
+      store.update( new Item( "k" + i, "v" + i ) );
+    store.evictAll();
+    backend.reads.set( 0 );
+
+    // Every read waits for all the others to start, so this only finishes
+    // if no load waits for a load of another key.
+    CountDownLatch together = new CountDownLatch( THREADS );
+    backend.together = together;
+    List<Future<Item>> results = new ArrayList<>();
+    for ( int i = 0; i < THREADS; i++ )
+    {
+      String key = "k" + i;
+      results.add( pool.submit( () -> store.get( key, false ) ) );
+    }
+    for ( int i = 0; i < THREADS; i++ )
+      assertEquals( "v" + i, results.get( i ).get( 5, TimeUnit.SECONDS ).getValue() );
+    assertEquals( THREADS, backend.reads.get() );
+  }
+
+  @Test
+  public void concurrentGetAllAsyncDoesNotStarveOwnPool() throws Exception
+  {
+    // No async executor is set, so the async methods share the store's own
+    // bulk pool of four threads with getAll().
+    for ( int i = 0; i < THREADS * 2; i++ )
+      store.update( new Item( "k" + i, "v" + i ) );
+    store.evictAll();
+    List<CompletableFuture<Map<String,Item>>> results = new ArrayList<>();
+    for ( int i = 0; i < THREADS; i++ )
+      results.add( store.getAllAsync( List.of( "k" + ( 2 * i ), "k" + ( 2 * i + 1 ), "nothing" + i ) ) );
+    for ( int i = 0; i < THREADS; i++ )
+    {
+      Map<String,Item> found = results.get( i ).get( 5, TimeUnit.SECONDS );
+      assertEquals( List.of( "k" + ( 2 * i ), "k" + ( 2 * i + 1 ) ), new ArrayList<>( found.keySet() ) );
+      assertEquals( "v" + ( 2 * i ), found.get( "k" + ( 2 * i ) ).getValue() );
+    }
+  }
+
+  @Test
+  public void missingKeyIsRemembered()
+  {
+    assertNull( store.get( "nothing", false ) );
+    assertNull( store.get( "nothing", false ) );
+    assertNull( store.get( "nothing", false ) );
+    assertEquals( 1, backend.reads.get() );
+    assertEquals( 2, store.getMetrics().getNegativeHits() );
+    assertEquals( 1, store.getNegativeCacheSize() );
+  }
+
+  @Test
+  public void missingKeyIsForgottenAfterTtl() throws InterruptedException
+  {
+    store.setNegativeCacheTtl( 50L );
+    assertNull( store.get( "nothing", false ) );
+    Thread.sleep( 100L );
+    assertNull( store.get( "nothing", false ) );
+    assertEquals( 2, backend.reads.get() );
+    assertEquals( 0, store.getMetrics().getNegativeHits() );
+  }
+
+  @Test
+  public void savedKeyIsNoLongerMissing() throws IOException
+  {
+    assertNull( store.get( "k", false ) );
+    store.update( new Item( "k", "v" ) );
+    store.evict( "k" );
+    assertEquals( "v", store.get( "k", false ).getValue() );
+  }
+
+  @Test
+  public void fileWrittenElsewhereIsFoundOnceInvalidated() throws IOException
+  {
+    assertNull( store.get( "k", false ) );
+    Files.write( store.getPath( "k" ), "{\"key\":\"k\",\"value\":\"v\"}".getBytes( StandardCharsets.UTF_8 ) );
+    // Still remembered as missing until something says otherwise.
+    assertNull( store.get( "k", false ) );
+    store.invalidate( "k" );
+    assertEquals( "v", store.get( "k", false ).getValue() );
+  }
+
+  @Test
+  public void createIgnoresNegativeCache()
+  {
+    assertNull( store.get( "k", false ) );
+    Item created = store.get( "k", true );
+    assertNotNull( created );
+    assertEquals( "k", created.getKey() );
+    assertSame( created, store.get( "k", false ) );
+  }
+
+  @Test
+  public void negativeCacheIsBounded()
+  {
+    store.setNegativeCacheMaxSize( 10 );
+    for ( int i = 0; i < 100; i++ )
+      assertNull( store.get( "nothing" + i, false ) );
+    assertTrue( store.getNegativeCacheSize() <= 10 );
+  }
+
+  @Test
+  public void negativeCacheCanBeSwitchedOff()
+  {
+    store.setNegativeCacheTtl( 0L );
+    assertNull( store.get( "nothing", false ) );
+    assertNull( store.get( "nothing", false ) );
+    assertEquals( 2, backend.reads.get() );
+    assertEquals( 0, store.getNegativeCacheSize() );
+  }
+
+  @Test
+  public void updateAllRacingCompareAndUpdateLosesNothing() throws Exception
+  {
+    store.update( new Item( "k", "v" ) );
+    // Each version of k must be saved once. If compareAndUpdate() passed
+    // its check while updateAll() was writing the same version, one of the
+    // two would be overwritten.
+    Set<Long> versions = ConcurrentHashMap.newKeySet();
+    versions.add( 1L );
+    AtomicInteger saved = new AtomicInteger( 1 );
+    AtomicBoolean running = new AtomicBoolean( true );
+    List<Future<?>> futures = new ArrayList<>();
+    for ( int t = 0; t < THREADS / 2; t++ )
+    {
+      String other = "other" + t;
+      futures.add( pool.submit( () ->
+      {
+        for ( int i = 0; i < 200; i++ )
+        {
+          Item item = new Item( "k", "batch" );
+          store.updateAll( List.of( new Item( other, "batch" ), item ) );
+          assertTrue( versions.add( item.getVersion() ), "Version " + item.getVersion() + " saved twice" );
+          saved.incrementAndGet();
+        }
+        return null;
+      } ) );
+      futures.add( pool.submit( () ->
+      {
+        while ( running.get() )
+        {
+          long expected = store.get( "k", false ).getVersion();
+          Item item = new Item( "k", "cas" );
+          if ( store.compareAndUpdate( item, expected ) )
+          {
+            assertTrue( versions.add( item.getVersion() ), "Version " + item.getVersion() + " saved twice" );
+            saved.incrementAndGet();
+          }
+        }
+        return null;
+      } ) );
+    }
+    for ( int i = 0; i < futures.size(); i += 2 )
+      futures.get( i ).get( 60, TimeUnit.SECONDS );
+    running.set( false );
+    for ( Future<?> f : futures )
+      f.get( 60, TimeUnit.SECONDS );
+    store.evictAll();
+    assertEquals( saved.get(), store.get( "k", false ).getVersion() );
+  }
+
+  @Test
+  public void hashesAreForgottenWhenEntriesAreEvicted() throws IOException
+  {
+    ItemStore small = new ItemStore( base, new BoundedCache<>( "storetest", 10L, BoundedCache.ExpiryType.ACCESSED, 0L, TimeUnit.SECONDS ) );
+    try
+    {
+      for ( int i = 0; i < 100; i++ )
+        small.update( new Item( "k" + i, "v" ) );
+      assertTrue( small.getPersistedHashCount() <= 10, small.getPersistedHashCount() + " hashes" );
+      // A forgotten hash only means the next save writes the file again.
+      small.update( new Item( "k0", "v2" ) );
+      small.evictAll();
+      assertEquals( "v2", small.get( "k0", false ).getValue() );
+    }
+    finally
+    {
+      small.shutdown();
+    }
+  }
+
+  @Test
+  public void hashesAreForgottenWhenProviderCacheExpiresEntries() throws Exception
+  {
+    MutableConfiguration<String,Item> config = new MutableConfiguration<String,Item>()
+            .setStoreByValue( false )
+            .setExpiryPolicyFactory( CreatedExpiryPolicy.factoryOf( new Duration( TimeUnit.MILLISECONDS, 50L ) ) );
+    String cacheName = "storetest-" + System.nanoTime();
+    Cache<String,Item> cache = Caching.getCachingProvider().getCacheManager().createCache( cacheName, config );
+    ItemStore expiring = new ItemStore( base, cache );
+    try
+    {
+      for ( int i = 0; i < 10; i++ )
+        expiring.update( new Item( "k" + i, "v" ) );
+      assertEquals( 10, expiring.getPersistedHashCount() );
+      Thread.sleep( 100L );
+      // The provider notices expiry when the entries are next looked at.
+      for ( int i = 0; i < 10; i++ )
+        cache.get( "k" + i );
+      long deadline = System.currentTimeMillis() + 5000L;
+      while ( expiring.getPersistedHashCount() > 0 && System.currentTimeMillis() < deadline )
+        Thread.sleep( 10L );
+      assertEquals( 0, expiring.getPersistedHashCount() );
+    }
+    finally
+    {
+      expiring.shutdown();
+      Caching.getCachingProvider().getCacheManager().destroyCache( cacheName );
+    }
+  }
+
+  @Test
+  public void versionsAreForgottenWhenEntriesAreEvicted() throws IOException
+  {
+    ItemStore small = new ItemStore( base, new BoundedCache<>( "storetest", 10L, BoundedCache.ExpiryType.ACCESSED, 0L, TimeUnit.SECONDS ) );
+    try
+    {
+      for ( int i = 0; i < 100; i++ )
+        small.update( new Item( "k" + i, "v" ) );
+      small.update( new Item( "k0", "v2" ) );
+      for ( int i = 1; i < 100; i++ )
+        small.get( "k" + i, false );
+      assertTrue( small.getVersionCount() <= 10, small.getVersionCount() + " versions" );
+      assertFalse( small.cache.containsKey( "k0" ) );
+      // Once forgotten the version comes from the stored entry, so a stale
+      // update is still refused.
+      assertFalse( small.compareAndUpdate( new Item( "k0", "stale" ), 1L ) );
+      assertTrue( small.compareAndUpdate( new Item( "k0", "v3" ), 2L ) );
+      assertEquals( 3L, small.get( "k0", false ).getVersion() );
+    }
+    finally
+    {
+      small.shutdown();
+    }
+  }
+
+  /**
+   * A store of items, one JSON file per item.
+   */
+  static class ItemStore extends Store<String,Item>
+  {
+    final Path base;
+
+    ItemStore( Path base )
+    {
+      this( base, new BoundedCache<>( "storetest", 1000L, BoundedCache.ExpiryType.ACCESSED, 0L, TimeUnit.SECONDS ) );
+    }
+
+    ItemStore( Path base, Cache<String,Item> cache )
+    {
+      super( "storetest", cache );
+      this.base = base;
+    }
+
+    @Override
+    public Item create( String key )
+    {
+      return new Item( key, null );
+    }
+
+    @Override
+    public Class<Item> getEntryClass()
+    {
+      return Item.class;
+    }
+
+    @Override
+    public Path getPath( String key )
+    {
+      return base.resolve( key + ".json" );
+    }
+
+    @Override
+    public Path getBasePath()
+    {
+      return base;
+    }
+  }
+
+  /**
+   * An entry with a value.
+   */
+  public static class Item implements Entry<String>
+  {
+    String key;
+    String value;
+    long version;
+
+    public Item()
+    {
+    }
+
+    Item( String key, String value )
+    {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public String getKey()
+    {
+      return key;
+    }
+
+    @Override
+    public void setKey( String key )
+    {
+      this.key = key;
+    }
+
+    @Override
+    public void initialize()
+    {
+    }
+
+    @JsonIgnore( false )
+    @Override
+    public long getVersion()
+    {
+      return version;
+    }
+
+    @JsonIgnore( false )
+    @Override
+    public void setVersion( long version )
+    {
+      this.version = version;
+    }
+
+    public String getValue()
+    {
+      return value;
+    }
+
+    public void setValue( String value )
+    {
+      this.value = value;
+    }
+  }
+
+  /**
+   * Counts reads and can make them wait.
+   */
+  static class CountingBackend implements StoreBackend<String>
+  {
+    final StoreBackend<String> delegate;
+    final AtomicInteger reads = new AtomicInteger();
+    volatile CountDownLatch hold = null;
+    volatile CountDownLatch together = null;
+
+    CountingBackend( StoreBackend<String> delegate )
+    {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] read( String key ) throws IOException
+    {
+      reads.incrementAndGet();
+      try
+      {
+        CountDownLatch h = hold;
+        if ( h != null && !h.await( 5, TimeUnit.SECONDS ) )
+          throw new IOException( "Read was held too long." );
+        CountDownLatch t = together;
+        if ( t != null )
+        {
+          t.countDown();
+          if ( !t.await( 5, TimeUnit.SECONDS ) )
+            throw new IOException( "Reads were not done together." );
+        }
+      }
+      catch ( InterruptedException ex )
+      {
+        Thread.currentThread().interrupt();
+        throw new IOException( ex );
+      }
+      return delegate.read( key );
+    }
+
+    @Override
+    public void write( String key, byte[] data ) throws IOException
+    {
+      delegate.write( key, data );
+    }
+
+    @Override
+    public Stream<byte[]> scan( boolean parallel ) throws IOException
+    {
+      return delegate.scan( parallel );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      delegate.close();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 maber01.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltitoolset.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import org.junit.jupiter.api.Test;
+import uk.ac.leedsbeckett.ltitoolset.resources.PlatformResourceKey;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of KeyHash and the keys that use it. The spread is measured the 
+ * way HashMap uses hash codes, over keys like those Blackboard makes.
+ *
+ * @author maber01
+ */
+public class KeyHashTest
+{
+  static final int KEYS = 50000;
+  static final int BUCKETS = 131072;
+
+  static List<PlatformResourceKey> platformResourceKeys()
+  {
+    String[] platforms = 
+    {
+      "https://blackboard.example.ac.uk/", 
+      "https://blackboard-test.example.ac.uk/", 
+      "https://other.example.ac.uk/"
+    };
+    ArrayList<PlatformResourceKey> keys = new ArrayList<>();
+    for ( int i = 0; i < KEYS; i++ )
+      keys.add( new PlatformResourceKey( platforms[i % platforms.length], "_" + ( 100000 + i ) + "_1" ) );
+    return keys;
+  }
+
+  /**
+   * Count the buckets used and the longest chain when hashes are spread
+   * over buckets the way HashMap does it.
+   */
+  static int[] spread( List<PlatformResourceKey> keys, ToIntFunction<PlatformResourceKey> hash )
+  {
+    int[] chains = new int[BUCKETS];
+    for ( PlatformResourceKey key : keys )
+    {
+      int h = hash.applyAsInt( key );
+      chains[( h ^ ( h >>> 16 ) ) & ( BUCKETS - 1 )]++;
+    }
+    int used = 0;
+    int longest = 0;
+    for ( int c : chains )
+    {
+      if ( c > 0 )
+        used++;
+      longest = Math.max( longest, c );
+    }
+    return new int[] { used, longest };
+  }
+
+  @Test
+  public void keysSpreadOverHashMapBuckets()
+  {
+    List<PlatformResourceKey> keys = platformResourceKeys();
+    int[] mixed = spread( keys, PlatformResourceKey::hashCode );
+    // How the parts used to be combined.
+    int[] or = spread( keys, k -> k.getPlatformId().hashCode() | k.getResourceId().hashCode() );
+
+    // Random hashes would use about 41,500 buckets with chains of about 6.
+    assertTrue( mixed[0] > 40000, mixed[0] + " buckets used" );
+    assertTrue( mixed[1] <= 8, "longest chain " + mixed[1] );
+    assertTrue( mixed[0] > 2 * or[0], mixed[0] + " buckets used against " + or[0] );
+    assertTrue( mixed[1] < or[1], "longest chain " + mixed[1] + " against " + or[1] );
+  }
+
+  @Test
+  public void everyBitDependsOnEveryPart()
+  {
+    // Changing one character of one part should flip about half the bits.
+    long flipped = 0L;
+    int samples = 0;
+    for ( int i = 0; i < 1000; i++ )
+    {
+      String a = "platform" + i;
+      String b = "resource" + i;
+      flipped += Integer.bitCount( KeyHash.of( a, b ) ^ KeyHash.of( a, b + "x" ) );
+      flipped += Integer.bitCount( KeyHash.of( a, b ) ^ KeyHash.of( a + "x", b ) );
+      samples += 2;
+    }
+    double mean = (double)flipped / samples;
+    assertTrue( mean > 14.0 && mean < 18.0, "mean bits flipped " + mean );
+  }
+
+  @Test
+  public void orderOfPartsMatters()
+  {
+    assertNotEquals( KeyHash.of( "a", "b" ), KeyHash.of( "b", "a" ) );
+    assertNotEquals( KeyHash.of( "a", "a", "b", "b" ), KeyHash.of( "a", "b", "a", "b" ) );
+    assertNotEquals( KeyHash.of( "a" ), KeyHash.of( "a", null ) );
+    assertEquals( KeyHash.of( null, "b" ), KeyHash.of( null, "b" ) );
+  }
+
+  @Test
+  public void hashIsTheSameAfterSerialization() throws IOException, ClassNotFoundException
+  {
+    PlatformResourceKey key = new PlatformResourceKey( "https://blackboard.example.ac.uk/", "_123_1" );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try ( ObjectOutputStream out = new ObjectOutputStream( bytes ) )
+    {
+      out.writeObject( key );
+    }
+    PlatformResourceKey copy;
+    try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) )
+    {
+      copy = (PlatformResourceKey)in.readObject();
+    }
+    assertNotSame( key, copy );
+    assertEquals( key, copy );
+    assertEquals( key.hashCode(), copy.hashCode() );
+    assertNotEquals( key, new PlatformResourceKey( "https://blackboard.example.ac.uk/", "_124_1" ) );
+  }
+}